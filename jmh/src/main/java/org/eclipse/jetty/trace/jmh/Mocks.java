@@ -0,0 +1,163 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.trace.jmh;
+
+import java.io.Writer;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+/**
+ * Offline stand-ins for the container streams, doing as little work as possible.
+ */
+public class Mocks
+{
+    /**
+     * A request body served from memory.
+     */
+    public static class RequestBody extends ServletInputStream
+    {
+        private final byte[] content;
+        private int pos;
+
+        public RequestBody(byte[] content)
+        {
+            this.content = content;
+        }
+
+        @Override
+        public boolean isFinished()
+        {
+            return pos >= content.length;
+        }
+
+        @Override
+        public boolean isReady()
+        {
+            return true;
+        }
+
+        @Override
+        public void setReadListener(ReadListener readListener)
+        {
+        }
+
+        @Override
+        public int read()
+        {
+            return (pos < content.length)?(content[pos++] & 0xFF):-1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len)
+        {
+            if (pos >= content.length)
+            {
+                return -1;
+            }
+            int part = Math.min(len,content.length - pos);
+            System.arraycopy(content,pos,b,off,part);
+            pos += part;
+            return part;
+        }
+    }
+
+    /**
+     * A response body that is discarded.
+     */
+    public static class ResponseBody extends ServletOutputStream
+    {
+        private long count;
+
+        @Override
+        public boolean isReady()
+        {
+            return true;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener)
+        {
+        }
+
+        @Override
+        public void write(int b)
+        {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+        {
+            count += len;
+        }
+
+        public long getCount()
+        {
+            return count;
+        }
+    }
+
+    /**
+     * Discards everything, used for response writers and for the trace output itself.
+     */
+    public static class NullWriter extends Writer
+    {
+        private long count;
+
+        @Override
+        public void write(int c)
+        {
+            count++;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len)
+        {
+            count += len;
+        }
+
+        @Override
+        public void write(String str, int off, int len)
+        {
+            count += len;
+        }
+
+        @Override
+        public void flush()
+        {
+        }
+
+        @Override
+        public void close()
+        {
+        }
+
+        public long getCount()
+        {
+            return count;
+        }
+    }
+
+    private Mocks()
+    {
+    }
+}
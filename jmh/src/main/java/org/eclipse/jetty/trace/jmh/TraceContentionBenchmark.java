@@ -0,0 +1,129 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.trace.jmh;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.trace.TraceFile;
+import org.eclipse.jetty.trace.TraceServletOutputStream;
+import org.eclipse.jetty.trace.TraceWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of traced responses on several request threads at once, sharing one {@link TraceWriter}, against the same
+ * responses untraced and traced with rendering on each request thread.
+ * <p>
+ * With the shared writer the request threads only capture content and queue events, so this measures the request
+ * thread cost and the contention on the writer queue. When the writer cannot keep up, events are dropped rather than
+ * slowing the requests down; the number of dropped events is printed at the end of each trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class TraceContentionBenchmark
+{
+    @State(Scope.Thread)
+    public static class Response
+    {
+        private byte[] content;
+
+        @Setup
+        public void setup(TraceContentionBenchmark benchmark)
+        {
+            content = new byte[benchmark.size];
+            for (int i = 0; i < content.length; i++)
+            {
+                content[i] = (byte)(i % 251);
+            }
+        }
+    }
+
+    @Param({ "64", "16384" })
+    public int size;
+
+    private TraceWriter writer;
+
+    @Setup(Level.Trial)
+    public void start()
+    {
+        writer = new TraceWriter(8192);
+        writer.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void stop()
+    {
+        writer.stop();
+        System.out.printf("%nDropped events: %,d%n",writer.getDroppedEvents());
+    }
+
+    private static long respond(Response response, TraceFile tracer) throws IOException
+    {
+        Mocks.ResponseBody out = new Mocks.ResponseBody();
+        if (tracer == null)
+        {
+            out.write(response.content,0,response.content.length);
+            out.close();
+        }
+        else
+        {
+            TraceServletOutputStream traced = new TraceServletOutputStream(out,tracer);
+            traced.write(response.content,0,response.content.length);
+            traced.close();
+            tracer.close();
+        }
+        return out.getCount();
+    }
+
+    @Benchmark
+    public long baseline(Response response) throws IOException
+    {
+        return respond(response,null);
+    }
+
+    @Benchmark
+    public long tracedSharedWriter(Response response) throws IOException
+    {
+        return respond(response,new TraceFile("benchmark",new Mocks.NullWriter(),writer));
+    }
+
+    @Benchmark
+    public long tracedOnRequestThread(Response response) throws IOException
+    {
+        return respond(response,TraceStreamBenchmark.newTracer());
+    }
+}
@@ -0,0 +1,198 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.trace.jmh;
+
+import java.io.BufferedReader;
+import java.io.CharArrayReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+
+import org.eclipse.jetty.trace.TraceFile;
+import org.eclipse.jetty.trace.TraceServletInputStream;
+import org.eclipse.jetty.trace.TraceServletOutputStream;
+import org.eclipse.jetty.trace.TraceServletReader;
+import org.eclipse.jetty.trace.TraceServletWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of a single traced request body against the same body through the mock container streams alone.
+ * <p>
+ * Each operation is one request: the trace is created, the whole body is read (or written) in 8KB buffers, then the
+ * stream and the trace are closed. Events are rendered on the calling thread (no {@link org.eclipse.jetty.trace.TraceWriter}),
+ * so the traced numbers include all of the formatting, to a trace output that discards the text. The per-request
+ * overhead is <code>traced - baseline</code> at the smallest size, the per-byte overhead is
+ * <code>(traced - baseline) / size</code> at the largest size.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TraceStreamBenchmark
+{
+    private static final int BUFSIZE = 8192;
+
+    @Param({ "64", "4096", "1048576" })
+    public int size;
+
+    private byte[] content;
+    private char[] text;
+    private final byte[] buf = new byte[BUFSIZE];
+    private final char[] cbuf = new char[BUFSIZE];
+
+    @Setup
+    public void setup()
+    {
+        content = new byte[size];
+        text = new char[size];
+        for (int i = 0; i < size; i++)
+        {
+            content[i] = (byte)(i % 251);
+            text[i] = ((i % 80) == 79)?'\n':(char)('a' + (i % 26));
+        }
+    }
+
+    static TraceFile newTracer()
+    {
+        return new TraceFile("benchmark",new Mocks.NullWriter(),null);
+    }
+
+    private long readFully(ServletInputStream in) throws IOException
+    {
+        long length = 0;
+        int len;
+        while ((len = in.read(buf,0,buf.length)) != (-1))
+        {
+            length += len;
+        }
+        in.close();
+        return length;
+    }
+
+    private long readFully(BufferedReader in) throws IOException
+    {
+        long length = 0;
+        int len;
+        while ((len = in.read(cbuf,0,cbuf.length)) != (-1))
+        {
+            length += len;
+        }
+        in.close();
+        return length;
+    }
+
+    private void writeFully(ServletOutputStream out) throws IOException
+    {
+        for (int off = 0; off < content.length; off += BUFSIZE)
+        {
+            out.write(content,off,Math.min(BUFSIZE,content.length - off));
+        }
+        out.close();
+    }
+
+    private void writeFully(PrintWriter out)
+    {
+        for (int off = 0; off < text.length; off += BUFSIZE)
+        {
+            out.write(text,off,Math.min(BUFSIZE,text.length - off));
+        }
+        out.close();
+    }
+
+    @Benchmark
+    public long baselineInputStream() throws IOException
+    {
+        return readFully(new Mocks.RequestBody(content));
+    }
+
+    @Benchmark
+    public long tracedInputStream() throws IOException
+    {
+        TraceFile tracer = newTracer();
+        long length = readFully(new TraceServletInputStream(new Mocks.RequestBody(content),tracer));
+        tracer.close();
+        return length;
+    }
+
+    @Benchmark
+    public long baselineOutputStream() throws IOException
+    {
+        Mocks.ResponseBody out = new Mocks.ResponseBody();
+        writeFully(out);
+        return out.getCount();
+    }
+
+    @Benchmark
+    public long tracedOutputStream() throws IOException
+    {
+        TraceFile tracer = newTracer();
+        Mocks.ResponseBody out = new Mocks.ResponseBody();
+        writeFully(new TraceServletOutputStream(out,tracer));
+        tracer.close();
+        return out.getCount();
+    }
+
+    @Benchmark
+    public long baselineReader() throws IOException
+    {
+        return readFully(new BufferedReader(new CharArrayReader(text)));
+    }
+
+    @Benchmark
+    public long tracedReader() throws IOException
+    {
+        TraceFile tracer = newTracer();
+        long length = readFully(new TraceServletReader(new BufferedReader(new CharArrayReader(text)),tracer));
+        tracer.close();
+        return length;
+    }
+
+    @Benchmark
+    public long baselineWriter()
+    {
+        Mocks.NullWriter out = new Mocks.NullWriter();
+        writeFully(new PrintWriter(out));
+        return out.getCount();
+    }
+
+    @Benchmark
+    public long tracedWriter()
+    {
+        TraceFile tracer = newTracer();
+        Mocks.NullWriter out = new Mocks.NullWriter();
+        writeFully(new TraceServletWriter(new PrintWriter(out),tracer));
+        tracer.close();
+        return out.getCount();
+    }
+}
@@ -0,0 +1,170 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.trace;
+
+/**
+ * Table driven renderer of escaped character content lines.
+ * <p>
+ * Characters are escaped as they are appended into a reusable, pre-sized line buffer in the form
+ *
+ * <pre>
+ * [mode] Content:: {"greeting":"Hello World"}\r\n
+ * </pre>
+ *
+ * Line breaks and tabs are escaped as <code>\r</code>, <code>\n</code> and <code>\t</code>, other control characters
+ * as <code>&#92;u001B</code> style escapes, so that each rendered line is a single line of the trace. A line holds up to
+ * {@link #getWidth()} content characters, however many of them are escaped.
+ * <p>
+ * No objects are created per rendered line, the caller is expected to write the contents of {@link #getLine()}
+ * directly to the trace output, then {@link #reset()} the escaper for the next line.
+ */
+public class CharEscaper
+{
+    /** The default number of content characters per line */
+    public static final int DEFAULT_WIDTH = 128;
+    // the longest escape, a backslash, u and 4 hex digits
+    private static final int MAX_ESCAPE = 6;
+    private static final char[][] ESCAPES = new char[0x80][];
+
+    static
+    {
+        for (int c = 0; c < 0x20; c++)
+        {
+            ESCAPES[c] = String.format("\\u%04X",c).toCharArray();
+        }
+        ESCAPES[0x7F] = "\\u007F".toCharArray();
+        ESCAPES['\r'] = "\\r".toCharArray();
+        ESCAPES['\n'] = "\\n".toCharArray();
+        ESCAPES['\t'] = "\\t".toCharArray();
+    }
+
+    private final char[] line;
+    private final int prefixLength;
+    private final int width;
+    private int length;
+    private int count;
+
+    public CharEscaper(String mode)
+    {
+        this(mode,DEFAULT_WIDTH);
+    }
+
+    /**
+     * @param mode
+     *            the mode of the content, eg: <code>Response</code>
+     * @param width
+     *            the number of content characters per line
+     */
+    public CharEscaper(String mode, int width)
+    {
+        if (width <= 0)
+        {
+            throw new IllegalArgumentException("Invalid line width: " + width);
+        }
+        char[] prefix = ("[" + mode + "] Content:: ").toCharArray();
+        this.prefixLength = prefix.length;
+        this.width = width;
+        this.line = new char[prefixLength + (width * MAX_ESCAPE)];
+        System.arraycopy(prefix,0,line,0,prefixLength);
+        this.length = prefixLength;
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    /**
+     * @return the line buffer, valid from 0 up to {@link #getLength()}
+     */
+    public char[] getLine()
+    {
+        return line;
+    }
+
+    /**
+     * @return the number of chars in the rendered line, including the prefix
+     */
+    public int getLength()
+    {
+        return length;
+    }
+
+    /**
+     * @return true if no content has been appended since the last {@link #reset()}
+     */
+    public boolean isEmpty()
+    {
+        return count == 0;
+    }
+
+    /**
+     * @return true if the line holds {@link #getWidth()} content characters
+     */
+    public boolean isFull()
+    {
+        return count == width;
+    }
+
+    /**
+     * Escape content into the line, up to the width of the line.
+     *
+     * @param c
+     *            the content
+     * @param off
+     *            the offset in the content
+     * @param len
+     *            the number of content chars available
+     * @return the number of content chars appended to the line, less than <code>len</code> if the line is full
+     */
+    public int escape(char[] c, int off, int len)
+    {
+        int n = Math.min(len,width - count);
+        int pos = length;
+        int end = off + n;
+        for (int i = off; i < end; i++)
+        {
+            char ch = c[i];
+            char[] escape = (ch < ESCAPES.length)?ESCAPES[ch]:null;
+            if (escape == null)
+            {
+                line[pos++] = ch;
+            }
+            else
+            {
+                for (char e : escape)
+                {
+                    line[pos++] = e;
+                }
+            }
+        }
+        length = pos;
+        count += n;
+        return n;
+    }
+
+    /**
+     * Start a new line.
+     */
+    public void reset()
+    {
+        length = prefixLength;
+        count = 0;
+    }
+}
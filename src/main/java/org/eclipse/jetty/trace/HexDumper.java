@@ -0,0 +1,117 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.trace;
+
+import java.util.Arrays;
+
+/**
+ * Table driven renderer of hex dump lines.
+ * <p>
+ * Renders up to {@link #BYTES_PER_LINE} bytes into a reusable, pre-sized line buffer in the form
+ *
+ * <pre>
+ * [mode] Content:: 48 65 6C 6C 6F 20 57 6F  72 6C 64 0A             | Hello World.
+ * </pre>
+ *
+ * No objects are created per rendered line, the caller is expected to write the
+ * contents of {@link #getLine()} directly to the trace output.
+ */
+public class HexDumper
+{
+    public static final int BYTES_PER_LINE = 16;
+    private static final int HEX_DISP_WIDTH = (BYTES_PER_LINE + (BYTES_PER_LINE * 2) + 1);
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+    private static final char[] HEX_HI = new char[256];
+    private static final char[] HEX_LO = new char[256];
+    private static final char[] PRINTABLE = new char[256];
+    private static final char[] SEPARATOR = " | ".toCharArray();
+
+    static
+    {
+        for (int i = 0; i < 256; i++)
+        {
+            HEX_HI[i] = HEX_DIGITS[i >> 4];
+            HEX_LO[i] = HEX_DIGITS[i & 0x0F];
+            // only show simple printable chars
+            PRINTABLE[i] = ((i >= 0x20) && (i <= 0x7E))?(char)i:'.';
+        }
+    }
+
+    private final char[] line;
+    private final int hexOffset;
+    private final int asciiOffset;
+
+    public HexDumper(String mode)
+    {
+        char[] prefix = ("[" + mode + "] Content:: ").toCharArray();
+        this.hexOffset = prefix.length;
+        this.asciiOffset = hexOffset + HEX_DISP_WIDTH + SEPARATOR.length;
+        this.line = new char[asciiOffset + BYTES_PER_LINE];
+        System.arraycopy(prefix,0,line,0,prefix.length);
+        Arrays.fill(line,hexOffset,hexOffset + HEX_DISP_WIDTH,' ');
+        System.arraycopy(SEPARATOR,0,line,hexOffset + HEX_DISP_WIDTH,SEPARATOR.length);
+    }
+
+    /**
+     * @return the line buffer, valid from 0 up to the length returned by the last {@link #render(byte[], int, int)}
+     */
+    public char[] getLine()
+    {
+        return line;
+    }
+
+    /**
+     * Render a single line of hex dump.
+     *
+     * @param b
+     *            the bytes to render
+     * @param off
+     *            the offset in the bytes
+     * @param len
+     *            the number of bytes to render, at most {@link #BYTES_PER_LINE}
+     * @return the number of chars in the rendered line
+     */
+    public int render(byte[] b, int off, int len)
+    {
+        if (len > BYTES_PER_LINE)
+        {
+            throw new IllegalArgumentException("Line too long: " + len);
+        }
+        int hex = hexOffset;
+        int ascii = asciiOffset;
+        for (int i = 0; i < len; i++)
+        {
+            if (i == (BYTES_PER_LINE / 2))
+            {
+                hex++;
+            }
+            int c = b[off + i] & 0xFF;
+            line[hex++] = HEX_HI[c];
+            line[hex++] = HEX_LO[c];
+            hex++;
+            line[ascii++] = PRINTABLE[c];
+        }
+        if (len < BYTES_PER_LINE)
+        {
+            // blank out the remains of any previous (longer) line
+            Arrays.fill(line,hex,hexOffset + HEX_DISP_WIDTH,' ');
+        }
+        return ascii;
+    }
+}
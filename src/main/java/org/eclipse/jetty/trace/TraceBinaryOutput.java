@@ -0,0 +1,323 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.trace;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Compact binary trace layout, rendered to text later by {@link TraceDecoder}.
+ * <p>
+ * The output starts with the 4 byte {@link #MAGIC}, followed by length prefixed records:
+ *
+ * <pre>
+ *   record    = type:u8 timestamp:varlong length:varint payload[length]
+ *   timestamp = zigzag encoded nanoseconds since the start of the trace
+ *   string    = length:varint utf-8[length]
+ * </pre>
+ *
+ * Byte content records hold the raw body bytes, so that encoding them is a plain copy. Character content records
+ * encode each character on its own as 1 to 3 bytes of UTF-8 (a surrogate is encoded like any other character), so
+ * that any sequence of characters, even a malformed one, decodes to the same characters. Record types that a decoder
+ * does not know can be skipped using the length.
+ */
+class TraceBinaryOutput implements TraceOutput
+{
+    static final byte[] MAGIC = new byte[] { 'T', 'R', 'C', 1 };
+    /** string id, u64 start millis */
+    static final int OPEN = 'O';
+    /** utf-8 text of the line */
+    static final int LINE = 'L';
+    /** string title, utf-8 text of the block */
+    static final int BLOCK = 'K';
+    /** string mode, raw bytes */
+    static final int BYTES = 'B';
+    /** string mode, 1 to 3 bytes per character */
+    static final int CHARS = 'C';
+    /** string mode, u8 chars, varlong count */
+    static final int ELIDED = 'E';
+    /** string mode, utf-8 name of the charset of the bytes of the mode */
+    static final int CHARSET = 'S';
+    /** string mode, u8 chars, varlong seen, varlong elided */
+    static final int CLOSED = 'Z';
+
+    private static final Logger LOG = Logger.getLogger(TraceBinaryOutput.class.getName());
+
+    private final OutputStream out;
+    private final ByteArrayOutputStream header = new ByteArrayOutputStream(64);
+    private byte[] encoded = new byte[4096];
+    private long startNanos;
+    private boolean failed;
+
+    public TraceBinaryOutput(OutputStream output)
+    {
+        this.out = new BufferedOutputStream(output,64 * 1024);
+    }
+
+    @Override
+    public void open(String id, long start, long startNanos)
+    {
+        this.startNanos = startNanos;
+        try
+        {
+            out.write(MAGIC);
+            header.reset();
+            writeString(header,id);
+            writeLong(header,start);
+            writeRecord(OPEN,startNanos,null,0,0);
+        }
+        catch (IOException e)
+        {
+            fail(e);
+        }
+    }
+
+    private void fail(IOException e)
+    {
+        // like PrintWriter, do not fail the request because of the trace
+        if (!failed)
+        {
+            failed = true;
+            LOG.log(Level.WARNING,"Unable to write binary trace",e);
+        }
+    }
+
+    /**
+     * Write a record with a payload of the {@link #header} bytes, followed by <code>len</code> bytes of data.
+     */
+    private void writeRecord(int type, long timestamp, byte[] data, int off, int len) throws IOException
+    {
+        out.write(type);
+        writeVarLong(out,zigzag(timestamp - startNanos));
+        writeVarLong(out,header.size() + len);
+        header.writeTo(out);
+        if (len > 0)
+        {
+            out.write(data,off,len);
+        }
+    }
+
+    private byte[] reserve(int len)
+    {
+        if (encoded.length < len)
+        {
+            encoded = new byte[Math.max(len,encoded.length * 2)];
+        }
+        return encoded;
+    }
+
+    @Override
+    public void line(long timestamp, String format, Object... args)
+    {
+        try
+        {
+            header.reset();
+            writeUTF8(header,String.format(format,args));
+            writeRecord(LINE,timestamp,null,0,0);
+        }
+        catch (IOException e)
+        {
+            fail(e);
+        }
+    }
+
+    @Override
+    public void block(long timestamp, String title, String block)
+    {
+        try
+        {
+            header.reset();
+            writeString(header,title);
+            writeUTF8(header,block);
+            writeRecord(BLOCK,timestamp,null,0,0);
+        }
+        catch (IOException e)
+        {
+            fail(e);
+        }
+    }
+
+    @Override
+    public void content(long timestamp, String mode, byte[] b, int off, int len)
+    {
+        try
+        {
+            header.reset();
+            writeString(header,mode);
+            writeRecord(BYTES,timestamp,b,off,len);
+        }
+        catch (IOException e)
+        {
+            fail(e);
+        }
+    }
+
+    @Override
+    public void content(long timestamp, String mode, char[] c, int off, int len)
+    {
+        try
+        {
+            header.reset();
+            writeString(header,mode);
+            byte[] data = reserve(len * 3);
+            int pos = 0;
+            for (int i = 0; i < len; i++)
+            {
+                char ch = c[off + i];
+                if (ch < 0x80)
+                {
+                    data[pos++] = (byte)ch;
+                }
+                else if (ch < 0x800)
+                {
+                    data[pos++] = (byte)(0xC0 | (ch >> 6));
+                    data[pos++] = (byte)(0x80 | (ch & 0x3F));
+                }
+                else
+                {
+                    data[pos++] = (byte)(0xE0 | (ch >> 12));
+                    data[pos++] = (byte)(0x80 | ((ch >> 6) & 0x3F));
+                    data[pos++] = (byte)(0x80 | (ch & 0x3F));
+                }
+            }
+            writeRecord(CHARS,timestamp,data,0,pos);
+        }
+        catch (IOException e)
+        {
+            fail(e);
+        }
+    }
+
+    @Override
+    public void charset(long timestamp, String mode, String charset)
+    {
+        try
+        {
+            header.reset();
+            writeString(header,mode);
+            writeUTF8(header,charset);
+            writeRecord(CHARSET,timestamp,null,0,0);
+        }
+        catch (IOException e)
+        {
+            fail(e);
+        }
+    }
+
+    @Override
+    public void elided(long timestamp, String mode, boolean chars, long count)
+    {
+        try
+        {
+            header.reset();
+            writeString(header,mode);
+            header.write(chars?1:0);
+            writeVarLong(header,count);
+            writeRecord(ELIDED,timestamp,null,0,0);
+        }
+        catch (IOException e)
+        {
+            fail(e);
+        }
+    }
+
+    @Override
+    public void closed(long timestamp, String mode, boolean chars, long seen, long elided)
+    {
+        try
+        {
+            header.reset();
+            writeString(header,mode);
+            header.write(chars?1:0);
+            writeVarLong(header,seen);
+            writeVarLong(header,elided);
+            writeRecord(CLOSED,timestamp,null,0,0);
+        }
+        catch (IOException e)
+        {
+            fail(e);
+        }
+    }
+
+    @Override
+    public void flush()
+    {
+        try
+        {
+            out.flush();
+        }
+        catch (IOException e)
+        {
+            fail(e);
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        try
+        {
+            out.close();
+        }
+        catch (IOException e)
+        {
+            fail(e);
+        }
+    }
+
+    static long zigzag(long value)
+    {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static void writeVarLong(OutputStream out, long value) throws IOException
+    {
+        while ((value & ~0x7FL) != 0)
+        {
+            out.write((int)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int)value);
+    }
+
+    private static void writeLong(OutputStream out, long value) throws IOException
+    {
+        for (int shift = 56; shift >= 0; shift -= 8)
+        {
+            out.write((int)(value >>> shift));
+        }
+    }
+
+    private static void writeString(OutputStream out, String value) throws IOException
+    {
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out,utf8.length);
+        out.write(utf8);
+    }
+
+    private static void writeUTF8(OutputStream out, String value) throws IOException
+    {
+        out.write(value.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,168 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.trace;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded pool of the fixed size buffers used by traces.
+ * <p>
+ * Buffers are usually acquired by request threads and released by the {@link TraceWriter} thread once rendered, so
+ * the pool is shared rather than per thread. It is striped to keep threads from contending on the same slots: each
+ * thread starts looking at its own stripe and only moves on to the other stripes when that one is empty (or full, when
+ * releasing). When the pool is empty a new buffer is allocated, and when it is full a released buffer is left to the
+ * garbage collector, so at most <code>capacity</code> buffers of each kind are held.
+ */
+public class TraceBufferPool
+{
+    /** The size of the byte buffers */
+    public static final int BYTES = 4096;
+    /** The size of the char buffers */
+    public static final int CHARS = 2048;
+
+    private final AtomicReferenceArray<byte[]> bytes;
+    private final AtomicReferenceArray<char[]> chars;
+    private final int stripes;
+    private final int stripeSize;
+
+    /**
+     * @param capacity
+     *            the maximum number of buffers of each kind to hold
+     */
+    public TraceBufferPool(int capacity)
+    {
+        if (capacity < 1)
+        {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        this.stripes = Math.min(capacity,Runtime.getRuntime().availableProcessors());
+        this.stripeSize = capacity / stripes;
+        this.bytes = new AtomicReferenceArray<>(capacity);
+        this.chars = new AtomicReferenceArray<>(capacity);
+    }
+
+    private int firstSlot()
+    {
+        return (int)(Thread.currentThread().getId() % stripes) * stripeSize;
+    }
+
+    private <T> T acquire(AtomicReferenceArray<T> slots)
+    {
+        int first = firstSlot();
+        int length = slots.length();
+        for (int i = 0; i < length; i++)
+        {
+            int slot = (first + i) % length;
+            if (slots.get(slot) != null)
+            {
+                T buffer = slots.getAndSet(slot,null);
+                if (buffer != null)
+                {
+                    return buffer;
+                }
+            }
+        }
+        return null;
+    }
+
+    private <T> void release(AtomicReferenceArray<T> slots, T buffer)
+    {
+        int first = firstSlot();
+        int length = slots.length();
+        for (int i = 0; i < length; i++)
+        {
+            int slot = (first + i) % length;
+            if ((slots.get(slot) == null) && slots.compareAndSet(slot,null,buffer))
+            {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return a byte buffer of {@link #BYTES}, with undefined content
+     */
+    public byte[] acquireBytes()
+    {
+        byte[] buffer = acquire(bytes);
+        return (buffer == null)?new byte[BYTES]:buffer;
+    }
+
+    /**
+     * @return a char buffer of {@link #CHARS}, with undefined content
+     */
+    public char[] acquireChars()
+    {
+        char[] buffer = acquire(chars);
+        return (buffer == null)?new char[CHARS]:buffer;
+    }
+
+    /**
+     * @param buffer
+     *            a buffer from {@link #acquireBytes()}, which must not be used anymore by the caller
+     */
+    public void release(byte[] buffer)
+    {
+        if (buffer.length == BYTES)
+        {
+            release(bytes,buffer);
+        }
+    }
+
+    /**
+     * @param buffer
+     *            a buffer from {@link #acquireChars()}, which must not be used anymore by the caller
+     */
+    public void release(char[] buffer)
+    {
+        if (buffer.length == CHARS)
+        {
+            release(chars,buffer);
+        }
+    }
+
+    /**
+     * @return the number of byte buffers held by the pool
+     */
+    public int getIdleBytes()
+    {
+        return count(bytes);
+    }
+
+    /**
+     * @return the number of char buffers held by the pool
+     */
+    public int getIdleChars()
+    {
+        return count(chars);
+    }
+
+    private static int count(AtomicReferenceArray<?> slots)
+    {
+        int count = 0;
+        for (int i = 0; i < slots.length(); i++)
+        {
+            if (slots.get(i) != null)
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+}
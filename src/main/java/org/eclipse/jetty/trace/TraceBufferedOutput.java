@@ -0,0 +1,186 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.trace;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Holds the events of a trace in the binary format, until it is known whether the trace is retained.
+ * <p>
+ * Nothing is encoded until the first event is rendered, which {@link TraceFile} defers until the trace is closed (when
+ * it is only rendered if retained) or until its buffer is full. When the trace is known to be retained before any event
+ * is rendered, events are passed straight to the target output. Otherwise a retained trace is replayed into the target
+ * output when closed. The target output is only created for a retained trace.
+ *
+ * @see TraceRetention
+ */
+class TraceBufferedOutput implements TraceOutput
+{
+    private static final Logger LOG = Logger.getLogger(TraceBufferedOutput.class.getName());
+
+    private final TraceOutput.Factory target;
+    private final TraceSpillBuffer buffer;
+    private TraceBinaryOutput binary;
+    private TraceOutput output;
+    private boolean retained;
+    private String id;
+    private long start;
+    private long startNanos;
+
+    /**
+     * @param target
+     *            creates the output for a retained trace
+     * @param bufferSize
+     *            the bytes to hold in memory
+     * @param spillDir
+     *            the directory for spill files, or null for the default temporary directory
+     */
+    public TraceBufferedOutput(TraceOutput.Factory target, int bufferSize, File spillDir)
+    {
+        this.target = target;
+        this.buffer = new TraceSpillBuffer(bufferSize,spillDir);
+    }
+
+    public void setRetained(boolean retained)
+    {
+        this.retained = retained;
+    }
+
+    @Override
+    public void open(String id, long start, long startNanos)
+    {
+        this.id = id;
+        this.start = start;
+        this.startNanos = startNanos;
+    }
+
+    private TraceOutput getOutput()
+    {
+        if (output == null)
+        {
+            if (retained)
+            {
+                try
+                {
+                    output = target.newOutput();
+                }
+                catch (IOException e)
+                {
+                    LOG.log(Level.WARNING,"Unable to write retained trace",e);
+                    retained = false;
+                }
+            }
+            if (output == null)
+            {
+                binary = new TraceBinaryOutput(buffer);
+                output = binary;
+            }
+            output.open(id,start,startNanos);
+        }
+        return output;
+    }
+
+    @Override
+    public void line(long timestamp, String format, Object... args)
+    {
+        getOutput().line(timestamp,format,args);
+    }
+
+    @Override
+    public void block(long timestamp, String title, String block)
+    {
+        getOutput().block(timestamp,title,block);
+    }
+
+    @Override
+    public void content(long timestamp, String mode, byte[] b, int off, int len)
+    {
+        getOutput().content(timestamp,mode,b,off,len);
+    }
+
+    @Override
+    public void content(long timestamp, String mode, char[] c, int off, int len)
+    {
+        getOutput().content(timestamp,mode,c,off,len);
+    }
+
+    @Override
+    public void charset(long timestamp, String mode, String charset)
+    {
+        getOutput().charset(timestamp,mode,charset);
+    }
+
+    @Override
+    public void elided(long timestamp, String mode, boolean chars, long count)
+    {
+        getOutput().elided(timestamp,mode,chars,count);
+    }
+
+    @Override
+    public void closed(long timestamp, String mode, boolean chars, long seen, long elided)
+    {
+        getOutput().closed(timestamp,mode,chars,seen,elided);
+    }
+
+    @Override
+    public void flush()
+    {
+        if ((output != null) && (output != binary))
+        {
+            output.flush();
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        try
+        {
+            if ((output != null) && (output != binary))
+            {
+                output.close();
+            }
+            else if (retained && (binary != null))
+            {
+                binary.close();
+                TraceOutput retainedOutput = target.newOutput();
+                try (InputStream in = buffer.getInputStream())
+                {
+                    new TraceDecoder(in).replay(retainedOutput);
+                }
+                finally
+                {
+                    retainedOutput.close();
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            LOG.log(Level.WARNING,"Unable to write retained trace",e);
+        }
+        finally
+        {
+            buffer.discard();
+        }
+    }
+}
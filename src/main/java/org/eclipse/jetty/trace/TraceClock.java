@@ -0,0 +1,112 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.trace;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Renders the <code>"yyyy-MM-dd HH:mm:ss.SSS - "</code> prefix of trace lines.
+ * <p>
+ * The rendered prefix is cached, the millisecond digits are only updated when the millisecond changes, and the date
+ * and time fields only when the second changes. Instances are not thread safe, use {@link #get()} for an instance
+ * shared by every trace rendered on the current thread.
+ */
+public class TraceClock
+{
+    private static final ThreadLocal<TraceClock> CLOCKS = new ThreadLocal<TraceClock>()
+    {
+        @Override
+        protected TraceClock initialValue()
+        {
+            return new TraceClock(TimeZone.getDefault());
+        }
+    };
+
+    /**
+     * @return the clock for the current thread
+     */
+    public static TraceClock get()
+    {
+        return CLOCKS.get();
+    }
+
+    private final Calendar calendar;
+    private final char[] prefix = "0000-00-00 00:00:00.000 - ".toCharArray();
+    private long lastMillis = Long.MIN_VALUE;
+    private long lastSecond = Long.MIN_VALUE;
+
+    public TraceClock(TimeZone zone)
+    {
+        this.calendar = Calendar.getInstance(zone);
+    }
+
+    /**
+     * @return the length of the rendered prefix
+     */
+    public int getPrefixLength()
+    {
+        return prefix.length;
+    }
+
+    /**
+     * Render the prefix for a point in time.
+     *
+     * @param millis
+     *            the time, as per {@link System#currentTimeMillis()}
+     * @return the prefix buffer, valid until the next call to this method
+     */
+    public char[] render(long millis)
+    {
+        if (millis == lastMillis)
+        {
+            return prefix;
+        }
+        lastMillis = millis;
+        long second = millis / 1000L;
+        if (second != lastSecond)
+        {
+            lastSecond = second;
+            calendar.setTimeInMillis(millis);
+            put4(0,calendar.get(Calendar.YEAR));
+            put2(5,calendar.get(Calendar.MONTH) + 1);
+            put2(8,calendar.get(Calendar.DAY_OF_MONTH));
+            put2(11,calendar.get(Calendar.HOUR_OF_DAY));
+            put2(14,calendar.get(Calendar.MINUTE));
+            put2(17,calendar.get(Calendar.SECOND));
+        }
+        int ms = (int)(millis % 1000L);
+        prefix[20] = (char)('0' + (ms / 100));
+        prefix[21] = (char)('0' + ((ms / 10) % 10));
+        prefix[22] = (char)('0' + (ms % 10));
+        return prefix;
+    }
+
+    private void put2(int off, int value)
+    {
+        prefix[off] = (char)('0' + (value / 10));
+        prefix[off + 1] = (char)('0' + (value % 10));
+    }
+
+    private void put4(int off, int value)
+    {
+        put2(off,value / 100);
+        put2(off + 2,value % 100);
+    }
+}
@@ -0,0 +1,74 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.trace;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter updated by many threads, without contending on a single value.
+ * <p>
+ * Each thread adds to one of several cells (chosen by its thread id), spaced a cache line apart, and the value is the
+ * sum of the cells. Reading is not atomic with respect to concurrent updates.
+ */
+class TraceCounter
+{
+    /** The number of longs in a cache line */
+    private static final int PAD = 8;
+    static final int STRIPES = stripes();
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PAD);
+
+    /**
+     * @return a power of 2, at least the number of processors (up to 64)
+     */
+    private static int stripes()
+    {
+        int n = 1;
+        while ((n < Runtime.getRuntime().availableProcessors()) && (n < 64))
+        {
+            n *= 2;
+        }
+        return n;
+    }
+
+    static int stripe()
+    {
+        return (int)(Thread.currentThread().getId() & (STRIPES - 1));
+    }
+
+    public void add(long delta)
+    {
+        cells.getAndAdd(stripe() * PAD,delta);
+    }
+
+    public void increment()
+    {
+        add(1);
+    }
+
+    public long get()
+    {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++)
+        {
+            sum += cells.get(i * PAD);
+        }
+        return sum;
+    }
+}
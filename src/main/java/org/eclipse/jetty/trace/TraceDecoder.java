@@ -0,0 +1,298 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.trace;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Renders a binary trace (see {@link TraceBinaryOutput}) to the same human readable layout as a text trace.
+ * <p>
+ * Gzip compressed binary traces (see {@link TraceFormat#gzip(int)}) are decompressed on the fly.
+ */
+public class TraceDecoder
+{
+    private DataInputStream in;
+    private byte[] payload = new byte[4096];
+    private char[] chars = new char[4096];
+    private int pos;
+    private int limit;
+
+    public TraceDecoder(InputStream input)
+    {
+        this.in = new DataInputStream(new BufferedInputStream(input,64 * 1024));
+    }
+
+    /**
+     * Decode the whole binary trace.
+     *
+     * @param output
+     *            the writer to write the trace lines to
+     * @throws IOException
+     *             if the trace cannot be read, or is not a binary trace
+     */
+    public void decode(Writer output) throws IOException
+    {
+        TraceTextOutput text = new TraceTextOutput(output);
+        replay(text);
+        text.flush();
+    }
+
+    /**
+     * Replay the whole binary trace into an output.
+     */
+    void replay(TraceOutput output) throws IOException
+    {
+        in.mark(2);
+        boolean gzip = (in.read() == 0x1F) && (in.read() == 0x8B);
+        in.reset();
+        if (gzip)
+        {
+            in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(in,8192),64 * 1024));
+        }
+
+        byte[] magic = new byte[TraceBinaryOutput.MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(magic,TraceBinaryOutput.MAGIC))
+        {
+            throw new IOException("Not a binary trace");
+        }
+
+        long timestamp = 0;
+        int type;
+        while ((type = in.read()) != (-1))
+        {
+            try
+            {
+                timestamp = unzigzag(readVarLong(in));
+                int length = (int)readVarLong(in);
+                if (payload.length < length)
+                {
+                    payload = new byte[Math.max(length,payload.length * 2)];
+                }
+                in.readFully(payload,0,length);
+                pos = 0;
+                limit = length;
+            }
+            catch (EOFException e)
+            {
+                output.line(timestamp,"Truncated trace");
+                break;
+            }
+
+            switch (type)
+            {
+                case TraceBinaryOutput.OPEN:
+                {
+                    String id = readString();
+                    long start = readLong();
+                    output.open(id,start,0);
+                    break;
+                }
+                case TraceBinaryOutput.LINE:
+                    output.line(timestamp,"%s",readRemaining());
+                    break;
+                case TraceBinaryOutput.BLOCK:
+                {
+                    String title = readString();
+                    output.block(timestamp,title,readRemaining());
+                    break;
+                }
+                case TraceBinaryOutput.BYTES:
+                {
+                    String mode = readString();
+                    output.content(timestamp,mode,payload,pos,limit - pos);
+                    break;
+                }
+                case TraceBinaryOutput.CHARS:
+                {
+                    String mode = readString();
+                    int length = readChars();
+                    output.content(timestamp,mode,chars,0,length);
+                    break;
+                }
+                case TraceBinaryOutput.CHARSET:
+                {
+                    String mode = readString();
+                    output.charset(timestamp,mode,readRemaining());
+                    break;
+                }
+                case TraceBinaryOutput.ELIDED:
+                {
+                    String mode = readString();
+                    boolean chars = payload[pos++] != 0;
+                    output.elided(timestamp,mode,chars,readVarLong());
+                    break;
+                }
+                case TraceBinaryOutput.CLOSED:
+                {
+                    String mode = readString();
+                    boolean chars = payload[pos++] != 0;
+                    long seen = readVarLong();
+                    output.closed(timestamp,mode,chars,seen,readVarLong());
+                    break;
+                }
+                default:
+                    // unknown record, skipped
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Decode the rest of the payload into {@link #chars}, each character being 1 to 3 bytes.
+     *
+     * @return the number of characters
+     */
+    private int readChars()
+    {
+        if (chars.length < (limit - pos))
+        {
+            chars = new char[limit - pos];
+        }
+        int length = 0;
+        while (pos < limit)
+        {
+            int b = payload[pos++] & 0xFF;
+            if (b < 0x80)
+            {
+                chars[length++] = (char)b;
+            }
+            else if (b < 0xE0)
+            {
+                chars[length++] = (char)(((b & 0x1F) << 6) | (payload[pos++] & 0x3F));
+            }
+            else
+            {
+                int b2 = payload[pos++] & 0x3F;
+                chars[length++] = (char)(((b & 0x0F) << 12) | (b2 << 6) | (payload[pos++] & 0x3F));
+            }
+        }
+        return length;
+    }
+
+    private String readString()
+    {
+        int length = (int)readVarLong();
+        String value = new String(payload,pos,length,StandardCharsets.UTF_8);
+        pos += length;
+        return value;
+    }
+
+    private String readRemaining()
+    {
+        String value = new String(payload,pos,limit - pos,StandardCharsets.UTF_8);
+        pos = limit;
+        return value;
+    }
+
+    private long readLong()
+    {
+        long value = 0;
+        for (int i = 0; i < 8; i++)
+        {
+            value = (value << 8) | (payload[pos++] & 0xFF);
+        }
+        return value;
+    }
+
+    private long readVarLong()
+    {
+        long value = 0;
+        for (int shift = 0;; shift += 7)
+        {
+            int b = payload[pos++];
+            value |= (long)(b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+            {
+                return value;
+            }
+        }
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException
+    {
+        long value = 0;
+        for (int shift = 0;; shift += 7)
+        {
+            int b = in.readUnsignedByte();
+            value |= (long)(b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+            {
+                return value;
+            }
+        }
+    }
+
+    private static long unzigzag(long value)
+    {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Decode a binary trace file.
+     *
+     * @param file
+     *            the binary trace file
+     * @param output
+     *            the writer to write the trace lines to
+     * @throws IOException
+     *             if the trace cannot be read
+     */
+    public static void decode(File file, Writer output) throws IOException
+    {
+        try (InputStream in = new FileInputStream(file))
+        {
+            new TraceDecoder(in).decode(output);
+        }
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        if ((args.length < 1) || (args.length > 2))
+        {
+            System.err.println("Usage: java " + TraceDecoder.class.getName() + " <trace-file> [<output-file>]");
+            System.exit(1);
+        }
+        if (args.length == 2)
+        {
+            try (Writer output = new OutputStreamWriter(new FileOutputStream(args[1])))
+            {
+                decode(new File(args[0]),output);
+            }
+        }
+        else
+        {
+            Writer output = new OutputStreamWriter(System.out);
+            decode(new File(args[0]),output);
+            output.flush();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.trace;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Encodes the characters of the response writer onto the traced response stream, so that the trace captures the
+ * encoded bytes as they are sent.
+ * <p>
+ * Each write is encoded and passed to the stream straight away, nothing is held back but the high surrogate of a pair
+ * split across writes. The buffering of the response, its commit and its reset are therefore the same as with the
+ * writer of the container.
+ */
+class TraceEncodingWriter extends Writer
+{
+    private final OutputStream out;
+    private final CharsetEncoder encoder;
+    private final CharBuffer chars = CharBuffer.allocate(1024);
+    private final ByteBuffer bytes;
+
+    public TraceEncodingWriter(OutputStream out, Charset charset)
+    {
+        this.out = out;
+        this.encoder = charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.bytes = ByteBuffer.allocate((int)Math.ceil(chars.capacity() * encoder.maxBytesPerChar()));
+    }
+
+    @Override
+    public void write(int c) throws IOException
+    {
+        chars.put((char)c);
+        encode(false);
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException
+    {
+        while (len > 0)
+        {
+            int part = Math.min(len,chars.remaining());
+            chars.put(cbuf,off,part);
+            off += part;
+            len -= part;
+            encode(false);
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException
+    {
+        while (len > 0)
+        {
+            int part = Math.min(len,chars.remaining());
+            chars.put(str,off,off + part);
+            off += part;
+            len -= part;
+            encode(false);
+        }
+    }
+
+    /**
+     * Encode the pending chars and write the bytes to the stream.
+     */
+    private void encode(boolean endOfInput) throws IOException
+    {
+        chars.flip();
+        CoderResult result;
+        do
+        {
+            result = encoder.encode(chars,bytes,endOfInput);
+            drain();
+        }
+        while (result.isOverflow());
+        // keeps a trailing high surrogate, until its pair is written
+        chars.compact();
+    }
+
+    private void drain() throws IOException
+    {
+        if (bytes.position() > 0)
+        {
+            out.write(bytes.array(),0,bytes.position());
+            bytes.clear();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        encode(true);
+        encoder.flush(bytes);
+        drain();
+        out.close();
+    }
+}
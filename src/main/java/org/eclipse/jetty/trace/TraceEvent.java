@@ -0,0 +1,67 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.trace;
+
+/**
+ * A single event captured on the request thread.
+ * <p>
+ * Events are cheap to create, all of the formatting and file I/O happens in {@link #render()}, which is called by the
+ * {@link TraceWriter} thread (or by the request thread, when there is no running writer). Events of a trace that may
+ * not be retained are held as they are until the trace is closed, and never rendered if it is not retained.
+ */
+abstract class TraceEvent
+{
+    protected final TraceFile trace;
+    /** The time of the event, as per {@link System#nanoTime()} */
+    protected final long timestamp;
+    /** Whether the event must not be dropped when the writer queue is full, kept while the event is deferred */
+    boolean mustDeliver;
+
+    protected TraceEvent(TraceFile trace)
+    {
+        this(trace,System.nanoTime());
+    }
+
+    protected TraceEvent(TraceFile trace, long timestamp)
+    {
+        this.trace = trace;
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * @return the approximate memory held by this event, in bytes
+     */
+    protected int getSize()
+    {
+        return 64;
+    }
+
+    /**
+     * Format this event to the trace output.
+     */
+    protected abstract void render();
+
+    /**
+     * Return any pooled buffers held by this event. Called once, after the event is rendered or when it is dropped
+     * without being rendered, by whichever thread did so.
+     */
+    protected void release()
+    {
+    }
+}
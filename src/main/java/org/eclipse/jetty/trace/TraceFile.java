@@ -20,14 +20,26 @@ package org.eclipse.jetty.trace;
 
 import java.io.Closeable;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
-import java.util.Calendar;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -38,419 +50,1997 @@ import javax.servlet.http.HttpServletResponse;
 
 /**
  * File representing the event details encountered at the filter level.
+ * <p>
+ * The capture side of a trace has a single writer: the <code>log*()</code> methods are only called by the thread
+ * currently handling the request, and are not synchronized. When the request goes async, the filter thread calls
+ * {@link #handOff()} when it is done with the request, and the thread of the async completion calls
+ * {@link #takeOver()} before it closes the trace, so that the capture state is safely published between the two.
+ * Threads started with {@link javax.servlet.AsyncContext#start(Runnable)} are published by the executor of the
+ * container. Events are handed to the {@link TraceWriter} thread through its queue.
+ * <p>
+ * An async timeout or error closes the trace, so that its file and buffers are released without waiting for the
+ * application to complete the request, and anything a worker of the application captures after that is ignored. The
+ * close stops the capture by any other thread before it tears the capture state down, or abandons the capture state if
+ * a capture call does not return in time.
  */
 public class TraceFile implements Closeable, AsyncListener
 {
-    private class ByteContentLogFormatter
+    /**
+     * The points in the lifecycle of a request that are timed, each at its first occurrence.
+     */
+    public enum Milestone
+    {
+        FILTER_ENTRY("filter entry"),
+        FIRST_READ("first request read"),
+        REQUEST_EOF("request EOF"),
+        FIRST_WRITE("first response write"),
+        COMMIT("response commit"),
+        FIRST_FLUSH("first flush"),
+        CHAIN_RETURN("chain return"),
+        ASYNC_TIMEOUT("async timeout"),
+        ASYNC_ERROR("async error"),
+        ASYNC_COMPLETE("async complete");
+
+        private final String label;
+
+        private Milestone(String label)
+        {
+            this.label = label;
+        }
+
+        @Override
+        public String toString()
+        {
+            return label;
+        }
+    }
+
+    /**
+     * Content captured on the request thread, but not yet handed off for rendering.
+     */
+    private interface PendingContent
+    {
+        void flushChunk();
+    }
+
+    private class ByteContentLogFormatter implements PendingContent
     {
-        private final static int MAX_BUF = 16;
-        private final static int HEX_DISP_WIDTH = (MAX_BUF + (MAX_BUF * 2) + 1);
         private final String mode;
-        private final ByteBuffer buf;
+        // capture side, request thread, taken from the pool when content is captured
+        private byte[] chunk;
+        private int chunkLength = 0;
+        private long chunkTimestamp;
         private long length = 0;
+        private long headRemaining = contentHead;
+        private byte[] tail;
+        private int tailPos = 0;
+        private int tailSize = 0;
         private boolean closed = false;
 
         public ByteContentLogFormatter(String mode)
         {
             this.mode = mode;
-            this.buf = ByteBuffer.allocate(MAX_BUF);
             log("[" + mode + "] Byte Content");
         }
 
         public void close()
         {
-            if (closed)
+            if (closed)
+            {
+                return;
+            }
+            else
+            {
+                final long seen = length;
+                final byte[] kept = getTail();
+                final long elided = (tail == null)?0:(seen - contentHead - kept.length);
+                submit(new TraceEvent(TraceFile.this)
+                {
+                    @Override
+                    protected void render()
+                    {
+                        if (elided > 0)
+                        {
+                            output.elided(timestamp,mode,false,elided);
+                        }
+                        if (kept.length > 0)
+                        {
+                            output.content(timestamp,mode,kept,0,kept.length);
+                        }
+                        output.closed(timestamp,mode,false,seen,elided);
+                    }
+                },true);
+            }
+            closed = true;
+        }
+
+        public void dump(byte b)
+        {
+            length += 1;
+            if (headRemaining == 0)
+            {
+                keepTail(b);
+                return;
+            }
+            if (headRemaining > 0)
+            {
+                headRemaining--;
+            }
+            byte[] buffer = reserve();
+            buffer[chunkLength++] = b;
+        }
+
+        public void dump(byte[] b, int off, int len)
+        {
+            length += len;
+            if (headRemaining >= 0)
+            {
+                int head = (int)Math.min(len,headRemaining);
+                headRemaining -= head;
+                keepTail(b,off + head,len - head);
+                len = head;
+            }
+            while (len > 0)
+            {
+                byte[] buffer = reserve();
+                int part = Math.min(len,buffer.length - chunkLength);
+                System.arraycopy(b,off,buffer,chunkLength,part);
+                chunkLength += part;
+                off += part;
+                len -= part;
+            }
+        }
+
+        private void keepTail(byte b)
+        {
+            if (tail == null)
+            {
+                tail = new byte[contentTail];
+            }
+            if (tail.length > 0)
+            {
+                tail[tailPos] = b;
+                tailPos = (tailPos + 1) % tail.length;
+                tailSize = Math.min(tail.length,tailSize + 1);
+            }
+        }
+
+        private void keepTail(byte[] b, int off, int len)
+        {
+            if (len <= 0)
+            {
+                return;
+            }
+            if (tail == null)
+            {
+                tail = new byte[contentTail];
+            }
+            int capacity = tail.length;
+            if (len >= capacity)
+            {
+                System.arraycopy(b,off + len - capacity,tail,0,capacity);
+                tailPos = 0;
+                tailSize = capacity;
+                return;
+            }
+            int first = Math.min(len,capacity - tailPos);
+            System.arraycopy(b,off,tail,tailPos,first);
+            System.arraycopy(b,off + first,tail,0,len - first);
+            tailPos = (tailPos + len) % capacity;
+            tailSize = Math.min(capacity,tailSize + len);
+        }
+
+        /**
+         * @return a copy of the retained tail, in order
+         */
+        private byte[] getTail()
+        {
+            byte[] kept = new byte[tailSize];
+            if (tailSize > 0)
+            {
+                int start = (tailPos - tailSize + tail.length) % tail.length;
+                int first = Math.min(tailSize,tail.length - start);
+                System.arraycopy(tail,start,kept,0,first);
+                System.arraycopy(tail,0,kept,first,tailSize - first);
+            }
+            return kept;
+        }
+
+        /**
+         * @return the chunk to capture into, with room for at least one more byte. Returned rather than read again from
+         *         the field by the caller, which may be cleared by a concurrent close of the trace.
+         */
+        private byte[] reserve()
+        {
+            if (pendingContent != this)
+            {
+                flushPendingContent();
+                pendingContent = this;
+            }
+            byte[] buffer = chunk;
+            if ((buffer != null) && (chunkLength == buffer.length))
+            {
+                flushChunk();
+                buffer = null;
+            }
+            if (buffer == null)
+            {
+                buffer = acquireBytes();
+                chunk = buffer;
+                chunkTimestamp = System.nanoTime();
+            }
+            return buffer;
+        }
+
+        @Override
+        public void flushChunk()
+        {
+            if (chunkLength == 0)
+            {
+                return;
+            }
+            final byte[] content = chunk;
+            final int contentLength = chunkLength;
+            chunk = null;
+            chunkLength = 0;
+            dispatch(new TraceEvent(TraceFile.this,chunkTimestamp)
+            {
+                @Override
+                protected int getSize()
+                {
+                    return content.length;
+                }
+
+                @Override
+                protected void render()
+                {
+                    output.content(timestamp,mode,content,0,contentLength);
+                }
+
+                @Override
+                protected void release()
+                {
+                    releaseBuffer(content);
+                }
+            },false);
+        }
+    }
+
+    private class CharContentLogFormatter implements PendingContent
+    {
+        private final String mode;
+        // capture side, request thread, taken from the pool when content is captured
+        private char[] chunk;
+        private int chunkLength = 0;
+        private long chunkTimestamp;
+        private long length = 0;
+        private long headRemaining = contentHead;
+        private char[] tail;
+        private int tailPos = 0;
+        private int tailSize = 0;
+        private boolean closed = false;
+
+        public CharContentLogFormatter(String mode)
+        {
+            this.mode = mode;
+            log("[" + mode + "] Character Based");
+        }
+
+        public void close()
+        {
+            if (closed)
+            {
+                return;
+            }
+            else
+            {
+                final long seen = length;
+                final char[] kept = getTail();
+                final long elided = (tail == null)?0:(seen - contentHead - kept.length);
+                submit(new TraceEvent(TraceFile.this)
+                {
+                    @Override
+                    protected void render()
+                    {
+                        if (elided > 0)
+                        {
+                            output.elided(timestamp,mode,true,elided);
+                        }
+                        if (kept.length > 0)
+                        {
+                            output.content(timestamp,mode,kept,0,kept.length);
+                        }
+                        output.closed(timestamp,mode,true,seen,elided);
+                    }
+                },true);
+            }
+            closed = true;
+        }
+
+        public void dump(char c)
+        {
+            length += 1;
+            if (headRemaining == 0)
+            {
+                keepTail(c);
+                return;
+            }
+            if (headRemaining > 0)
+            {
+                headRemaining--;
+            }
+            char[] buffer = reserve();
+            buffer[chunkLength++] = c;
+        }
+
+        public void dump(char[] c, int off, int len)
+        {
+            length += len;
+            if (headRemaining >= 0)
+            {
+                int head = (int)Math.min(len,headRemaining);
+                headRemaining -= head;
+                keepTail(c,off + head,len - head);
+                len = head;
+            }
+            while (len > 0)
+            {
+                char[] buffer = reserve();
+                int part = Math.min(len,buffer.length - chunkLength);
+                System.arraycopy(c,off,buffer,chunkLength,part);
+                chunkLength += part;
+                off += part;
+                len -= part;
+            }
+        }
+
+        public void dump(String s, int off, int len)
+        {
+            length += len;
+            if (headRemaining >= 0)
+            {
+                int head = (int)Math.min(len,headRemaining);
+                headRemaining -= head;
+                keepTail(s,off + head,len - head);
+                len = head;
+            }
+            while (len > 0)
+            {
+                char[] buffer = reserve();
+                int part = Math.min(len,buffer.length - chunkLength);
+                s.getChars(off,off + part,buffer,chunkLength);
+                chunkLength += part;
+                off += part;
+                len -= part;
+            }
+        }
+
+        private void keepTail(char c)
+        {
+            if (tail == null)
+            {
+                tail = new char[contentTail];
+            }
+            if (tail.length > 0)
+            {
+                tail[tailPos] = c;
+                tailPos = (tailPos + 1) % tail.length;
+                tailSize = Math.min(tail.length,tailSize + 1);
+            }
+        }
+
+        private void keepTail(char[] c, int off, int len)
+        {
+            if (len <= 0)
+            {
+                return;
+            }
+            if (tail == null)
+            {
+                tail = new char[contentTail];
+            }
+            int capacity = tail.length;
+            if (len >= capacity)
+            {
+                System.arraycopy(c,off + len - capacity,tail,0,capacity);
+                tailPos = 0;
+                tailSize = capacity;
+                return;
+            }
+            int first = Math.min(len,capacity - tailPos);
+            System.arraycopy(c,off,tail,tailPos,first);
+            System.arraycopy(c,off + first,tail,0,len - first);
+            tailPos = (tailPos + len) % capacity;
+            tailSize = Math.min(capacity,tailSize + len);
+        }
+
+        private void keepTail(String s, int off, int len)
+        {
+            if (len <= 0)
+            {
+                return;
+            }
+            if (tail == null)
+            {
+                tail = new char[contentTail];
+            }
+            int capacity = tail.length;
+            if (len >= capacity)
+            {
+                s.getChars(off + len - capacity,off + len,tail,0);
+                tailPos = 0;
+                tailSize = capacity;
+                return;
+            }
+            int first = Math.min(len,capacity - tailPos);
+            s.getChars(off,off + first,tail,tailPos);
+            s.getChars(off + first,off + len,tail,0);
+            tailPos = (tailPos + len) % capacity;
+            tailSize = Math.min(capacity,tailSize + len);
+        }
+
+        /**
+         * @return a copy of the retained tail, in order
+         */
+        private char[] getTail()
+        {
+            char[] kept = new char[tailSize];
+            if (tailSize > 0)
+            {
+                int start = (tailPos - tailSize + tail.length) % tail.length;
+                int first = Math.min(tailSize,tail.length - start);
+                System.arraycopy(tail,start,kept,0,first);
+                System.arraycopy(tail,0,kept,first,tailSize - first);
+            }
+            return kept;
+        }
+
+        /**
+         * @return the chunk to capture into, with room for at least one more char. Returned rather than read again from
+         *         the field by the caller, which may be cleared by a concurrent close of the trace.
+         */
+        private char[] reserve()
+        {
+            if (pendingContent != this)
+            {
+                flushPendingContent();
+                pendingContent = this;
+            }
+            char[] buffer = chunk;
+            if ((buffer != null) && (chunkLength == buffer.length))
+            {
+                flushChunk();
+                buffer = null;
+            }
+            if (buffer == null)
+            {
+                buffer = acquireChars();
+                chunk = buffer;
+                chunkTimestamp = System.nanoTime();
+            }
+            return buffer;
+        }
+
+        @Override
+        public void flushChunk()
+        {
+            if (chunkLength == 0)
+            {
+                return;
+            }
+            final char[] content = chunk;
+            final int contentLength = chunkLength;
+            chunk = null;
+            chunkLength = 0;
+            dispatch(new TraceEvent(TraceFile.this,chunkTimestamp)
+            {
+                @Override
+                protected int getSize()
+                {
+                    return content.length * 2;
+                }
+
+                @Override
+                protected void render()
+                {
+                    output.content(timestamp,mode,content,0,contentLength);
+                }
+
+                @Override
+                protected void release()
+                {
+                    releaseBuffer(content);
+                }
+            },false);
+        }
+    }
+
+    private static final Logger LOG = Logger.getLogger(TraceFile.class.getName());
+    private static final String LINESEP = System.lineSeparator();
+    private static final long UNSET = Long.MIN_VALUE;
+    // how long a close waits for the capture calls of other threads to return
+    private static final long CAPTURE_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final File outputFile;
+    private final String id;
+    private final TraceOutput output;
+    private final TraceWriter writer;
+    private final long start;
+    private final long startNanos;
+    private final AtomicInteger droppedEvents = new AtomicInteger();
+    // the nanoTime of each milestone, UNSET until reached (any long is a valid nanoTime)
+    private final AtomicLongArray milestones = newMilestones();
+    private final TraceRetention retention;
+    private final TraceBufferPool pool;
+    private TraceQuota quota;
+    private TraceMetrics metrics;
+    private volatile boolean failed;
+    // the thread capturing the request, written on hand off and take over to publish the capture state below
+    private volatile Thread owner;
+    // set by the first close, by the request thread or by the async completion
+    private final AtomicBoolean closed = new AtomicBoolean();
+    // the thread closing the trace, the only one still capturing once completed is set
+    private volatile Thread closer;
+    // set before the trace is torn down, anything captured by another thread after that is ignored
+    private volatile boolean completed;
+    // set by the request thread when the request goes async, before any other thread can capture
+    private volatile boolean async;
+    // the number of calls capturing once async, by the request thread or by a thread of the application
+    private final AtomicInteger capturing = new AtomicInteger();
+    // set by a close that gave up waiting for a capture call, the capture state is then left to that call
+    private volatile boolean abandoned;
+    // set when the output is closed, only accessed with the output lock held
+    private boolean outputClosed;
+    // events held until it is known whether the trace is retained
+    private List<TraceEvent> deferred;
+    private long deferredSize;
+    private long contentHead = -1;
+    private int contentTail = 0;
+    private int partPreview = -1;
+    private TraceMultiPartParser multipart;
+    private HttpServletResponse response;
+    private CharContentLogFormatter requestContentCharFormatter;
+    private ByteContentLogFormatter requestContentByteFormatter;
+    private CharContentLogFormatter responseContentCharFormatter;
+    private ByteContentLogFormatter responseContentByteFormatter;
+    private PendingContent pendingContent;
+    // only accessed by the writer thread
+    private boolean dirty;
+    private long writeNanos;
+
+    public TraceFile(File outputFile) throws IOException
+    {
+        this(outputFile,null);
+    }
+
+    /**
+     * @param outputFile
+     *            the file to write the trace to
+     * @param writer
+     *            the writer to hand events off to, or null to write events on the calling thread
+     * @throws IOException
+     *             if the output file cannot be created
+     */
+    public TraceFile(File outputFile, TraceWriter writer) throws IOException
+    {
+        this(outputFile,writer,false);
+    }
+
+    /**
+     * @param outputFile
+     *            the file to write the trace to
+     * @param writer
+     *            the writer to hand events off to, or null to write events on the calling thread
+     * @param binary
+     *            true to write the compact binary format, which can be rendered later with {@link TraceDecoder}
+     * @throws IOException
+     *             if the output file cannot be created
+     */
+    public TraceFile(File outputFile, TraceWriter writer, boolean binary) throws IOException
+    {
+        this(outputFile,writer,binary?TraceFormat.BINARY:TraceFormat.TEXT,(TraceBufferPool)null);
+    }
+
+    /**
+     * @param outputFile
+     *            the file to write the trace to
+     * @param writer
+     *            the writer to hand events off to, or null to write events on the calling thread
+     * @param format
+     *            the format of the trace file
+     * @param pool
+     *            the pool to take the content and output buffers from, and return them to once written, or null
+     * @throws IOException
+     *             if the output file cannot be created
+     */
+    public TraceFile(File outputFile, TraceWriter writer, TraceFormat format, TraceBufferPool pool) throws IOException
+    {
+        this(outputFile,outputFile.getName(),format.newOutput(outputFile,pool),writer,null,pool);
+    }
+
+    /**
+     * @param outputFile
+     *            the file to write the trace to, only created if the trace is retained
+     * @param writer
+     *            the writer to hand events off to, or null to write events on the calling thread
+     * @param binary
+     *            true to write the compact binary format, which can be rendered later with {@link TraceDecoder}
+     * @param retention
+     *            the decision of whether to keep the trace, made when it is closed
+     */
+    public TraceFile(File outputFile, TraceWriter writer, boolean binary, TraceRetention retention)
+    {
+        this(outputFile,writer,binary?TraceFormat.BINARY:TraceFormat.TEXT,retention,null);
+    }
+
+    /**
+     * @param outputFile
+     *            the file to write the trace to, only created if the trace is retained
+     * @param writer
+     *            the writer to hand events off to, or null to write events on the calling thread
+     * @param format
+     *            the format of the trace file
+     * @param retention
+     *            the decision of whether to keep the trace, made when it is closed
+     * @param pool
+     *            the pool to take the content and output buffers from, and return them to once written, or null
+     */
+    public TraceFile(final File outputFile, TraceWriter writer, final TraceFormat format, TraceRetention retention, final TraceBufferPool pool)
+    {
+        this(outputFile,outputFile.getName(),new TraceBufferedOutput(new TraceOutput.Factory()
+        {
+            @Override
+            public TraceOutput newOutput() throws IOException
+            {
+                return format.newOutput(outputFile,pool);
+            }
+        },retention.getBufferSize(),outputFile.getParentFile()),writer,retention,pool);
+    }
+
+    /**
+     * @param id
+     *            the id of the trace, as reported by {@link #getId()}
+     * @param output
+     *            the output to write the trace to
+     * @param writer
+     *            the writer to hand events off to, or null to write events on the calling thread
+     */
+    public TraceFile(String id, Writer output, TraceWriter writer)
+    {
+        this(id,output,writer,null);
+    }
+
+    /**
+     * @param id
+     *            the id of the trace, as reported by {@link #getId()}
+     * @param output
+     *            the output to write the trace to
+     * @param writer
+     *            the writer to hand events off to, or null to write events on the calling thread
+     * @param pool
+     *            the pool to take the content buffers from, and return them to once written, or null
+     */
+    public TraceFile(String id, Writer output, TraceWriter writer, TraceBufferPool pool)
+    {
+        this(null,id,new TraceTextOutput(output),writer,null,pool);
+    }
+
+    private TraceFile(File outputFile, String id, TraceOutput output, TraceWriter writer, TraceRetention retention, TraceBufferPool pool)
+    {
+        this.outputFile = outputFile;
+        this.id = id;
+        this.output = output;
+        this.writer = writer;
+        this.retention = retention;
+        this.pool = pool;
+        if (retention != null)
+        {
+            this.deferred = new ArrayList<>();
+        }
+        LOG.log(Level.FINE,"Created Trace: " + id);
+        this.start = System.currentTimeMillis();
+        this.startNanos = System.nanoTime();
+        milestones.set(Milestone.FILTER_ENTRY.ordinal(),startNanos);
+        output.open(id,start,startNanos);
+    }
+
+    /**
+     * Complete the trace. Only the first call closes the trace, later calls (such as the {@link #onComplete(AsyncEvent)}
+     * that follows an async timeout) do nothing, and any content captured after it is ignored.
+     */
+    @Override
+    public void close()
+    {
+        if (!closed.compareAndSet(false,true))
+        {
+            return;
+        }
+        // stop the capture by any other thread still writing, such as a worker running past an async timeout, before
+        // the capture state is torn down
+        closer = Thread.currentThread();
+        completed = true;
+        if (!awaitCapture())
+        {
+            // a capture call already started by another thread is stuck (such as on a full writer queue), its content
+            // is lost rather than the capture state torn down under it
+            abandoned = true;
+            LOG.log(Level.FINE,"Abandoned capture state: " + id);
+        }
+        else
+        {
+            logRequestContentClose();
+            logResponseContentClose();
+        }
+        if (response != null)
+        {
+            logResponseHeaders();
+        }
+        int dropped = droppedEvents.get();
+        if (dropped > 0)
+        {
+            log("Dropped %,d trace events (trace writer queue full)",dropped);
+        }
+        final boolean retained = (retention == null) || retention.isRetained(response,System.nanoTime() - startNanos,failed);
+        if (metrics != null)
+        {
+            long requestBytes = abandoned?0:getLength(requestContentByteFormatter,requestContentCharFormatter);
+            long responseBytes = abandoned?0:getLength(responseContentByteFormatter,responseContentCharFormatter);
+            metrics.onClosed(requestBytes,responseBytes,System.nanoTime() - startNanos);
+        }
+        final long[] timing = new long[milestones.length()];
+        for (int i = 0; i < timing.length; i++)
+        {
+            timing[i] = milestones.get(i);
+        }
+        flushPendingContent();
+        List<TraceEvent> events;
+        synchronized (this)
+        {
+            events = deferred;
+            deferred = null;
+        }
+        if (events != null)
+        {
+            for (TraceEvent event : events)
+            {
+                if (retained)
+                {
+                    deliver(event,true);
+                }
+                else
+                {
+                    // dropped, without ever being rendered
+                    event.release();
+                }
+            }
+        }
+        submit(new TraceEvent(this)
+        {
+            @Override
+            protected void render()
+            {
+                long begin = System.nanoTime();
+                try
+                {
+                    if (output instanceof TraceBufferedOutput)
+                    {
+                        ((TraceBufferedOutput)output).setRetained(retained);
+                    }
+                    if (retained)
+                    {
+                        output.block(timestamp,"Timing:",formatTiming(timing));
+                        output.line(timestamp,"Trace completed in %,.3fms",(timestamp - startNanos) / 1_000_000.0);
+                    }
+                    output.close();
+                    if (retained && (quota != null) && (outputFile != null))
+                    {
+                        quota.added(outputFile);
+                    }
+                }
+                finally
+                {
+                    // the trace is done with, even if its output failed
+                    outputClosed = true;
+                    if (metrics != null)
+                    {
+                        metrics.onWritten(writeNanos + (System.nanoTime() - begin));
+                    }
+                }
+            }
+        },true);
+        // nothing more is captured, by any thread
+        closer = null;
+    }
+
+    /**
+     * Wait for the capture calls already started by other threads to return, backing off up to
+     * {@link #CAPTURE_WAIT_NANOS}.
+     *
+     * @return true if no other thread is capturing, false if the wait timed out
+     */
+    private boolean awaitCapture()
+    {
+        long deadline = System.nanoTime() + CAPTURE_WAIT_NANOS;
+        long backoff = 1_000;
+        while (capturing.get() > 0)
+        {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0)
+            {
+                return false;
+            }
+            LockSupport.parkNanos(Math.min(backoff,remaining));
+            backoff = Math.min(backoff * 2,TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        return true;
+    }
+
+    /**
+     * @return the milestones reached, in the order reached, each with the time since the filter entry and since the
+     *         previous milestone
+     */
+    private String formatTiming(final long[] timing)
+    {
+        Milestone[] ordered = Milestone.values().clone();
+        Arrays.sort(ordered,new Comparator<Milestone>()
+        {
+            @Override
+            public int compare(Milestone a, Milestone b)
+            {
+                return Long.compare(timing(a),timing(b));
+            }
+
+            private long timing(Milestone milestone)
+            {
+                long nanos = timing[milestone.ordinal()];
+                return (nanos == UNSET)?Long.MAX_VALUE:(nanos - startNanos);
+            }
+        });
+        StringBuilder block = new StringBuilder();
+        long previous = startNanos;
+        for (Milestone milestone : ordered)
+        {
+            long nanos = timing[milestone.ordinal()];
+            if (nanos != UNSET)
+            {
+                block.append(String.format("  %-22s +%,.6fms (+%,.6fms)",milestone,(nanos - startNanos) / 1_000_000.0,(nanos - previous) / 1_000_000.0));
+                block.append(LINESEP);
+                previous = nanos;
+            }
+        }
+        return block.toString();
+    }
+
+    private static AtomicLongArray newMilestones()
+    {
+        long[] unset = new long[Milestone.values().length];
+        Arrays.fill(unset,UNSET);
+        return new AtomicLongArray(unset);
+    }
+
+    /**
+     * Record the time of a milestone, unless it was already reached.
+     *
+     * @param milestone
+     *            the milestone reached now
+     */
+    public void mark(Milestone milestone)
+    {
+        int index = milestone.ordinal();
+        if (milestones.get(index) == UNSET)
+        {
+            milestones.compareAndSet(index,UNSET,System.nanoTime());
+        }
+    }
+
+    /**
+     * Record the {@link Milestone#COMMIT} milestone, if the response has been committed since the last check.
+     *
+     * @return true once the milestone is recorded, when the callers writing content need not check again
+     */
+    public boolean markCommitted()
+    {
+        if (milestones.get(Milestone.COMMIT.ordinal()) != UNSET)
+        {
+            return true;
+        }
+        if ((response != null) && response.isCommitted())
+        {
+            mark(Milestone.COMMIT);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Limit the amount of request and response content kept in the trace.
+     * <p>
+     * Only the first <code>head</code> and the last <code>tail</code> bytes (or characters) of each body are written
+     * to the trace, the middle is only counted. The tail is held in a fixed size ring buffer until the body is closed.
+     * Must be called before any content is logged.
+     *
+     * @param head
+     *            the number of leading bytes/characters to keep, or -1 to keep all content
+     * @param tail
+     *            the number of trailing bytes/characters to keep, once the head limit is exceeded
+     */
+    public void setContentLimits(long head, int tail)
+    {
+        if (tail < 0)
+        {
+            throw new IllegalArgumentException("Invalid tail limit: " + tail);
+        }
+        this.contentHead = (head < 0)?-1:head;
+        this.contentTail = tail;
+    }
+
+    /**
+     * Trace a multipart request body as a list of parts, parsed as the application reads the body.
+     * <p>
+     * Each part is logged with its headers, its size and up to <code>preview</code> leading bytes of its content, the
+     * rest of the content of a part is only counted. Must be called before the request headers are logged.
+     *
+     * @param preview
+     *            the number of leading content bytes of each part to keep, or -1 to not parse multipart bodies
+     */
+    public void setPartPreview(int preview)
+    {
+        this.partPreview = (preview < 0)?-1:preview;
+    }
+
+    /**
+     * Report the trace file to a quota once the trace is complete. Must be called before the trace is closed.
+     *
+     * @param quota
+     *            the quota of the trace directory
+     */
+    public void setQuota(TraceQuota quota)
+    {
+        this.quota = quota;
+    }
+
+    /**
+     * Report the activity of this trace. Must be called before anything is logged.
+     *
+     * @param metrics
+     *            the metrics of the filter
+     */
+    public void setMetrics(TraceMetrics metrics)
+    {
+        this.metrics = metrics;
+        metrics.onOpened();
+    }
+
+    private static long getLength(ByteContentLogFormatter bytes, CharContentLogFormatter chars)
+    {
+        return ((bytes == null)?0:bytes.length) + ((chars == null)?0:chars.length);
+    }
+
+    public String getId()
+    {
+        return id;
+    }
+
+    /**
+     * @return the file of this trace, or null if the trace is not written to its own file
+     */
+    public File getOutputFile()
+    {
+        return outputFile;
+    }
+
+    /**
+     * Publish the capture state of this trace, before another thread continues with the request.
+     */
+    void handOff()
+    {
+        owner = null;
+    }
+
+    /**
+     * Continue with the request on the current thread, after a {@link #handOff()} by the previous thread.
+     */
+    void takeOver()
+    {
+        Thread previous = owner;
+        owner = Thread.currentThread();
+        if ((previous != null) && (previous != owner) && LOG.isLoggable(Level.FINE))
+        {
+            LOG.fine("Trace " + id + " taken over from " + previous.getName() + " without a hand off");
+        }
+    }
+
+    private ByteContentLogFormatter getRequestContentByteFormatter()
+    {
+        if (requestContentByteFormatter == null)
+        {
+            requestContentByteFormatter = new ByteContentLogFormatter("Request");
+        }
+        return requestContentByteFormatter;
+    }
+
+    private CharContentLogFormatter getRequestContentCharFormatter()
+    {
+        if (requestContentCharFormatter == null)
+        {
+            requestContentCharFormatter = new CharContentLogFormatter("Request");
+        }
+        return requestContentCharFormatter;
+    }
+
+    private ByteContentLogFormatter getResponseContentByteFormatter()
+    {
+        if (responseContentByteFormatter == null)
+        {
+            responseContentByteFormatter = new ByteContentLogFormatter("Response");
+        }
+        return responseContentByteFormatter;
+    }
+
+    private CharContentLogFormatter getResponseContentCharFormatter()
+    {
+        if (responseContentCharFormatter == null)
+        {
+            responseContentCharFormatter = new CharContentLogFormatter("Response");
+        }
+        return responseContentCharFormatter;
+    }
+
+    /**
+     * Hand off an event, after any content captured before it.
+     */
+    private void submit(TraceEvent event, boolean mustDeliver)
+    {
+        if (!beginCapture())
+        {
+            event.release();
+            return;
+        }
+        try
+        {
+            flushPendingContent();
+            dispatch(event,mustDeliver);
+        }
+        finally
+        {
+            endCapture();
+        }
+    }
+
+    private void dispatch(TraceEvent event, boolean mustDeliver)
+    {
+        if (isClosed())
+        {
+            // captured by the application after the trace was closed, such as by a worker after an async timeout
+            event.release();
+            return;
+        }
+        if (retention != null)
+        {
+            // the deferred events are handed over by the close, which may be on another thread
+            synchronized (this)
+            {
+                if (deferred != null)
+                {
+                    defer(event,mustDeliver);
+                    return;
+                }
+            }
+        }
+        deliver(event,mustDeliver);
+    }
+
+    /**
+     * Enter a call that captures, which a close by another thread waits for before it tears the capture state down.
+     *
+     * @return false if the trace is closed, when nothing is to be captured and {@link #endCapture()} is not called
+     */
+    private boolean beginCapture()
+    {
+        if (!async)
+        {
+            // only the request thread captures, and closes
+            return !isClosed();
+        }
+        // counted before completed is checked, so either the close sees this call, or this call sees the close
+        capturing.incrementAndGet();
+        if (isClosed())
+        {
+            capturing.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    private void endCapture()
+    {
+        if (async)
+        {
+            capturing.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return true if the trace is closed, or being closed by another thread, so that nothing more can be captured by
+     *         the current thread
+     */
+    private boolean isClosed()
+    {
+        return completed && (closer != Thread.currentThread());
+    }
+
+    /**
+     * Hold an event until the trace is closed, or until the memory held by the trace exceeds the buffer size of the
+     * retention, when the events so far are handed off to be encoded to the spill buffer.
+     */
+    private void defer(TraceEvent event, boolean mustDeliver)
+    {
+        event.mustDeliver = mustDeliver;
+        deferred.add(event);
+        deferredSize += event.getSize();
+        if (deferredSize > retention.getBufferSize())
+        {
+            List<TraceEvent> events = deferred;
+            deferred = new ArrayList<>();
+            deferredSize = 0;
+            for (TraceEvent spilled : events)
+            {
+                deliver(spilled,spilled.mustDeliver);
+            }
+        }
+    }
+
+    private void deliver(TraceEvent event, boolean mustDeliver)
+    {
+        if (writer == null)
+        {
+            render(event);
+        }
+        else if (!writer.offer(event,mustDeliver))
+        {
+            droppedEvents.incrementAndGet();
+            event.release();
+        }
+    }
+
+    private void flushPendingContent()
+    {
+        if (abandoned)
+        {
+            // left to the capture call the close gave up on
+            return;
+        }
+        if (pendingContent != null)
+        {
+            pendingContent.flushChunk();
+            pendingContent = null;
+        }
+    }
+
+    private byte[] acquireBytes()
+    {
+        return (pool == null)?new byte[TraceBufferPool.BYTES]:pool.acquireBytes();
+    }
+
+    private char[] acquireChars()
+    {
+        return (pool == null)?new char[TraceBufferPool.CHARS]:pool.acquireChars();
+    }
+
+    private void releaseBuffer(byte[] buffer)
+    {
+        if (pool != null)
+        {
+            pool.release(buffer);
+        }
+    }
+
+    private void releaseBuffer(char[] buffer)
+    {
+        if (pool != null)
+        {
+            pool.release(buffer);
+        }
+    }
+
+    void render(TraceEvent event)
+    {
+        try
+        {
+            synchronized (output)
+            {
+                if (outputClosed)
+                {
+                    // dispatched by another thread as the trace was closed
+                    return;
+                }
+                if (metrics == null)
+                {
+                    event.render();
+                }
+                else
+                {
+                    long begin = System.nanoTime();
+                    event.render();
+                    writeNanos += System.nanoTime() - begin;
+                }
+            }
+        }
+        finally
+        {
+            event.release();
+        }
+    }
+
+    /**
+     * @return true if the trace output was not already marked as needing a flush
+     */
+    boolean markDirty()
+    {
+        if (dirty)
+        {
+            return false;
+        }
+        dirty = true;
+        return true;
+    }
+
+    void flushOutput()
+    {
+        dirty = false;
+        synchronized (output)
+        {
+            if (metrics == null)
+            {
+                output.flush();
+            }
+            else
+            {
+                long begin = System.nanoTime();
+                output.flush();
+                writeNanos += System.nanoTime() - begin;
+            }
+        }
+    }
+
+    /**
+     * Log a line, formatted when the trace is rendered, which may be later and on the writer thread.
+     *
+     * @param format
+     *            the format of the line
+     * @param args
+     *            the arguments of the format, which must be immutable values (such as numbers and strings), and not
+     *            objects of the container or of the application that may change, or not be usable, by then
+     */
+    public void log(final String format, final Object... args)
+    {
+        submit(new TraceEvent(this)
+        {
+            @Override
+            protected void render()
+            {
+                output.line(timestamp,format,args);
+            }
+        },false);
+    }
+
+    public void log(final Throwable t)
+    {
+        failed = true;
+        submit(new TraceEvent(this)
+        {
+            @Override
+            protected void render()
             {
-                return;
+                StringWriter trace = new StringWriter();
+                t.printStackTrace(new PrintWriter(trace));
+                output.block(timestamp,String.valueOf(t.getMessage()),trace.toString());
             }
-            else
+        },false);
+    }
+
+    public void logRequestContentByte(byte b)
+    {
+        if (!beginCapture())
+        {
+            return;
+        }
+        try
+        {
+            mark(Milestone.FIRST_READ);
+            getRequestContentByteFormatter().dump(b);
+            if (multipart != null)
             {
-                processBuf(true);
-                log(String.format("[%s] Closed :: Seen %,d bytes",mode,length));
+                multipart.parse(b);
             }
-            closed = true;
         }
-
-        public void dump(byte b)
+        finally
         {
-            length += 1;
-            processBuf(false);
-            buf.put(b);
+            endCapture();
         }
+    }
 
-        private synchronized void processBuf(boolean partialOk)
+    public void logRequestContentBytes(byte[] b, int off, int len)
+    {
+        if (!beginCapture())
         {
-            if (partialOk || (buf.remaining() <= 0))
+            return;
+        }
+        try
+        {
+            mark(Milestone.FIRST_READ);
+            getRequestContentByteFormatter().dump(b,off,len);
+            if (multipart != null)
             {
-                buf.flip();
-                // time to dump the buffer contents to the log
-                StringBuilder hexed = new StringBuilder();
-                StringBuilder asciid = new StringBuilder();
-                int i = 0;
-                while (buf.remaining() > 0)
-                {
-                    if (i++ == (MAX_BUF / 2))
-                    {
-                        hexed.append(" ");
-                    }
-                    byte c = buf.get();
-                    hexed.append(String.format("%02X ",c));
-                    // only show simple printable chars
-                    if ((c >= 0x20) && (c <= 0x7E))
-                    {
-                        asciid.append((char)c);
-                    }
-                    else
-                    {
-                        asciid.append(".");
-                    }
-                }
-                buf.flip();
-                log(String.format("[%s] Content:: %-" + HEX_DISP_WIDTH + "s | %s",mode,hexed,asciid));
+                multipart.parse(b,off,len);
             }
         }
+        finally
+        {
+            endCapture();
+        }
     }
 
-    private class CharContentLogFormatter
+    public void logRequestContentChar(char ret)
     {
-        private final static int MAX_BUF = 128;
-        private final String mode;
-        private CharBuffer buf;
-        private long length = 0;
-        private boolean closed = false;
+        if (!beginCapture())
+        {
+            return;
+        }
+        try
+        {
+            mark(Milestone.FIRST_READ);
+            getRequestContentCharFormatter().dump(ret);
+        }
+        finally
+        {
+            endCapture();
+        }
+    }
 
-        public CharContentLogFormatter(String mode)
+    public void logRequestContentChars(char[] cbuf, int off, int len)
+    {
+        if (!beginCapture())
         {
-            this.mode = mode;
-            log("[" + mode + "] Character Based");
-            buf = ByteBuffer.allocate(MAX_BUF).asCharBuffer();
+            return;
+        }
+        try
+        {
+            mark(Milestone.FIRST_READ);
+            getRequestContentCharFormatter().dump(cbuf,off,len);
+        }
+        finally
+        {
+            endCapture();
+        }
+    }
+
+    public void logRequestContentChars(String s, int off, int len)
+    {
+        if (!beginCapture())
+        {
+            return;
+        }
+        try
+        {
+            mark(Milestone.FIRST_READ);
+            getRequestContentCharFormatter().dump(s,off,len);
+        }
+        finally
+        {
+            endCapture();
         }
+    }
 
-        public void close()
+    public void logRequestContentClose()
+    {
+        if (!beginCapture())
         {
-            if (closed)
+            return;
+        }
+        try
+        {
+            if (multipart != null)
             {
-                return;
+                multipart.close();
             }
-            else
+            if (requestContentByteFormatter != null)
             {
-                processBuf(true);
-                log(String.format("[%s] Closed :: Seen %,d characters",mode,length));
+                requestContentByteFormatter.close();
+            }
+            if (requestContentCharFormatter != null)
+            {
+                requestContentCharFormatter.close();
             }
-            closed = true;
         }
-
-        public void dump(char c)
+        finally
         {
-            length += 1;
-            processBuf(false);
-            buf.append(c);
+            endCapture();
         }
+    }
 
-        private synchronized void processBuf(boolean partialOk)
+    public void logRequestHeaders(HttpServletRequest httpReq)
+    {
+        // capture now, the request cannot be accessed from the writer thread, but only format when rendered.
+        // The parameters are not asked for, as that would have the container read and parse a form body before the
+        // application does, they are logged by logRequestParameters() once the application asks for them.
+        final String method = httpReq.getMethod();
+        final StringBuffer url = httpReq.getRequestURL();
+        final String query = httpReq.getQueryString();
+        final String[] headers = getHeaders(httpReq);
+        String boundary = (partPreview < 0)?null:TraceMultiPartParser.getBoundary(httpReq.getContentType());
+        if (boundary != null)
+        {
+            multipart = new TraceMultiPartParser(boundary,partPreview,new PartLogger());
+        }
+        submit(new TraceEvent(this)
         {
-            if (partialOk || (buf.remaining() <= 0))
+            @Override
+            protected int getSize()
             {
-                buf.flip();
-                // time to dump the buffer contents to the log
-                StringBuilder line = new StringBuilder();
-                line.append('[').append(mode).append("] Content:: ");
-                while (buf.remaining() > 0)
+                return 64 + ((url.length() + ((query == null)?0:query.length())) * 2) + sizeOf(headers);
+            }
+
+            @Override
+            protected void render()
+            {
+                StringBuilder block = new StringBuilder();
+                block.append("  (request method): ").append(method).append(LINESEP);
+                block.append("  (request url): ").append(url);
+                if (query != null)
                 {
-                    char c = buf.get();
-                    switch (c)
-                    {
-                        case '\r':
-                            line.append("\\r");
-                            break;
-                        case '\n':
-                            line.append("\\n");
-                            break;
-                        case '\t':
-                            line.append("\\t");
-                            break;
-                        default:
-                            line.append(c);
-                            break;
-                    }
+                    block.append('?').append(query);
+                }
+                block.append(LINESEP);
+                block.append("  (request headers)").append(LINESEP);
+                appendHeaders(block,headers);
+                if ((query != null) && (query.length() > 0))
+                {
+                    block.append("  (query parameters)").append(LINESEP);
+                    appendParameters(block,parseQuery(query));
                 }
-                buf.flip();
-                log(line.toString());
+                output.block(timestamp,"Request Headers:",block.toString());
             }
-        }
+        },false);
     }
 
-    private static final Logger LOG = Logger.getLogger(TraceFile.class.getName());
+    /**
+     * Log the parameters of the request, query and form, once the application has had them parsed.
+     *
+     * @param params
+     *            the parameter map of the request, copied as the event may be rendered after the request is recycled
+     */
+    public void logRequestParameters(Map<String, String[]> params)
+    {
+        final Map<String, String[]> copy = copyParameters(params);
+        submit(new TraceEvent(this)
+        {
+            @Override
+            protected int getSize()
+            {
+                return sizeOf(copy);
+            }
 
-    private final File outputFile;
-    private final PrintWriter out;
-    private final long start;
-    private HttpServletResponse response;
-    private CharContentLogFormatter requestContentCharFormatter;
-    private ByteContentLogFormatter requestContentByteFormatter;
-    private CharContentLogFormatter responseContentCharFormatter;
-    private ByteContentLogFormatter responseContentByteFormatter;
+            @Override
+            protected void render()
+            {
+                if (copy.isEmpty())
+                {
+                    output.line(timestamp,"Request Parameters: (none)");
+                    return;
+                }
+                StringBuilder block = new StringBuilder();
+                appendParameters(block,copy);
+                output.block(timestamp,"Request Parameters:",block.toString());
+            }
+        },false);
+    }
 
-    public TraceFile(File outputFile) throws FileNotFoundException
+    /**
+     * Logs the parts of a multipart request body, as they are parsed.
+     */
+    private class PartLogger implements TraceMultiPartParser.Listener
     {
-        this.outputFile = outputFile;
-        this.out = new PrintWriter(outputFile);
-        LOG.log(Level.FINE,"Created Trace: " + outputFile);
-        this.start = System.currentTimeMillis();
+        @Override
+        public void onPart(final int index, final String headers, final long size, final byte[] preview, final int previewLength,
+                final boolean complete)
+        {
+            submit(new TraceEvent(TraceFile.this)
+            {
+                @Override
+                protected int getSize()
+                {
+                    return 64 + (headers.length() * 2) + previewLength;
+                }
+
+                @Override
+                protected void render()
+                {
+                    StringBuilder block = new StringBuilder();
+                    for (String header : headers.split("\r\n"))
+                    {
+                        if (!header.isEmpty())
+                        {
+                            block.append("  ").append(header).append(LINESEP);
+                        }
+                    }
+                    block.append(String.format("  (part size): %,d bytes%s",size,complete?"":", incomplete")).append(LINESEP);
+                    if (previewLength > 0)
+                    {
+                        appendPreview(block,"Part " + index,isText(headers),preview,previewLength);
+                    }
+                    output.block(timestamp,"[Request] Part " + index + ":",block.toString());
+                }
+            },false);
+        }
+
+        @Override
+        public void onEnd(final int parts, final boolean complete)
+        {
+            if (complete)
+            {
+                log("[Request] Multipart end, %d parts",parts);
+            }
+            else
+            {
+                log("[Request] Multipart incomplete, %d parts",parts);
+            }
+        }
     }
 
-    @Override
-    public void close()
+    /**
+     * @return true if the content of a part is text, as are form fields (without a Content-Type)
+     */
+    private static boolean isText(String headers)
     {
-        logRequestContentClose();
-        logResponseContentClose();
-        if (response != null)
+        String lower = headers.toLowerCase(Locale.ENGLISH);
+        int type = lower.indexOf("content-type:");
+        if (type < 0)
         {
-            logResponseHeaders();
+            return true;
         }
-        long end = System.currentTimeMillis();
-        log("Trace completed in %,dms",(end - start));
-        this.out.close();
+        int eol = lower.indexOf('\r',type);
+        String value = lower.substring(type + 13,(eol < 0)?lower.length():eol).trim();
+        return value.startsWith("text/") || value.contains("json") || value.contains("xml") || value.contains("x-www-form-urlencoded");
     }
 
-    public File getOutputFile()
+    private static void appendPreview(StringBuilder block, String mode, boolean text, byte[] preview, int length)
     {
-        return outputFile;
+        if (text)
+        {
+            // a preview may end within a character, decoded as a replacement
+            char[] chars = new String(preview,0,length,StandardCharsets.UTF_8).toCharArray();
+            CharEscaper escaper = new CharEscaper(mode);
+            int off = 0;
+            while (off < chars.length)
+            {
+                off += escaper.escape(chars,off,chars.length - off);
+                block.append("  ").append(escaper.getLine(),0,escaper.getLength()).append(LINESEP);
+                escaper.reset();
+            }
+        }
+        else
+        {
+            HexDumper dumper = new HexDumper(mode);
+            for (int off = 0; off < length; off += HexDumper.BYTES_PER_LINE)
+            {
+                int len = dumper.render(preview,off,Math.min(HexDumper.BYTES_PER_LINE,length - off));
+                block.append("  ").append(dumper.getLine(),0,len).append(LINESEP);
+            }
+        }
     }
 
-    private synchronized ByteContentLogFormatter getRequestContentByteFormatter()
+    /**
+     * Parse a query string the way the container does by default, as UTF-8. Values that cannot be decoded are kept as
+     * they are.
+     */
+    private static Map<String, String[]> parseQuery(String query)
     {
-        if (requestContentByteFormatter == null)
+        Map<String, String[]> params = new LinkedHashMap<>();
+        for (String param : query.split("&"))
         {
-            requestContentByteFormatter = new ByteContentLogFormatter("Request");
+            if (param.isEmpty())
+            {
+                continue;
+            }
+            int eq = param.indexOf('=');
+            String name = urlDecode((eq < 0)?param:param.substring(0,eq));
+            String value = (eq < 0)?"":urlDecode(param.substring(eq + 1));
+            String[] values = params.get(name);
+            if (values == null)
+            {
+                values = new String[] { value };
+            }
+            else
+            {
+                values = Arrays.copyOf(values,values.length + 1);
+                values[values.length - 1] = value;
+            }
+            params.put(name,values);
         }
-        return requestContentByteFormatter;
+        return params;
     }
 
-    private synchronized CharContentLogFormatter getRequestContentCharFormatter()
+    private static String urlDecode(String value)
     {
-        if (requestContentCharFormatter == null)
+        try
         {
-            requestContentCharFormatter = new CharContentLogFormatter("Request");
+            return URLDecoder.decode(value,StandardCharsets.UTF_8.name());
+        }
+        catch (UnsupportedEncodingException | IllegalArgumentException e)
+        {
+            return value;
         }
-        return requestContentCharFormatter;
     }
 
-    private synchronized ByteContentLogFormatter getResponseContentByteFormatter()
+    private static void appendParameters(StringBuilder block, Map<String, String[]> params)
     {
-        if (responseContentByteFormatter == null)
+        for (Map.Entry<String, String[]> entry : params.entrySet())
         {
-            responseContentByteFormatter = new ByteContentLogFormatter("Response");
+            block.append("  ").append(entry.getKey()).append(" = [");
+            boolean delim = false;
+            for (String value : entry.getValue())
+            {
+                if (delim)
+                {
+                    block.append(", ");
+                }
+                block.append(value);
+                delim = true;
+            }
+            block.append(']').append(LINESEP);
         }
-        return responseContentByteFormatter;
     }
 
-    private synchronized CharContentLogFormatter getResponseContentCharFormatter()
+    /**
+     * @return the header names and values, as name, value pairs
+     */
+    private static String[] getHeaders(HttpServletRequest httpReq)
     {
-        if (responseContentCharFormatter == null)
+        List<String> headers = new ArrayList<>();
+        Enumeration<String> enames = httpReq.getHeaderNames();
+        while (enames.hasMoreElements())
         {
-            responseContentCharFormatter = new CharContentLogFormatter("Response");
+            String name = enames.nextElement();
+            headers.add(name);
+            headers.add(httpReq.getHeader(name));
         }
-        return responseContentCharFormatter;
+        return headers.toArray(new String[headers.size()]);
     }
 
-    public void log(String format, Object... args)
+    private static Map<String, String[]> copyParameters(Map<String, String[]> params)
     {
-        synchronized (out)
+        Map<String, String[]> copy = new LinkedHashMap<>();
+        if (params != null)
         {
-            Calendar now = Calendar.getInstance();
-            out.printf("%tF %<tT.%<tL - ",now);
-            out.printf(format,args);
-            out.println();
+            for (Map.Entry<String, String[]> entry : params.entrySet())
+            {
+                String[] values = entry.getValue();
+                copy.put(entry.getKey(),(values == null)?new String[0]:values.clone());
+            }
         }
+        return copy;
     }
 
-    public void log(Throwable t)
+    private static int sizeOf(Map<String, String[]> params)
     {
-        synchronized (out)
+        int size = 64;
+        for (Map.Entry<String, String[]> entry : params.entrySet())
         {
-            Calendar now = Calendar.getInstance();
-            out.printf("%tF %<tT.%<tL - %s%n",now,t.getMessage());
-            t.printStackTrace(out);
+            size += 16 + (entry.getKey().length() * 2) + sizeOf(entry.getValue());
         }
+        return size;
     }
 
-    public void logRequestContentByte(byte b)
+    private static int sizeOf(String[] headers)
     {
-        getRequestContentByteFormatter().dump(b);
+        int size = 16 * headers.length;
+        for (String header : headers)
+        {
+            size += (header == null)?0:(header.length() * 2);
+        }
+        return size;
     }
 
-    public void logRequestContentChar(char ret)
+    private static void appendHeaders(StringBuilder block, String[] headers)
     {
-        getRequestContentCharFormatter().dump(ret);
+        for (int i = 0; i < headers.length; i += 2)
+        {
+            block.append("  ").append(headers[i]).append(": ").append(headers[i + 1]).append(LINESEP);
+        }
     }
 
-    public void logRequestContentClose()
+    public void logResponseContentByte(int b)
     {
-        if (requestContentByteFormatter != null)
+        if (!beginCapture())
         {
-            requestContentByteFormatter.close();
+            return;
         }
-        if (requestContentCharFormatter != null)
+        try
         {
-            requestContentCharFormatter.close();
+            mark(Milestone.FIRST_WRITE);
+            getResponseContentByteFormatter().dump((byte)(b & 0xff));
         }
-    }
-
-    public void logRequestHeaders(HttpServletRequest httpReq)
-    {
-        log("Request Headers:");
-        synchronized (out)
+        finally
         {
-            out.printf("  (request method): %s%n",httpReq.getMethod());
-            out.print("  (request url): ");
-            out.print(httpReq.getRequestURL().toString());
-            if (httpReq.getQueryString() != null)
-            {
-                out.print("?");
-                out.print(httpReq.getQueryString());
-            }
-            out.println();
-            out.println("  (request headers)");
-            Enumeration<String> enames = httpReq.getHeaderNames();
-            while (enames.hasMoreElements())
-            {
-                String name = enames.nextElement();
-                out.printf("  %s: %s%n",name,httpReq.getHeader(name));
-            }
-            Map<String, String[]> params = httpReq.getParameterMap();
-            if ((params != null) && (params.size() > 0))
-            {
-                out.println("  (request parameters)");
-                for (Map.Entry<String, String[]> entry : params.entrySet())
-                {
-                    out.print("  ");
-                    out.print(entry.getKey());
-                    out.print(" = [");
-                    boolean delim = false;
-                    for (String value : entry.getValue())
-                    {
-                        if (delim)
-                        {
-                            out.print(", ");
-                        }
-                        out.print(value);
-                        delim = true;
-                    }
-                    out.println("]");
-                }
-            }
-            // TODO: log mime-type parts - httpReq.getPart()
+            endCapture();
         }
     }
 
-    public void logResponseContentByte(int b)
+    public void logResponseContentBytes(byte[] b, int off, int len)
     {
-        getResponseContentByteFormatter().dump((byte)(b & 0xff));
+        if (!beginCapture())
+        {
+            return;
+        }
+        try
+        {
+            mark(Milestone.FIRST_WRITE);
+            getResponseContentByteFormatter().dump(b,off,len);
+        }
+        finally
+        {
+            endCapture();
+        }
     }
 
     public void logResponseContentChar(char c)
     {
-        getResponseContentCharFormatter().dump(c);
+        if (!beginCapture())
+        {
+            return;
+        }
+        try
+        {
+            mark(Milestone.FIRST_WRITE);
+            getResponseContentCharFormatter().dump(c);
+        }
+        finally
+        {
+            endCapture();
+        }
     }
 
     public void logResponseContentChar(char[] cbuf, int off, int len)
     {
-        CharContentLogFormatter formatter = getResponseContentCharFormatter();
-        for (int i = 0; i < len; i++)
+        if (!beginCapture())
+        {
+            return;
+        }
+        try
+        {
+            mark(Milestone.FIRST_WRITE);
+            getResponseContentCharFormatter().dump(cbuf,off,len);
+        }
+        finally
         {
-            formatter.dump(cbuf[off + i]);
+            endCapture();
         }
     }
 
     public void logResponseContentChar(int c)
     {
-        getResponseContentCharFormatter().dump((char)(c & 0xffff));
+        if (!beginCapture())
+        {
+            return;
+        }
+        try
+        {
+            mark(Milestone.FIRST_WRITE);
+            getResponseContentCharFormatter().dump((char)(c & 0xffff));
+        }
+        finally
+        {
+            endCapture();
+        }
     }
 
     public void logResponseContentChar(String s, int off, int len)
     {
-        CharContentLogFormatter formatter = getResponseContentCharFormatter();
-        for (int i = 0; i < len; i++)
+        if (!beginCapture())
+        {
+            return;
+        }
+        try
+        {
+            mark(Milestone.FIRST_WRITE);
+            getResponseContentCharFormatter().dump(s,off,len);
+        }
+        finally
         {
-            formatter.dump(s.charAt(off + i));
+            endCapture();
         }
     }
 
+    /**
+     * The response content that follows is text encoded by the filter in a charset (see
+     * <code>trace-encode-writer</code> in {@link TraceFilter}). The bytes are kept as they are, and only decoded when
+     * the trace is rendered as text.
+     *
+     * @param charset
+     *            the charset of the response
+     */
+    public void logResponseCharset(final String charset)
+    {
+        submit(new TraceEvent(this)
+        {
+            @Override
+            protected void render()
+            {
+                output.charset(timestamp,"Response",charset);
+            }
+        },true);
+    }
+
     public void logResponseContentClose()
     {
-        if (responseContentByteFormatter != null)
+        if (!beginCapture())
+        {
+            return;
+        }
+        try
         {
-            responseContentByteFormatter.close();
+            if (responseContentByteFormatter != null)
+            {
+                responseContentByteFormatter.close();
+            }
+            if (responseContentCharFormatter != null)
+            {
+                responseContentCharFormatter.close();
+            }
         }
-        if (responseContentCharFormatter != null)
+        finally
         {
-            responseContentCharFormatter.close();
+            endCapture();
         }
     }
 
     public void logResponseContentReset()
     {
-        // TODO Auto-generated method stub
+        log("Response.resetBuffer()");
     }
 
     public void logResponseError(int sc, String msg)
     {
-        // TODO Auto-generated method stub
+        if (msg == null)
+        {
+            log("Response.sendError(%d)",sc);
+        }
+        else
+        {
+            log("Response.sendError(%d, %s)",sc,msg);
+        }
     }
 
     public void logResponseFlush()
     {
-        // TODO Auto-generated method stub
+        mark(Milestone.FIRST_FLUSH);
     }
 
     private void logResponseHeaders()
     {
-        log("Response Headers:");
-        synchronized (out)
+        final int status = response.getStatus();
+        List<String> names = new ArrayList<>(response.getHeaderNames());
+        final String[] headers = new String[names.size() * 2];
+        for (int i = 0; i < names.size(); i++)
+        {
+            headers[i * 2] = names.get(i);
+            headers[(i * 2) + 1] = response.getHeader(names.get(i));
+        }
+        submit(new TraceEvent(this)
         {
-            int status = response.getStatus();
-            // log if app set this.
-            if (status >= 100)
+            @Override
+            protected int getSize()
             {
-                out.printf("  (response status code): %d%n",status);
+                return 64 + sizeOf(headers);
             }
-            for (String name : response.getHeaderNames())
+
+            @Override
+            protected void render()
             {
-                out.printf("  %s: %s%n",name,response.getHeader(name));
+                StringBuilder block = new StringBuilder();
+                // log if app set this.
+                if (status >= 100)
+                {
+                    block.append("  (response status code): ").append(status).append(LINESEP);
+                }
+                appendHeaders(block,headers);
+                output.block(timestamp,"Response Headers:",block.toString());
             }
-        }
+        },false);
     }
 
     public void logResponseRedirect(String location)
     {
-        // TODO Auto-generated method stub
+        log("Response.sendRedirect(%s)",location);
     }
 
     public void logResponseReset()
     {
-        // TODO Auto-generated method stub
+        log("Response.reset()");
+    }
+
+    /**
+     * The request is going async, from now on the request may be continued, and captured, by other threads. Called by
+     * the request thread before it starts async, so that no other thread captures yet.
+     */
+    public void logAsyncStarted()
+    {
+        async = true;
+        log("Async started");
     }
 
     @Override
     public void onComplete(AsyncEvent event) throws IOException
     {
+        takeOver();
+        mark(Milestone.ASYNC_COMPLETE);
         this.close();
     }
 
+    /**
+     * Called by the container, while a thread of the application may still be capturing content. The trace is closed
+     * here rather than on the {@link #onComplete(AsyncEvent)} that follows, which only closes a trace still open.
+     */
     @Override
     public void onError(AsyncEvent event) throws IOException
     {
+        mark(Milestone.ASYNC_ERROR);
+        if (metrics != null)
+        {
+            metrics.onAsyncError();
+        }
+        failed = true;
+        final Throwable failure = (event == null)?null:event.getThrowable();
+        dispatch(new TraceEvent(this)
+        {
+            @Override
+            protected void render()
+            {
+                if (failure == null)
+                {
+                    output.line(timestamp,"Async error");
+                    return;
+                }
+                StringWriter trace = new StringWriter();
+                failure.printStackTrace(new PrintWriter(trace));
+                output.block(timestamp,String.valueOf(failure.getMessage()),trace.toString());
+            }
+        },true);
+        this.close();
     }
 
     @Override
     public void onStartAsync(AsyncEvent event) throws IOException
     {
+        // listeners are removed when async is started again, stay registered to be closed
+        log("Async restarted");
+        event.getAsyncContext().addListener(this);
     }
 
+    /**
+     * Called by the container, see {@link #onError(AsyncEvent)}.
+     */
     @Override
     public void onTimeout(AsyncEvent event) throws IOException
     {
+        mark(Milestone.ASYNC_TIMEOUT);
+        if (metrics != null)
+        {
+            metrics.onAsyncTimeout();
+        }
+        // retained as an error
+        failed = true;
+        final double millis = (System.nanoTime() - startNanos) / 1_000_000.0;
+        dispatch(new TraceEvent(this)
+        {
+            @Override
+            protected void render()
+            {
+                output.line(timestamp,"Async timeout after %,.3fms",millis);
+            }
+        },true);
+        this.close();
     }
 
     public void setResponse(HttpServletResponse response)
@@ -20,7 +20,17 @@ package org.eclipse.jetty.trace;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
 import javax.servlet.AsyncContext;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
@@ -47,17 +57,233 @@ import javax.servlet.http.HttpServletResponse;
  *   <dd>
  *     If specified, the filter will add a response header
  *     including the filename (not full path) of the created trace*.log
+ *     (or the journal trace id, see <code>trace-journal</code>)
  *     for this specific request. Useful for relating a request details
  *     found in a browser, a tcpdump, a wireshark capture, or even a 
  *     test case to the actual on-disk captured details.<br/>
  *     A good suitable value would be <code>"X-TraceId"</code>
  *   </dd>
- * </dl> 
+ *   <dt>trace-async</dt>
+ *   <dd>
+ *     If true, trace events are formatted and written to disk by a
+ *     background writer thread, keeping file I/O off the request thread.
+ *     If false, events are written by the request thread itself.<br/>
+ *     Default: true
+ *   </dd>
+ *   <dt>trace-queue-size</dt>
+ *   <dd>
+ *     The maximum number of trace events waiting for the background writer.
+ *     When the queue is full, further events are dropped (and the count of
+ *     dropped events is noted in the trace) rather than delaying the request.<br/>
+ *     Default: 8192
+ *   </dd>
+ *   <dt>trace-content-head</dt>
+ *   <dd>
+ *     The number of leading bytes (or characters) of each request and
+ *     response body written to the trace. Beyond that, the body is only
+ *     counted, except for the last <code>trace-content-tail</code> bytes,
+ *     and the trace notes how much was elided. -1 for no limit.<br/>
+ *     Default: -1
+ *   </dd>
+ *   <dt>trace-content-tail</dt>
+ *   <dd>
+ *     The number of trailing bytes (or characters) of each body written
+ *     to the trace once <code>trace-content-head</code> is exceeded.<br/>
+ *     Default: 0
+ *   </dd>
+ *   <dt>trace-part-preview</dt>
+ *   <dd>
+ *     Multipart request bodies are also traced as a list of parts, parsed
+ *     as the application reads the body: the headers and size of each
+ *     part, and this number of leading bytes of its content.
+ *     -1 to not parse multipart bodies.<br/>
+ *     Default: 256
+ *   </dd>
+ *   <dt>trace-buffer-pool-size</dt>
+ *   <dd>
+ *     The number of content and output buffers (of each of 4KB of bytes and
+ *     2K characters) kept for reuse by later traces, rather than allocating
+ *     them for every traced request, see {@link TraceBufferPool}.
+ *     0 to allocate every buffer.<br/>
+ *     Default: 256
+ *   </dd>
+ *   <dt>trace-format</dt>
+ *   <dd>
+ *     Either <code>text</code> for human readable trace*.log files, or
+ *     <code>binary</code> for compact trace*.trc files, which cost less
+ *     to write and can be rendered to the text layout later, with
+ *     <code>java org.eclipse.jetty.trace.TraceDecoder trace.trc</code>.
+ *     Cannot be combined with <code>trace-journal</code>.<br/>
+ *     Default: text
+ *   </dd>
+ *   <dt>trace-compression</dt>
+ *   <dd>
+ *     Either <code>none</code>, or <code>gzip</code> for trace*.log.gz
+ *     (or trace*.trc.gz) files, readable with the usual gzip tools,
+ *     see {@link TraceFormat}.
+ *     Traces are compressed by the background writer thread (see
+ *     <code>trace-async</code>).
+ *     Cannot be combined with <code>trace-journal</code>.<br/>
+ *     Default: none
+ *   </dd>
+ *   <dt>trace-compression-level</dt>
+ *   <dd>
+ *     The gzip compression level, from 1 (fastest) to 9 (smallest).<br/>
+ *     Default: 1
+ *   </dd>
+ *   <dt>trace-encode-writer</dt>
+ *   <dd>
+ *     If true, the characters a servlet writes to the response writer are
+ *     encoded by the filter onto the response stream, and traced once as the
+ *     bytes sent, together with the response charset. The bytes are decoded
+ *     when the trace is rendered as text, instead of escaping every character
+ *     on the request thread.<br/>
+ *     Default: false
+ *   </dd>
+ *   <dt>trace-line-width</dt>
+ *   <dd>
+ *     The number of characters of character content per line of a text
+ *     trace, see {@link CharEscaper}.<br/>
+ *     Default: 128
+ *   </dd>
+ *   <dt>trace-retain-status</dt>
+ *   <dd>
+ *     If set, only keep the traces of responses with at least this status
+ *     (eg: 500), or that match one of the other trace-retain-* conditions.
+ *     Until the request completes, its trace is buffered in memory, so that
+ *     traces which are not kept never touch the disk,
+ *     see {@link TraceRetention}.
+ *     Cannot be combined with <code>trace-journal</code>.<br/>
+ *     Default: (unset)
+ *   </dd>
+ *   <dt>trace-retain-slower-than</dt>
+ *   <dd>
+ *     If set, keep the traces of requests that took longer than this
+ *     many milliseconds.<br/>
+ *     Default: (unset)
+ *   </dd>
+ *   <dt>trace-retain-errors</dt>
+ *   <dd>
+ *     If true, keep the traces of requests that logged an exception.<br/>
+ *     Default: false
+ *   </dd>
+ *   <dt>trace-retain-headers</dt>
+ *   <dd>
+ *     Comma separated response header names, keep the traces of responses
+ *     with any of these headers.<br/>
+ *     Default: (unset)
+ *   </dd>
+ *   <dt>trace-retain-buffer-size</dt>
+ *   <dd>
+ *     The bytes of each trace buffered in memory until it is known whether
+ *     it is kept, beyond which it is buffered in a temporary spill file.<br/>
+ *     Default: 65536
+ *   </dd>
+ *   <dt>trace-journal</dt>
+ *   <dd>
+ *     If true, traces are appended to rolling trace-journal-*.log segment
+ *     files instead of creating a trace*.log file per request. Each trace
+ *     is then identified by <code>"segment-offset"</code> of its first record,
+ *     see {@link TraceJournal}.<br/>
+ *     Default: false
+ *   </dd>
+ *   <dt>trace-journal-segment-size</dt>
+ *   <dd>
+ *     The size (in bytes) at which a new journal segment is started.<br/>
+ *     Default: 67108864 (64MB)
+ *   </dd>
+ *   <dt>trace-quota-max-size</dt>
+ *   <dd>
+ *     The maximum total size (in bytes) of the trace files (and journal
+ *     segments) in <code>trace-dir</code>. The oldest traces are deleted by
+ *     a background thread to stay within the limit. When traces are written
+ *     faster than they are deleted, only headers are traced beyond 90% of
+ *     the limit, and nothing once it is reached, see {@link TraceQuota}.
+ *     Only completed traces and journal segments are counted, leave room
+ *     for the traces in flight and the open journal segment.
+ *     0 for no limit.<br/>
+ *     Default: 0
+ *   </dd>
+ *   <dt>trace-quota-max-files</dt>
+ *   <dd>
+ *     The maximum number of trace files in <code>trace-dir</code>, as above.
+ *     0 for no limit.<br/>
+ *     Default: 0
+ *   </dd>
+ *   <dt>trace-quota-max-age</dt>
+ *   <dd>
+ *     The age (in seconds) after which trace files are deleted.
+ *     0 for no limit.<br/>
+ *     Default: 0
+ *   </dd>
+ *   <dt>trace-jmx</dt>
+ *   <dd>
+ *     If true, the metrics of the filter (traced and excluded requests,
+ *     captured bytes, writer queue, request duration and trace write time
+ *     histograms) are registered in the platform MBeanServer as
+ *     <code>org.eclipse.jetty.trace:type=TraceFilter,context=...,name=...</code>,
+ *     see {@link TraceMetrics}.<br/>
+ *     Default: true
+ *   </dd>
+ *   <dt>trace-sample-probability</dt>
+ *   <dd>
+ *     The probability (0.0 to 1.0) that a request is traced.<br/>
+ *     Default: 1.0
+ *   </dd>
+ *   <dt>trace-sample-every</dt>
+ *   <dd>
+ *     Only trace 1 in every N requests.<br/>
+ *     Default: 1
+ *   </dd>
+ *   <dt>trace-sample-rate-limit</dt>
+ *   <dd>
+ *     The maximum number of requests traced per second (with bursts
+ *     of up to 1 second worth of traces), 0 for no limit.<br/>
+ *     Default: 0
+ *   </dd>
+ *   <dt>trace-include-paths, trace-include-extensions, trace-include-methods,
+ *       trace-include-headers, trace-include-content-types</dt>
+ *   <dd>
+ *     Comma separated rules, if any are specified only requests matching
+ *     at least one of them are traced. Paths are prefixes of the path within
+ *     the context (eg: <code>"/api/,/upload"</code>), extensions are of the last
+ *     path segment (eg: <code>"css,js,png"</code>), headers match on the
+ *     presence of the named request header, and content types are prefixes of
+ *     the request content type (eg: <code>"application/json,multipart/"</code>).
+ *   </dd>
+ *   <dt>trace-exclude-paths, trace-exclude-extensions, trace-exclude-methods,
+ *       trace-exclude-headers, trace-exclude-content-types</dt>
+ *   <dd>
+ *     Comma separated rules, as above, requests matching any of them are
+ *     not traced.
+ *   </dd>
+ * </dl>
+ * <p>
+ * Requests excluded by the include/exclude rules are not counted by the sampling.
+ * When more than one of the sampling parameters is configured, a request is only
+ * traced if it passes all of them. Requests that are not traced are passed through
+ * without any wrapping.
  */
 public class TraceFilter implements Filter
 {
+    private static final Logger LOG = Logger.getLogger(TraceFilter.class.getName());
+
     private String traceIdHeaderName;
+    private boolean encodeWriter;
     private File traceDir;
+    private TraceWriter writer;
+    private TraceJournal journal;
+    private TraceSampler sampler;
+    private TraceRules rules;
+    private TraceFormat format = TraceFormat.TEXT;
+    private TraceRetention retention;
+    private long contentHead = -1;
+    private int contentTail = 0;
+    private int partPreview = 256;
+    private TraceBufferPool pool;
+    private TraceQuota quota;
+    private TraceMetrics metrics;
+    private ObjectName objectName;
 
     @Override
     public void init(FilterConfig filterConfig) throws ServletException
@@ -76,6 +302,274 @@ public class TraceFilter implements Filter
         
         // Optional Response Header
         traceIdHeaderName = filterConfig.getInitParameter("trace-id-header");
+
+        // Optional encoding of the response writer by the filter
+        encodeWriter = Boolean.parseBoolean(filterConfig.getInitParameter("trace-encode-writer"));
+
+        // Optional include / exclude rules
+        TraceRules.RuleSet include = getRuleSet(filterConfig,"trace-include-");
+        TraceRules.RuleSet exclude = getRuleSet(filterConfig,"trace-exclude-");
+        if (!include.isEmpty() || !exclude.isEmpty())
+        {
+            rules = new TraceRules(include,exclude);
+        }
+
+        // Optional content limits
+        contentHead = getLongParameter(filterConfig,"trace-content-head",-1);
+        contentTail = getIntParameter(filterConfig,"trace-content-tail",0);
+        if (contentTail < 0)
+        {
+            throw new ServletException("Invalid trace-content-tail: " + contentTail);
+        }
+        partPreview = getIntParameter(filterConfig,"trace-part-preview",256);
+
+        // Reuse of trace buffers
+        int poolSize = getIntParameter(filterConfig,"trace-buffer-pool-size",256);
+        if (poolSize < 0)
+        {
+            throw new ServletException("Invalid trace-buffer-pool-size: " + poolSize);
+        }
+        if (poolSize > 0)
+        {
+            pool = new TraceBufferPool(poolSize);
+        }
+
+        // Optional sampling
+        double probability = getDoubleParameter(filterConfig,"trace-sample-probability",1.0);
+        long every = getLongParameter(filterConfig,"trace-sample-every",1);
+        double perSecond = getDoubleParameter(filterConfig,"trace-sample-rate-limit",0.0);
+        if ((probability < 1.0) || (every > 1) || (perSecond > 0.0))
+        {
+            try
+            {
+                sampler = new TraceSampler(probability,every,perSecond);
+            }
+            catch (IllegalArgumentException e)
+            {
+                throw new ServletException("Invalid trace sampling configuration",e);
+            }
+        }
+
+        // Optional binary trace files
+        String formatName = filterConfig.getInitParameter("trace-format");
+        if ((formatName != null) && !"text".equalsIgnoreCase(formatName))
+        {
+            if (!"binary".equalsIgnoreCase(formatName))
+            {
+                throw new ServletException("Invalid trace-format: " + formatName);
+            }
+            format = TraceFormat.BINARY;
+        }
+
+        // Optional compression of trace files
+        String compression = filterConfig.getInitParameter("trace-compression");
+        if ((compression != null) && !"none".equalsIgnoreCase(compression))
+        {
+            if (!"gzip".equalsIgnoreCase(compression))
+            {
+                throw new ServletException("Invalid trace-compression: " + compression);
+            }
+            try
+            {
+                format = format.gzip(getIntParameter(filterConfig,"trace-compression-level",Deflater.BEST_SPEED));
+            }
+            catch (IllegalArgumentException e)
+            {
+                throw new ServletException("Invalid trace-compression-level",e);
+            }
+        }
+        try
+        {
+            format = format.lineWidth(getIntParameter(filterConfig,"trace-line-width",CharEscaper.DEFAULT_WIDTH));
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw new ServletException("Invalid trace-line-width",e);
+        }
+
+        // Optional retention of failed or slow traces only
+        int minStatus = getIntParameter(filterConfig,"trace-retain-status",0);
+        long slowMillis = getLongParameter(filterConfig,"trace-retain-slower-than",0);
+        boolean errors = Boolean.parseBoolean(filterConfig.getInitParameter("trace-retain-errors"));
+        String[] headers = getListParameter(filterConfig,"trace-retain-headers");
+        if ((minStatus > 0) || (slowMillis > 0) || errors || (headers.length > 0))
+        {
+            try
+            {
+                retention = new TraceRetention(minStatus,slowMillis,errors,headers);
+                retention.setBufferSize(getIntParameter(filterConfig,"trace-retain-buffer-size",64 * 1024));
+            }
+            catch (IllegalArgumentException e)
+            {
+                throw new ServletException("Invalid trace retention configuration",e);
+            }
+        }
+
+        // Optional quota of the trace directory, before the journal starts a segment
+        long maxSize = getLongParameter(filterConfig,"trace-quota-max-size",0);
+        int maxFiles = getIntParameter(filterConfig,"trace-quota-max-files",0);
+        long maxAge = getLongParameter(filterConfig,"trace-quota-max-age",0);
+        if ((maxSize != 0) || (maxFiles != 0) || (maxAge != 0))
+        {
+            try
+            {
+                quota = new TraceQuota(traceDir,maxSize,maxFiles,TimeUnit.SECONDS.toMillis(maxAge));
+            }
+            catch (IllegalArgumentException e)
+            {
+                throw new ServletException("Invalid trace quota configuration",e);
+            }
+            quota.start();
+        }
+
+        // Optional journal of all traces
+        if (Boolean.parseBoolean(filterConfig.getInitParameter("trace-journal")))
+        {
+            if (retention != null)
+            {
+                throw new ServletException("trace-retain-* cannot be used with trace-journal");
+            }
+            if (format.isBinary())
+            {
+                throw new ServletException("trace-format binary cannot be used with trace-journal");
+            }
+            if (format.isCompressed())
+            {
+                throw new ServletException("trace-compression cannot be used with trace-journal");
+            }
+            long segmentSize = getLongParameter(filterConfig,"trace-journal-segment-size",64 * 1024 * 1024);
+            if (segmentSize <= 0)
+            {
+                throw new ServletException("Invalid trace-journal-segment-size: " + segmentSize);
+            }
+            try
+            {
+                journal = new TraceJournal(traceDir,segmentSize);
+                journal.setQuota(quota);
+            }
+            catch (IOException e)
+            {
+                throw new ServletException("Unable to open trace journal in " + traceDir,e);
+            }
+        }
+
+        // Background trace writer
+        String async = filterConfig.getInitParameter("trace-async");
+        if ((async == null) || Boolean.parseBoolean(async))
+        {
+            int queueSize = getIntParameter(filterConfig,"trace-queue-size",8192);
+            writer = new TraceWriter(queueSize);
+            writer.start();
+        }
+
+        // Metrics, optionally in JMX
+        metrics = new TraceMetrics(writer);
+        String jmx = filterConfig.getInitParameter("trace-jmx");
+        if ((jmx == null) || Boolean.parseBoolean(jmx))
+        {
+            registerMBean(filterConfig);
+        }
+    }
+
+    private void registerMBean(FilterConfig filterConfig)
+    {
+        String context = (filterConfig.getServletContext() == null)?"":filterConfig.getServletContext().getContextPath();
+        try
+        {
+            ObjectName name = new ObjectName("org.eclipse.jetty.trace:type=TraceFilter,context=" + ObjectName.quote(context) + ",name="
+                    + ObjectName.quote(String.valueOf(filterConfig.getFilterName())));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics,name);
+            objectName = name;
+        }
+        catch (JMException e)
+        {
+            // metrics are not worth failing the webapp for
+            LOG.log(Level.WARNING,"Unable to register trace filter MBean",e);
+        }
+    }
+
+    /**
+     * @return the metrics of this filter, also available as the <code>org.eclipse.jetty.trace:type=TraceFilter</code>
+     *         MBean
+     */
+    public TraceMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    private TraceRules.RuleSet getRuleSet(FilterConfig filterConfig, String prefix)
+    {
+        TraceRules.RuleSet ruleSet = new TraceRules.RuleSet();
+        ruleSet.addPaths(getListParameter(filterConfig,prefix + "paths"));
+        ruleSet.addExtensions(getListParameter(filterConfig,prefix + "extensions"));
+        ruleSet.addMethods(getListParameter(filterConfig,prefix + "methods"));
+        ruleSet.addHeaders(getListParameter(filterConfig,prefix + "headers"));
+        ruleSet.addContentTypes(getListParameter(filterConfig,prefix + "content-types"));
+        return ruleSet;
+    }
+
+    private String[] getListParameter(FilterConfig filterConfig, String name)
+    {
+        String value = filterConfig.getInitParameter(name);
+        if (value == null)
+        {
+            return new String[0];
+        }
+        List<String> values = new ArrayList<>();
+        for (String part : value.split(","))
+        {
+            part = part.trim();
+            if (part.length() > 0)
+            {
+                values.add(part);
+            }
+        }
+        return values.toArray(new String[values.size()]);
+    }
+
+    private double getDoubleParameter(FilterConfig filterConfig, String name, double defValue) throws ServletException
+    {
+        String value = filterConfig.getInitParameter(name);
+        if (value == null)
+        {
+            return defValue;
+        }
+        try
+        {
+            return Double.parseDouble(value.trim());
+        }
+        catch (NumberFormatException e)
+        {
+            throw new ServletException("'" + name + "' is not a valid number: " + value,e);
+        }
+    }
+
+    private int getIntParameter(FilterConfig filterConfig, String name, int defValue) throws ServletException
+    {
+        long value = getLongParameter(filterConfig,name,defValue);
+        if ((value < Integer.MIN_VALUE) || (value > Integer.MAX_VALUE))
+        {
+            // rather than silently wrapped around
+            throw new ServletException("'" + name + "' is not a valid number: " + filterConfig.getInitParameter(name));
+        }
+        return (int)value;
+    }
+
+    private long getLongParameter(FilterConfig filterConfig, String name, long defValue) throws ServletException
+    {
+        String value = filterConfig.getInitParameter(name);
+        if (value == null)
+        {
+            return defValue;
+        }
+        try
+        {
+            return Long.parseLong(value.trim());
+        }
+        catch (NumberFormatException e)
+        {
+            throw new ServletException("'" + name + "' is not a valid number: " + value,e);
+        }
     }
 
     @Override
@@ -97,21 +591,35 @@ public class TraceFilter implements Filter
             {
                 // trace the request / response
                 TraceFile tracer = newTracer();
+                metrics.onTraced();
                 if (traceIdHeaderName != null)
                 {
-                    httpResp.setHeader(traceIdHeaderName,tracer.getOutputFile().getName());
+                    httpResp.setHeader(traceIdHeaderName,tracer.getId());
                 }
                 TraceServletRequest traceReq = new TraceServletRequest(httpReq,tracer);
-                TraceServletResponse traceResp = new TraceServletResponse(httpResp,tracer);
-                chain.doFilter(traceReq,traceResp);
-                if (httpReq.isAsyncStarted())
+                TraceServletResponse traceResp = new TraceServletResponse(httpResp,tracer,encodeWriter);
+                try
                 {
-                    AsyncContext async = httpReq.getAsyncContext();
-                    async.addListener(tracer);
+                    chain.doFilter(traceReq,traceResp);
                 }
-                else
+                catch (Throwable t)
                 {
-                    tracer.close();
+                    tracer.log(t);
+                    throw t;
+                }
+                finally
+                {
+                    tracer.mark(TraceFile.Milestone.CHAIN_RETURN);
+                    if (httpReq.isAsyncStarted())
+                    {
+                        tracer.handOff();
+                        AsyncContext async = httpReq.getAsyncContext();
+                        async.addListener(tracer);
+                    }
+                    else
+                    {
+                        tracer.close();
+                    }
                 }
             }
         }
@@ -124,19 +632,106 @@ public class TraceFilter implements Filter
 
     private boolean isExcluded(HttpServletRequest httpReq)
     {
-        // TODO add support to exclude trace behavior on specific requests
+        if ((rules != null) && rules.isExcluded(httpReq))
+        {
+            metrics.onExcluded();
+            return true;
+        }
+        if ((quota != null) && (quota.getMode() == TraceQuota.Mode.NONE))
+        {
+            // out of space, trace nothing until traces are evicted
+            metrics.onQuotaSkipped();
+            return true;
+        }
+        if ((sampler != null) && !sampler.sample())
+        {
+            metrics.onSampledOut();
+            return true;
+        }
         // return false to trace everything
         return false;
     }
 
     private TraceFile newTracer() throws IOException
     {
-        File outputFile = File.createTempFile("tracer-",".log",traceDir);
-        return new TraceFile(outputFile);
+        if (journal != null)
+        {
+            TraceJournal.Entry entry = journal.newEntry("Trace started");
+            TraceFile tracer = new TraceFile(entry.getId(),entry,writer,pool);
+            configure(tracer);
+            return tracer;
+        }
+        String suffix = format.getSuffix();
+        TraceFile tracer;
+        if (retention != null)
+        {
+            // the file is only created if the trace is retained
+            File outputFile = new File(traceDir,"tracer-" + (ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE) + suffix);
+            tracer = new TraceFile(outputFile,writer,format,retention,pool);
+        }
+        else
+        {
+            File outputFile = File.createTempFile("tracer-",suffix,traceDir);
+            tracer = new TraceFile(outputFile,writer,format,pool);
+        }
+        configure(tracer);
+        tracer.setQuota(quota);
+        return tracer;
+    }
+
+    private void configure(TraceFile tracer)
+    {
+        tracer.setMetrics(metrics);
+        if ((quota != null) && (quota.getMode() == TraceQuota.Mode.HEADERS))
+        {
+            // running out of space, only count the body content, and list the parts of a multipart body
+            tracer.setContentLimits(0,0);
+            tracer.setPartPreview(Math.min(partPreview,0));
+        }
+        else
+        {
+            tracer.setContentLimits(contentHead,contentTail);
+            tracer.setPartPreview(partPreview);
+        }
     }
 
     @Override
     public void destroy()
     {
+        if (objectName != null)
+        {
+            try
+            {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            }
+            catch (JMException e)
+            {
+                LOG.log(Level.FINE,"Unable to unregister trace filter MBean",e);
+            }
+            objectName = null;
+        }
+        if (writer != null)
+        {
+            // drains all queued events before returning
+            writer.stop();
+            writer = null;
+        }
+        if (journal != null)
+        {
+            try
+            {
+                journal.close();
+            }
+            catch (IOException e)
+            {
+                LOG.log(Level.WARNING,"Unable to close trace journal",e);
+            }
+            journal = null;
+        }
+        if (quota != null)
+        {
+            quota.stop();
+            quota = null;
+        }
     }
 }
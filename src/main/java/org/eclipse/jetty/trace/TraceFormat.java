@@ -0,0 +1,146 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.trace;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The format of trace files: human readable text or compact binary (see {@link TraceDecoder}), either of which can be
+ * gzip compressed.
+ * <p>
+ * Compressed traces are plain gzip files, readable with <code>zcat</code> or <code>zless</code> (or directly by
+ * {@link TraceDecoder}, for binary traces). Compression happens where the trace is rendered, which is the
+ * {@link TraceWriter} thread unless tracing is synchronous. A compressed trace file is only complete once the trace is
+ * closed.
+ */
+public final class TraceFormat
+{
+    private static final int UNCOMPRESSED = -2;
+
+    /** Uncompressed text, the default */
+    public static final TraceFormat TEXT = new TraceFormat(false,UNCOMPRESSED,CharEscaper.DEFAULT_WIDTH);
+    /** Uncompressed binary */
+    public static final TraceFormat BINARY = new TraceFormat(true,UNCOMPRESSED,CharEscaper.DEFAULT_WIDTH);
+
+    private final boolean binary;
+    private final int level;
+    private final int lineWidth;
+
+    private TraceFormat(boolean binary, int level, int lineWidth)
+    {
+        this.binary = binary;
+        this.level = level;
+        this.lineWidth = lineWidth;
+    }
+
+    /**
+     * @param level
+     *            the {@link Deflater} compression level, from {@link Deflater#BEST_SPEED} to
+     *            {@link Deflater#BEST_COMPRESSION}, or {@link Deflater#DEFAULT_COMPRESSION}
+     * @return this format, gzip compressed
+     */
+    public TraceFormat gzip(int level)
+    {
+        if ((level != Deflater.DEFAULT_COMPRESSION) && ((level < Deflater.BEST_SPEED) || (level > Deflater.BEST_COMPRESSION)))
+        {
+            throw new IllegalArgumentException("Invalid compression level: " + level);
+        }
+        return new TraceFormat(binary,level,lineWidth);
+    }
+
+    /**
+     * @param lineWidth
+     *            the number of characters of content per line of a text trace (binary traces use the default width
+     *            when decoded)
+     * @return this format, with the given line width
+     */
+    public TraceFormat lineWidth(int lineWidth)
+    {
+        if (lineWidth <= 0)
+        {
+            throw new IllegalArgumentException("Invalid line width: " + lineWidth);
+        }
+        return new TraceFormat(binary,level,lineWidth);
+    }
+
+    public int getLineWidth()
+    {
+        return lineWidth;
+    }
+
+    public boolean isBinary()
+    {
+        return binary;
+    }
+
+    public boolean isCompressed()
+    {
+        return level != UNCOMPRESSED;
+    }
+
+    /**
+     * @return the file name suffix of traces of this format, eg: <code>".log.gz"</code>
+     */
+    public String getSuffix()
+    {
+        return (binary?".trc":".log") + (isCompressed()?".gz":"");
+    }
+
+    TraceOutput newOutput(File outputFile, TraceBufferPool pool) throws IOException
+    {
+        OutputStream out = new FileOutputStream(outputFile);
+        if (isCompressed())
+        {
+            try
+            {
+                out = new GZIPOutputStream(out,TraceBufferPool.BYTES)
+                {
+                    {
+                        def.setLevel(level);
+                    }
+                };
+            }
+            catch (IOException e)
+            {
+                out.close();
+                throw e;
+            }
+        }
+        if (binary)
+        {
+            return new TraceBinaryOutput(out);
+        }
+        return new TraceTextOutput(new TracePooledWriter(out,pool),lineWidth);
+    }
+
+    @Override
+    public String toString()
+    {
+        if (!isCompressed())
+        {
+            return binary?"binary":"text";
+        }
+        return String.format("%s+gzip(level=%d)",binary?"binary":"text",level);
+    }
+}
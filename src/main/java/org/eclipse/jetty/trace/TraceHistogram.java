@@ -0,0 +1,161 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.trace;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free histogram of positive long values (eg: nanoseconds), of fixed size.
+ * <p>
+ * Values are counted in log-linear buckets: each power of 2 is split into {@link #SUB_BUCKETS} linear buckets, so that
+ * a value is known to within 12.5%, whatever its magnitude, with 488 buckets covering the whole range of long values.
+ * Like {@link TraceCounter}, the counts are striped by thread, so that recording threads do not contend, and are only
+ * summed when read. Reading while values are recorded gives an approximate snapshot.
+ */
+public class TraceHistogram
+{
+    /** The linear buckets per power of 2 */
+    public static final int SUB_BUCKETS = 8;
+    private static final int SUB_BITS = 3;
+    private static final int BUCKETS = ((64 - SUB_BITS) * SUB_BUCKETS);
+
+    // per stripe: the bucket counts, followed by the sum of the values
+    private final AtomicLongArray[] stripes = new AtomicLongArray[TraceCounter.STRIPES];
+
+    public TraceHistogram()
+    {
+        for (int i = 0; i < stripes.length; i++)
+        {
+            stripes[i] = new AtomicLongArray(BUCKETS + 1);
+        }
+    }
+
+    static int bucketOf(long value)
+    {
+        if (value < SUB_BUCKETS)
+        {
+            return (int)Math.max(value,0);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int)(value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return ((exponent - SUB_BITS + 1) * SUB_BUCKETS) + sub;
+    }
+
+    /**
+     * @return the highest value counted in a bucket
+     */
+    static long upperBoundOf(int bucket)
+    {
+        if (bucket < SUB_BUCKETS)
+        {
+            return bucket;
+        }
+        int exponent = (bucket / SUB_BUCKETS) + SUB_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BITS);
+        return ((SUB_BUCKETS + sub) * width) + (width - 1);
+    }
+
+    /**
+     * @param value
+     *            the value to count, negative values are counted as 0
+     */
+    public void record(long value)
+    {
+        AtomicLongArray stripe = stripes[TraceCounter.stripe()];
+        stripe.getAndIncrement(bucketOf(value));
+        stripe.getAndAdd(BUCKETS,Math.max(value,0));
+    }
+
+    private long[] snapshot()
+    {
+        long[] counts = new long[BUCKETS + 1];
+        for (AtomicLongArray stripe : stripes)
+        {
+            for (int i = 0; i < counts.length; i++)
+            {
+                counts[i] += stripe.get(i);
+            }
+        }
+        return counts;
+    }
+
+    public long getCount()
+    {
+        long[] counts = snapshot();
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            count += counts[i];
+        }
+        return count;
+    }
+
+    /**
+     * @return the mean of the values, or 0 if there are none
+     */
+    public double getMean()
+    {
+        long[] counts = snapshot();
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            count += counts[i];
+        }
+        return (count == 0)?0.0:((double)counts[BUCKETS] / count);
+    }
+
+    /**
+     * @param percentile
+     *            the percentile, from 0.0 to 100.0
+     * @return the upper bound of the bucket holding the percentile, or 0 if there are no values
+     */
+    public long getPercentile(double percentile)
+    {
+        long[] counts = snapshot();
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            count += counts[i];
+        }
+        if (count == 0)
+        {
+            return 0;
+        }
+        long rank = Math.max(1,(long)Math.ceil((percentile / 100.0) * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            seen += counts[i];
+            if (seen >= rank)
+            {
+                return upperBoundOf(i);
+            }
+        }
+        return upperBoundOf(BUCKETS - 1);
+    }
+
+    /**
+     * @return the upper bound of the bucket of the highest value, or 0 if there are no values
+     */
+    public long getMax()
+    {
+        return getPercentile(100.0);
+    }
+}
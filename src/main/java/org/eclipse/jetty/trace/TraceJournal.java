@@ -0,0 +1,402 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.trace;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Append-only journal of many traces, written to rolling segment files.
+ * <p>
+ * Instead of one file per request, every trace is appended to the current segment
+ * (<code>trace-journal-NNNNNN.log</code>), and a new segment is started once the current one reaches the configured
+ * size.
+ * <p>
+ * Each trace is identified by the segment and byte offset of its first record, in the form
+ * <code>"NNNNNN-offset"</code>. Every line of a trace is written prefixed with that id and a space, lines of one trace
+ * are appended in blocks, and a line consisting of only the id marks the end of the trace. Traces written concurrently
+ * may interleave between blocks (and may continue into the next segment), use {@link #extract(File, String, Writer)} to
+ * reassemble a single trace.
+ * <p>
+ * Starting a trace does no I/O: the id is taken from the position of the journal in memory, and the first record of
+ * the trace is written to the segment with the next block appended by any trace, usually on the writer thread.
+ */
+public class TraceJournal implements Closeable
+{
+    /**
+     * The output of a single trace within the journal.
+     * <p>
+     * Collects the written characters, and appends all complete lines to the journal on {@link #flush()}, or once a few
+     * kilobytes are pending, so that a trace rendered without flushes (such as a synchronous trace) is not held in
+     * memory until it is closed.
+     */
+    public class Entry extends Writer
+    {
+        private final String id;
+        private final StringBuilder pending = new StringBuilder();
+        private boolean closed;
+
+        private Entry(String id)
+        {
+            this.id = id;
+        }
+
+        public String getId()
+        {
+            return id;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException
+        {
+            pending.append(cbuf,off,len);
+            if (pending.length() > PENDING_LIMIT)
+            {
+                flush();
+            }
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException
+        {
+            pending.append(str,off,off + len);
+            if (pending.length() > PENDING_LIMIT)
+            {
+                flush();
+            }
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+            int end = pending.lastIndexOf("\n") + 1;
+            if (end > 0)
+            {
+                appendBlock(prefixLines(end),false);
+                pending.delete(0,end);
+            }
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            if (closed)
+            {
+                return;
+            }
+            closed = true;
+            if (pending.length() > 0 && pending.charAt(pending.length() - 1) != '\n')
+            {
+                pending.append(LINESEP);
+            }
+            StringBuilder block = prefixLines(pending.length());
+            block.append(id).append(LINESEP);
+            pending.setLength(0);
+            appendBlock(block,true);
+        }
+
+        private StringBuilder prefixLines(int end)
+        {
+            StringBuilder block = new StringBuilder(end + 32);
+            int lineStart = 0;
+            while (lineStart < end)
+            {
+                int lineEnd = pending.indexOf("\n",lineStart) + 1;
+                block.append(id).append(' ').append(pending,lineStart,lineEnd);
+                lineStart = lineEnd;
+            }
+            return block;
+        }
+    }
+
+    private static final Logger LOG = Logger.getLogger(TraceJournal.class.getName());
+    private static final Charset CHARSET = StandardCharsets.UTF_8;
+    private static final Pattern SEGMENT_NAME = Pattern.compile("trace-journal-(\\d+)\\.log");
+    private static final String LINESEP = System.lineSeparator();
+    private static final int PENDING_LIMIT = 8 * 1024;
+
+    private final File dir;
+    private final long segmentSize;
+    // guards the position below, never held while writing
+    private final Object lock = new Object();
+    private int segment;
+    private long position;
+    // the first records of the traces started since the last append, counted in the position already
+    private final ByteArrayOutputStream records = new ByteArrayOutputStream();
+    private boolean closed;
+    // the segment being written, only accessed with this held
+    private TraceQuota quota;
+    private OutputStream out;
+
+    /**
+     * @param dir
+     *            the directory for the segment files
+     * @param segmentSize
+     *            the size (in bytes) at which to start a new segment, greater than 0
+     * @throws IOException
+     *             if the first segment cannot be created
+     */
+    public TraceJournal(File dir, long segmentSize) throws IOException
+    {
+        if (segmentSize <= 0)
+        {
+            throw new IllegalArgumentException("Invalid segment size: " + segmentSize);
+        }
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        // never append to segments of a previous run
+        int last = 0;
+        String[] names = dir.list();
+        if (names != null)
+        {
+            for (String name : names)
+            {
+                Matcher matcher = SEGMENT_NAME.matcher(name);
+                if (matcher.matches())
+                {
+                    last = Math.max(last,Integer.parseInt(matcher.group(1)));
+                }
+            }
+        }
+        segment = openSegment(last + 1);
+    }
+
+    /**
+     * Report each segment to a quota once it is complete.
+     *
+     * @param quota
+     *            the quota of the journal directory
+     */
+    public synchronized void setQuota(TraceQuota quota)
+    {
+        this.quota = quota;
+    }
+
+    public static File getSegmentFile(File dir, int segment)
+    {
+        return new File(dir,String.format("trace-journal-%06d.log",segment));
+    }
+
+    /**
+     * @return the number of the segment opened, the first one from the given number that did not exist yet
+     */
+    private int openSegment(int segment) throws IOException
+    {
+        while (true)
+        {
+            File file = getSegmentFile(dir,segment);
+            try
+            {
+                this.out = new BufferedOutputStream(Files.newOutputStream(file.toPath(),StandardOpenOption.CREATE_NEW,StandardOpenOption.WRITE),64 * 1024);
+                LOG.log(Level.FINE,"Opened journal segment: " + file);
+                return segment;
+            }
+            catch (FileAlreadyExistsException e)
+            {
+                // created by another journal writing to the same directory, never appended to
+                LOG.log(Level.FINE,"Skipped journal segment: " + file);
+                segment++;
+            }
+        }
+    }
+
+    /**
+     * Start a new trace in the journal.
+     *
+     * @param title
+     *            the text of the first record of the trace
+     * @return the entry to write the rest of the trace to
+     * @throws IOException
+     *             if the journal is closed
+     */
+    public Entry newEntry(String title) throws IOException
+    {
+        synchronized (lock)
+        {
+            if (closed)
+            {
+                throw new IOException("Journal closed: " + dir);
+            }
+            String id = String.format("%06d-%d",segment,position);
+            byte[] record = (id + ' ' + title + LINESEP).getBytes(CHARSET);
+            records.write(record,0,record.length);
+            position += record.length;
+            return new Entry(id);
+        }
+    }
+
+    private synchronized void appendBlock(CharSequence block, boolean flush) throws IOException
+    {
+        byte[] bytes = block.toString().getBytes(CHARSET);
+        byte[] started;
+        int full = -1;
+        synchronized (lock)
+        {
+            if (closed)
+            {
+                throw new IOException("Journal closed: " + dir);
+            }
+            started = takeRecords();
+            position += bytes.length;
+            if (position >= segmentSize)
+            {
+                full = segment;
+            }
+        }
+        out.write(started);
+        out.write(bytes);
+        if (full >= 0)
+        {
+            out.close();
+            if (quota != null)
+            {
+                quota.added(getSegmentFile(dir,full));
+            }
+            int next = openSegment(full + 1);
+            synchronized (lock)
+            {
+                // the traces started meanwhile are written first to the new segment
+                segment = next;
+                position = records.size();
+            }
+        }
+        else if (flush)
+        {
+            out.flush();
+        }
+    }
+
+    private byte[] takeRecords()
+    {
+        byte[] started = records.toByteArray();
+        records.reset();
+        return started;
+    }
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+        byte[] started;
+        synchronized (lock)
+        {
+            if (closed)
+            {
+                return;
+            }
+            closed = true;
+            started = takeRecords();
+        }
+        try
+        {
+            out.write(started);
+        }
+        finally
+        {
+            out.close();
+            out = null;
+        }
+    }
+
+    /**
+     * Reassemble a single trace from the journal.
+     *
+     * @param dir
+     *            the journal directory
+     * @param id
+     *            the trace id
+     * @param output
+     *            the writer to write the trace lines to (without the id prefix)
+     * @return true if the end of the trace was found
+     * @throws IOException
+     *             if the journal cannot be read
+     */
+    public static boolean extract(File dir, String id, Writer output) throws IOException
+    {
+        int dash = id.indexOf('-');
+        if (dash < 0)
+        {
+            throw new IllegalArgumentException("Not a journal trace id: " + id);
+        }
+        int segment = Integer.parseInt(id.substring(0,dash));
+        long offset = Long.parseLong(id.substring(dash + 1));
+        String prefix = id + ' ';
+
+        File file = getSegmentFile(dir,segment);
+        while (file.exists())
+        {
+            try (FileInputStream in = new FileInputStream(file))
+            {
+                in.getChannel().position(offset);
+                BufferedReader reader = new BufferedReader(new InputStreamReader(in,CHARSET));
+                String line;
+                while ((line = reader.readLine()) != null)
+                {
+                    if (line.equals(id))
+                    {
+                        output.flush();
+                        return true;
+                    }
+                    if (line.startsWith(prefix))
+                    {
+                        output.write(line,prefix.length(),line.length() - prefix.length());
+                        output.write(LINESEP);
+                    }
+                }
+            }
+            // the trace continues in the next segment
+            offset = 0;
+            file = getSegmentFile(dir,++segment);
+        }
+        output.flush();
+        return false;
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length != 2)
+        {
+            System.err.println("Usage: java " + TraceJournal.class.getName() + " <journal-dir> <trace-id>");
+            System.exit(1);
+        }
+        PrintWriter output = new PrintWriter(new OutputStreamWriter(System.out));
+        if (!extract(new File(args[0]),args[1],output))
+        {
+            System.err.println("End of trace not found: " + args[1]);
+        }
+    }
+}
@@ -0,0 +1,255 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.trace;
+
+/**
+ * The cost and activity of a {@link TraceFilter}, registered as an MBean by the filter.
+ * <p>
+ * Counters and histograms are striped (see {@link TraceCounter} and {@link TraceHistogram}), so that recording from
+ * many request threads does not contend. Captured bytes are added once per trace, when it is closed. The trace write
+ * time is the time spent rendering and writing the events of a trace, summed over the trace.
+ */
+public class TraceMetrics implements TraceMetricsMBean
+{
+    private static final double NANOS_PER_MILLI = 1_000_000.0;
+
+    private final TraceWriter writer;
+    private final TraceCounter traced = new TraceCounter();
+    private final TraceCounter excluded = new TraceCounter();
+    private final TraceCounter sampledOut = new TraceCounter();
+    private final TraceCounter quotaSkipped = new TraceCounter();
+    private final TraceCounter requestBytes = new TraceCounter();
+    private final TraceCounter responseBytes = new TraceCounter();
+    private final TraceCounter openTraces = new TraceCounter();
+    private final TraceCounter asyncTimeouts = new TraceCounter();
+    private final TraceCounter asyncErrors = new TraceCounter();
+    private final TraceHistogram requestDuration = new TraceHistogram();
+    private final TraceHistogram traceWriteTime = new TraceHistogram();
+
+    /**
+     * @param writer
+     *            the background writer of the traces, or null if traces are written synchronously
+     */
+    public TraceMetrics(TraceWriter writer)
+    {
+        this.writer = writer;
+    }
+
+    public void onTraced()
+    {
+        traced.increment();
+    }
+
+    public void onExcluded()
+    {
+        excluded.increment();
+    }
+
+    public void onSampledOut()
+    {
+        sampledOut.increment();
+    }
+
+    public void onQuotaSkipped()
+    {
+        quotaSkipped.increment();
+    }
+
+    void onAsyncTimeout()
+    {
+        asyncTimeouts.increment();
+    }
+
+    void onAsyncError()
+    {
+        asyncErrors.increment();
+    }
+
+    void onOpened()
+    {
+        openTraces.increment();
+    }
+
+    /**
+     * A trace was closed by the request.
+     */
+    void onClosed(long requestBytes, long responseBytes, long durationNanos)
+    {
+        this.requestBytes.add(requestBytes);
+        this.responseBytes.add(responseBytes);
+        requestDuration.record(durationNanos);
+    }
+
+    /**
+     * The output of a trace was closed, after all its events were written.
+     */
+    void onWritten(long writeNanos)
+    {
+        openTraces.add(-1);
+        traceWriteTime.record(writeNanos);
+    }
+
+    public TraceHistogram getRequestDuration()
+    {
+        return requestDuration;
+    }
+
+    public TraceHistogram getTraceWriteTime()
+    {
+        return traceWriteTime;
+    }
+
+    @Override
+    public long getTracedRequests()
+    {
+        return traced.get();
+    }
+
+    @Override
+    public long getExcludedRequests()
+    {
+        return excluded.get();
+    }
+
+    @Override
+    public long getSampledOutRequests()
+    {
+        return sampledOut.get();
+    }
+
+    @Override
+    public long getQuotaSkippedRequests()
+    {
+        return quotaSkipped.get();
+    }
+
+    @Override
+    public long getRequestBytesCaptured()
+    {
+        return requestBytes.get();
+    }
+
+    @Override
+    public long getResponseBytesCaptured()
+    {
+        return responseBytes.get();
+    }
+
+    @Override
+    public int getQueueDepth()
+    {
+        return (writer == null)?0:writer.getQueueDepth();
+    }
+
+    @Override
+    public long getDroppedEvents()
+    {
+        return (writer == null)?0:writer.getDroppedEvents();
+    }
+
+    @Override
+    public long getOpenTraces()
+    {
+        return openTraces.get();
+    }
+
+    @Override
+    public long getAsyncTimeouts()
+    {
+        return asyncTimeouts.get();
+    }
+
+    @Override
+    public long getAsyncErrors()
+    {
+        return asyncErrors.get();
+    }
+
+    @Override
+    public long getRequestDurationCount()
+    {
+        return requestDuration.getCount();
+    }
+
+    @Override
+    public double getRequestDurationMean()
+    {
+        return requestDuration.getMean() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getRequestDuration50thPercentile()
+    {
+        return requestDuration.getPercentile(50.0) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getRequestDuration99thPercentile()
+    {
+        return requestDuration.getPercentile(99.0) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getRequestDuration999thPercentile()
+    {
+        return requestDuration.getPercentile(99.9) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getRequestDurationMax()
+    {
+        return requestDuration.getMax() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public long getTraceWriteTimeCount()
+    {
+        return traceWriteTime.getCount();
+    }
+
+    @Override
+    public double getTraceWriteTimeMean()
+    {
+        return traceWriteTime.getMean() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getTraceWriteTime50thPercentile()
+    {
+        return traceWriteTime.getPercentile(50.0) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getTraceWriteTime99thPercentile()
+    {
+        return traceWriteTime.getPercentile(99.0) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getTraceWriteTime999thPercentile()
+    {
+        return traceWriteTime.getPercentile(99.9) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getTraceWriteTimeMax()
+    {
+        return traceWriteTime.getMax() / NANOS_PER_MILLI;
+    }
+}
@@ -0,0 +1,74 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.trace;
+
+/**
+ * The JMX view of {@link TraceMetrics}. Durations are in milliseconds.
+ */
+public interface TraceMetricsMBean
+{
+    long getTracedRequests();
+
+    long getExcludedRequests();
+
+    long getSampledOutRequests();
+
+    long getQuotaSkippedRequests();
+
+    long getRequestBytesCaptured();
+
+    long getResponseBytesCaptured();
+
+    int getQueueDepth();
+
+    long getDroppedEvents();
+
+    /**
+     * @return the traces opened but not yet written out, a count that keeps growing shows leaked traces
+     */
+    long getOpenTraces();
+
+    long getAsyncTimeouts();
+
+    long getAsyncErrors();
+
+    long getRequestDurationCount();
+
+    double getRequestDurationMean();
+
+    double getRequestDuration50thPercentile();
+
+    double getRequestDuration99thPercentile();
+
+    double getRequestDuration999thPercentile();
+
+    double getRequestDurationMax();
+
+    long getTraceWriteTimeCount();
+
+    double getTraceWriteTimeMean();
+
+    double getTraceWriteTime50thPercentile();
+
+    double getTraceWriteTime99thPercentile();
+
+    double getTraceWriteTime999thPercentile();
+
+    double getTraceWriteTimeMax();
+}
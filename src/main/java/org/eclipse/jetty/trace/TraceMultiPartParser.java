@@ -0,0 +1,335 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.trace;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Incremental parser of a multipart request body (RFC 2046), fed with the body bytes as the application reads them.
+ * <p>
+ * Only the headers of each part (up to {@link #MAX_HEADERS} bytes) and the first bytes of its content are held, the
+ * rest of the content is only counted, so that an upload of any size is traced in constant memory. The delimiter is
+ * matched without buffering any content: the characters of a boundary cannot include CR, so a partial match that
+ * fails is content, and a new match can only start at a CR.
+ * <p>
+ * Not thread safe, called by the thread capturing the request content.
+ */
+class TraceMultiPartParser
+{
+    /**
+     * Receives the parts, as they end.
+     */
+    interface Listener
+    {
+        /**
+         * @param index
+         *            the index of the part, from 1
+         * @param headers
+         *            the header lines of the part, separated by CRLF
+         * @param size
+         *            the number of content bytes of the part
+         * @param preview
+         *            the leading content bytes of the part, owned by the listener
+         * @param previewLength
+         *            the number of valid bytes in <code>preview</code>
+         * @param complete
+         *            false if the request content ended within the part
+         */
+        void onPart(int index, String headers, long size, byte[] preview, int previewLength, boolean complete);
+
+        /**
+         * @param parts
+         *            the number of parts
+         * @param complete
+         *            false if the request content ended before the close delimiter
+         */
+        void onEnd(int parts, boolean complete);
+    }
+
+    /** The maximum number of header bytes kept for each part, longer headers are truncated */
+    static final int MAX_HEADERS = 8192;
+    private static final byte[] HEADERS_END = { '\r', '\n', '\r', '\n' };
+
+    private enum State
+    {
+        PREAMBLE, DELIMITER, HEADERS, CONTENT, EPILOGUE
+    }
+
+    private final byte[] delimiter;
+    private final int previewLimit;
+    private final Listener listener;
+    private final byte[] single = new byte[1];
+    private State state = State.PREAMBLE;
+    // the body may start with the dash boundary, without the CRLF of the delimiter
+    private int match = 2;
+    private int dashes;
+    private int parts;
+    private byte[] headers;
+    private int headersLength;
+    private int headersMatch;
+    private String partHeaders;
+    private long size;
+    private byte[] preview;
+    private int previewLength;
+
+    /**
+     * @param boundary
+     *            the boundary of the body, see {@link #getBoundary(String)}
+     * @param previewLimit
+     *            the number of leading content bytes of each part passed to the listener
+     * @param listener
+     *            the listener of the parts
+     */
+    TraceMultiPartParser(String boundary, int previewLimit, Listener listener)
+    {
+        this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        this.previewLimit = Math.max(0,previewLimit);
+        this.listener = listener;
+    }
+
+    void parse(byte b)
+    {
+        single[0] = b;
+        parse(single,0,1);
+    }
+
+    void parse(byte[] b, int off, int len)
+    {
+        int end = off + len;
+        int pos = off;
+        while (pos < end)
+        {
+            switch (state)
+            {
+                case PREAMBLE:
+                case CONTENT:
+                    pos = scan(b,pos,end);
+                    break;
+                case DELIMITER:
+                    pos = parseDelimiter(b,pos,end);
+                    break;
+                case HEADERS:
+                    pos = parseHeaders(b,pos,end);
+                    break;
+                case EPILOGUE:
+                    return;
+            }
+        }
+    }
+
+    /**
+     * The request content has ended, report any part in progress.
+     */
+    void close()
+    {
+        switch (state)
+        {
+            case HEADERS:
+                partHeaders = toString(headers,headersLength);
+                endPart(false);
+                break;
+            case CONTENT:
+                if (match > 0)
+                {
+                    content(delimiter,0,match);
+                }
+                endPart(false);
+                break;
+            case EPILOGUE:
+                return;
+            default:
+                break;
+        }
+        state = State.EPILOGUE;
+        listener.onEnd(parts,false);
+    }
+
+    /**
+     * Scan content (or the preamble) for the delimiter.
+     *
+     * @return the position after the delimiter, or <code>end</code> if it is not found
+     */
+    private int scan(byte[] b, int off, int end)
+    {
+        int pos = off;
+        while (pos < end)
+        {
+            byte c = b[pos++];
+            if (c == delimiter[match])
+            {
+                if (++match == delimiter.length)
+                {
+                    match = 0;
+                    if (state == State.CONTENT)
+                    {
+                        endPart(true);
+                    }
+                    state = State.DELIMITER;
+                    dashes = 0;
+                    return pos;
+                }
+                continue;
+            }
+            if (match > 0)
+            {
+                // not a delimiter after all
+                content(delimiter,0,match);
+                match = 0;
+                if (c == '\r')
+                {
+                    match = 1;
+                    continue;
+                }
+            }
+            // everything up to the next CR is content
+            int start = pos - 1;
+            while ((pos < end) && (b[pos] != '\r'))
+            {
+                pos++;
+            }
+            content(b,start,pos - start);
+        }
+        return end;
+    }
+
+    /**
+     * The rest of the delimiter line: <code>--</code> for the close delimiter, or any transport padding up to the LF
+     * that starts the headers of the next part.
+     */
+    private int parseDelimiter(byte[] b, int off, int end)
+    {
+        int pos = off;
+        while (pos < end)
+        {
+            byte c = b[pos++];
+            if ((c == '-') && (++dashes == 2))
+            {
+                state = State.EPILOGUE;
+                listener.onEnd(parts,true);
+                return end;
+            }
+            if (c == '\n')
+            {
+                startPart();
+                return pos;
+            }
+        }
+        return end;
+    }
+
+    private int parseHeaders(byte[] b, int off, int end)
+    {
+        int pos = off;
+        while (pos < end)
+        {
+            byte c = b[pos++];
+            if (headersLength < headers.length)
+            {
+                headers[headersLength++] = c;
+            }
+            if (c == HEADERS_END[headersMatch])
+            {
+                if (++headersMatch == HEADERS_END.length)
+                {
+                    partHeaders = toString(headers,headersLength);
+                    state = State.CONTENT;
+                    return pos;
+                }
+            }
+            else
+            {
+                headersMatch = (c == '\r')?1:0;
+            }
+        }
+        return end;
+    }
+
+    private void startPart()
+    {
+        parts++;
+        if (headers == null)
+        {
+            headers = new byte[MAX_HEADERS];
+        }
+        headersLength = 0;
+        // the CRLF of the delimiter line ends the headers of a part without headers
+        headersMatch = 2;
+        partHeaders = null;
+        size = 0;
+        preview = (previewLimit > 0)?new byte[previewLimit]:null;
+        previewLength = 0;
+        state = State.HEADERS;
+    }
+
+    private void content(byte[] b, int off, int len)
+    {
+        if (state != State.CONTENT)
+        {
+            // preamble
+            return;
+        }
+        size += len;
+        if (previewLength < previewLimit)
+        {
+            int n = Math.min(len,previewLimit - previewLength);
+            System.arraycopy(b,off,preview,previewLength,n);
+            previewLength += n;
+        }
+    }
+
+    private void endPart(boolean complete)
+    {
+        listener.onPart(parts,partHeaders,size,preview,previewLength,complete);
+        preview = null;
+    }
+
+    private static String toString(byte[] headers, int length)
+    {
+        // header values are mostly ASCII, UTF-8 for the file names of browsers
+        return new String(headers,0,length,StandardCharsets.UTF_8).trim();
+    }
+
+    /**
+     * @param contentType
+     *            the content type of a request
+     * @return the boundary of a multipart content type, or null if it is not multipart or has no boundary
+     */
+    static String getBoundary(String contentType)
+    {
+        if ((contentType == null) || !contentType.toLowerCase(Locale.ENGLISH).startsWith("multipart/"))
+        {
+            return null;
+        }
+        for (String param : contentType.split(";"))
+        {
+            param = param.trim();
+            if (param.regionMatches(true,0,"boundary=",0,9))
+            {
+                String boundary = param.substring(9).trim();
+                if ((boundary.length() > 1) && boundary.startsWith("\"") && boundary.endsWith("\""))
+                {
+                    boundary = boundary.substring(1,boundary.length() - 1);
+                }
+                return boundary.isEmpty()?null:boundary;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,76 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.trace;
+
+import java.io.IOException;
+
+/**
+ * The encoding of rendered trace events.
+ * <p>
+ * Called with the lock of the output held, by one thread at a time. Timestamps are {@link System#nanoTime()} values,
+ * relative to the <code>startNanos</code> given to {@link #open(String, long, long)}.
+ *
+ * @see TraceTextOutput
+ * @see TraceBinaryOutput
+ */
+interface TraceOutput
+{
+    /**
+     * Creates an output when it is needed.
+     */
+    interface Factory
+    {
+        TraceOutput newOutput() throws IOException;
+    }
+
+    /**
+     * @param id
+     *            the id of the trace
+     * @param start
+     *            the wall clock start of the trace, in milliseconds
+     * @param startNanos
+     *            the {@link System#nanoTime()} at the start of the trace
+     */
+    void open(String id, long start, long startNanos);
+
+    void line(long timestamp, String format, Object... args);
+
+    /**
+     * A title line, followed by preformatted text (with line separators).
+     */
+    void block(long timestamp, String title, String block);
+
+    void content(long timestamp, String mode, byte[] b, int off, int len);
+
+    void content(long timestamp, String mode, char[] c, int off, int len);
+
+    /**
+     * The byte content of a mode that follows is text in a charset, such as a response body encoded by the filter.
+     * Outputs that render content may decode it, outputs that store content keep the raw bytes.
+     */
+    void charset(long timestamp, String mode, String charset);
+
+    void elided(long timestamp, String mode, boolean chars, long count);
+
+    void closed(long timestamp, String mode, boolean chars, long seen, long elided);
+
+    void flush();
+
+    void close();
+}
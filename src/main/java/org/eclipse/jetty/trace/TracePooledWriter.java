@@ -0,0 +1,195 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.trace;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * A buffered writer encoding to the default charset, like a {@link java.io.BufferedWriter} over an
+ * {@link java.io.OutputStreamWriter}, but with its char and byte buffers taken from a {@link TraceBufferPool} and
+ * returned to it when closed.
+ */
+class TracePooledWriter extends Writer
+{
+    private final OutputStream out;
+    private final TraceBufferPool pool;
+    private final CharsetEncoder encoder;
+    private char[] chars;
+    private byte[] bytes;
+    private CharBuffer charBuffer;
+    private ByteBuffer byteBuffer;
+    private int count;
+
+    /**
+     * @param out
+     *            the stream to write the encoded characters to
+     * @param pool
+     *            the pool of the buffers, or null to allocate them
+     */
+    public TracePooledWriter(OutputStream out, TraceBufferPool pool)
+    {
+        this.out = out;
+        this.pool = pool;
+        this.encoder = Charset.defaultCharset().newEncoder();
+        encoder.onMalformedInput(CodingErrorAction.REPLACE);
+        encoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.chars = (pool == null)?new char[TraceBufferPool.CHARS]:pool.acquireChars();
+        this.bytes = (pool == null)?new byte[TraceBufferPool.BYTES]:pool.acquireBytes();
+        this.charBuffer = CharBuffer.wrap(chars);
+        this.byteBuffer = ByteBuffer.wrap(bytes);
+    }
+
+    private void ensureOpen() throws IOException
+    {
+        if (chars == null)
+        {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    @Override
+    public void write(int c) throws IOException
+    {
+        ensureOpen();
+        if (count == chars.length)
+        {
+            flushBuffer(false);
+        }
+        chars[count++] = (char)c;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException
+    {
+        ensureOpen();
+        while (len > 0)
+        {
+            if (count == chars.length)
+            {
+                flushBuffer(false);
+            }
+            int part = Math.min(len,chars.length - count);
+            System.arraycopy(cbuf,off,chars,count,part);
+            count += part;
+            off += part;
+            len -= part;
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException
+    {
+        ensureOpen();
+        while (len > 0)
+        {
+            if (count == chars.length)
+            {
+                flushBuffer(false);
+            }
+            int part = Math.min(len,chars.length - count);
+            str.getChars(off,off + part,chars,count);
+            count += part;
+            off += part;
+            len -= part;
+        }
+    }
+
+    /**
+     * Encode the buffered characters to the stream. Without the end of input, a trailing high surrogate is kept in the
+     * buffer, to be encoded with the low surrogate that follows it.
+     */
+    private void flushBuffer(boolean endOfInput) throws IOException
+    {
+        charBuffer.limit(count).position(0);
+        while (true)
+        {
+            CoderResult result = encoder.encode(charBuffer,byteBuffer,endOfInput);
+            if (result.isOverflow())
+            {
+                drain();
+            }
+            else
+            {
+                break;
+            }
+        }
+        if (endOfInput)
+        {
+            while (encoder.flush(byteBuffer).isOverflow())
+            {
+                drain();
+            }
+        }
+        drain();
+        int remaining = charBuffer.remaining();
+        System.arraycopy(chars,charBuffer.position(),chars,0,remaining);
+        count = remaining;
+    }
+
+    private void drain() throws IOException
+    {
+        if (byteBuffer.position() > 0)
+        {
+            out.write(bytes,0,byteBuffer.position());
+            byteBuffer.clear();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        ensureOpen();
+        flushBuffer(false);
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (chars == null)
+        {
+            return;
+        }
+        try
+        {
+            flushBuffer(true);
+            out.close();
+        }
+        finally
+        {
+            if (pool != null)
+            {
+                pool.release(chars);
+                pool.release(bytes);
+            }
+            chars = null;
+            bytes = null;
+            charBuffer = null;
+            byteBuffer = null;
+        }
+    }
+}
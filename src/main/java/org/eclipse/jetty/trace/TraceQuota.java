@@ -0,0 +1,342 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.trace;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps the trace files of a directory within a maximum total size, a maximum number of files and a maximum age, by
+ * deleting the oldest traces first.
+ * <p>
+ * The directory is only scanned once, when started. From then on, every completed trace file is reported with
+ * {@link #added(File)}, and the running total is kept in memory. A background thread deletes the oldest files once
+ * the total exceeds {@link #HIGH_WATER} of a limit, down to {@link #LOW_WATER} of it, and deletes files older than the
+ * maximum age. Only the files written by the trace filter (trace files and journal segments) are ever deleted.
+ * <p>
+ * Nothing ever waits for the eviction. Instead, when traces are added faster than they are deleted, {@link #getMode()}
+ * tells the filter to fall back to cheaper tracing: headers only once the high water mark is exceeded, and no tracing
+ * at all once a limit is reached.
+ * <p>
+ * The limits apply to completed files only. The traces still being written (including the spill files of traces
+ * waiting on their retention decision) and the journal segment being appended to are counted once complete, so the
+ * directory may exceed the maximum size by as much as is in flight: the open traces, plus one journal segment.
+ */
+public class TraceQuota implements Runnable
+{
+    /**
+     * The tracing allowed by the quota.
+     */
+    public enum Mode
+    {
+        /** Trace everything */
+        FULL,
+        /** Trace the headers and events, but no body content */
+        HEADERS,
+        /** Do not trace */
+        NONE
+    }
+
+    private static class Trace
+    {
+        private final File file;
+        private final long size;
+        private final long time;
+
+        public Trace(File file, long size, long time)
+        {
+            this.file = file;
+            this.size = size;
+            this.time = time;
+        }
+    }
+
+    /** The fraction of a limit above which traces are evicted, and tracing is reduced to headers only */
+    public static final double HIGH_WATER = 0.9;
+    /** The fraction of a limit down to which traces are evicted */
+    public static final double LOW_WATER = 0.8;
+
+    private static final Logger LOG = Logger.getLogger(TraceQuota.class.getName());
+    private static final Pattern TRACE_NAME = Pattern.compile("(tracer-.*\\.(log|trc)(\\.gz)?)|(trace-journal-\\d+\\.log)");
+    private static final long PERIOD = 1000;
+
+    private final File dir;
+    private final long maxSize;
+    private final int maxFiles;
+    private final long maxAge;
+    // oldest first
+    private final Queue<Trace> traces = new ConcurrentLinkedQueue<>();
+    private final AtomicLong totalSize = new AtomicLong();
+    private final AtomicInteger fileCount = new AtomicInteger();
+    private final AtomicLong evictedFiles = new AtomicLong();
+    private volatile boolean running;
+    private Thread thread;
+    private Mode mode = Mode.FULL;
+
+    /**
+     * @param dir
+     *            the directory of the trace files
+     * @param maxSize
+     *            the maximum total size of the trace files, in bytes, or 0 for no limit
+     * @param maxFiles
+     *            the maximum number of trace files, or 0 for no limit
+     * @param maxAge
+     *            the maximum age of a trace file, in milliseconds, or 0 for no limit
+     */
+    public TraceQuota(File dir, long maxSize, int maxFiles, long maxAge)
+    {
+        if ((maxSize < 0) || (maxFiles < 0) || (maxAge < 0))
+        {
+            throw new IllegalArgumentException("Invalid trace quota: " + maxSize + " bytes, " + maxFiles + " files, " + maxAge + "ms");
+        }
+        this.dir = dir;
+        this.maxSize = maxSize;
+        this.maxFiles = maxFiles;
+        this.maxAge = maxAge;
+    }
+
+    public long getTotalSize()
+    {
+        return totalSize.get();
+    }
+
+    public int getFileCount()
+    {
+        return fileCount.get();
+    }
+
+    public long getEvictedFiles()
+    {
+        return evictedFiles.get();
+    }
+
+    /**
+     * @return the tracing allowed, given the total size and number of trace files now
+     */
+    public Mode getMode()
+    {
+        double usage = getUsage();
+        if (usage >= 1.0)
+        {
+            return Mode.NONE;
+        }
+        if (usage > HIGH_WATER)
+        {
+            return Mode.HEADERS;
+        }
+        return Mode.FULL;
+    }
+
+    /**
+     * @return the highest fraction of a limit in use
+     */
+    private double getUsage()
+    {
+        double usage = 0.0;
+        if (maxSize > 0)
+        {
+            usage = (double)totalSize.get() / maxSize;
+        }
+        if (maxFiles > 0)
+        {
+            usage = Math.max(usage,(double)fileCount.get() / maxFiles);
+        }
+        return usage;
+    }
+
+    /**
+     * Account for a completed trace file.
+     *
+     * @param file
+     *            the trace file, which is ignored if it does not exist
+     */
+    public void added(File file)
+    {
+        add(file,file.length(),System.currentTimeMillis());
+        if (getUsage() > HIGH_WATER)
+        {
+            synchronized (this)
+            {
+                notifyAll();
+            }
+        }
+    }
+
+    private void add(File file, long size, long time)
+    {
+        if ((size == 0) && !file.exists())
+        {
+            return;
+        }
+        traces.add(new Trace(file,size,time));
+        totalSize.addAndGet(size);
+        fileCount.incrementAndGet();
+    }
+
+    /**
+     * Account for the trace files already in the directory, oldest first.
+     */
+    private void scan()
+    {
+        File[] files = dir.listFiles();
+        if (files == null)
+        {
+            return;
+        }
+        List<Trace> existing = new ArrayList<>();
+        for (File file : files)
+        {
+            if (TRACE_NAME.matcher(file.getName()).matches() && file.isFile())
+            {
+                existing.add(new Trace(file,file.length(),file.lastModified()));
+            }
+        }
+        Collections.sort(existing,new Comparator<Trace>()
+        {
+            @Override
+            public int compare(Trace a, Trace b)
+            {
+                return Long.compare(a.time,b.time);
+            }
+        });
+        for (Trace trace : existing)
+        {
+            add(trace.file,trace.size,trace.time);
+        }
+        LOG.log(Level.FINE,"Found {0} trace files of {1} bytes in {2}",new Object[] { fileCount.get(), totalSize.get(), dir });
+    }
+
+    /**
+     * Delete the oldest trace files, until the trace files are within {@link #LOW_WATER} of the limits (if they
+     * exceeded {@link #HIGH_WATER}), and none are older than the maximum age.
+     */
+    public void evict()
+    {
+        boolean over = getUsage() > HIGH_WATER;
+        long expired = (maxAge > 0)?(System.currentTimeMillis() - maxAge):Long.MIN_VALUE;
+        Trace trace;
+        while ((trace = traces.peek()) != null)
+        {
+            if (over)
+            {
+                over = getUsage() > LOW_WATER;
+            }
+            if (!over && (trace.time >= expired))
+            {
+                break;
+            }
+            if (traces.remove(trace))
+            {
+                if (!trace.file.delete() && trace.file.exists())
+                {
+                    LOG.log(Level.WARNING,"Unable to delete trace file: " + trace.file);
+                }
+                totalSize.addAndGet(-trace.size);
+                fileCount.decrementAndGet();
+                evictedFiles.incrementAndGet();
+            }
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        while (running)
+        {
+            try
+            {
+                evict();
+                Mode current = getMode();
+                if (current != mode)
+                {
+                    LOG.log((current == Mode.FULL)?Level.INFO:Level.WARNING,"Trace quota of {0} in use, tracing: {1}",new Object[] { dir, current });
+                    mode = current;
+                }
+            }
+            catch (RuntimeException e)
+            {
+                LOG.log(Level.WARNING,"Unable to evict traces",e);
+            }
+            synchronized (this)
+            {
+                try
+                {
+                    if (running && (getUsage() <= HIGH_WATER))
+                    {
+                        wait(PERIOD);
+                    }
+                }
+                catch (InterruptedException e)
+                {
+                    LOG.log(Level.FINE,"Interrupted",e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Scan the directory for existing trace files, and start the eviction thread.
+     */
+    public synchronized void start()
+    {
+        if (running)
+        {
+            return;
+        }
+        scan();
+        running = true;
+        thread = new Thread(this,"TraceQuota");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop()
+    {
+        Thread stopping;
+        synchronized (this)
+        {
+            if (!running)
+            {
+                return;
+            }
+            running = false;
+            notifyAll();
+            stopping = thread;
+            thread = null;
+        }
+        try
+        {
+            stopping.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.trace;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Decision, at the end of a request, of whether its trace is worth keeping.
+ * <p>
+ * A trace is retained if any of the configured conditions match:
+ * <ul>
+ * <li>the response status is at least a minimum status (eg: 500)</li>
+ * <li>the request took longer than a threshold</li>
+ * <li>an exception was logged to the trace</li>
+ * <li>the response has one of a set of headers (case insensitive), so that an application can ask for its trace</li>
+ * </ul>
+ * Until then, the events of the trace are buffered in memory (up to {@link #getBufferSize()} bytes, in the compact
+ * binary format) and in a spill file beyond that, so that traces which are not retained never reach the trace output.
+ */
+public class TraceRetention
+{
+    private final int minStatus;
+    private final long slowNanos;
+    private final boolean errors;
+    private final Set<String> headers = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+    private int bufferSize = 64 * 1024;
+
+    /**
+     * @param minStatus
+     *            retain responses with at least this status, or 0
+     * @param slowMillis
+     *            retain requests that took longer than this, or 0
+     * @param errors
+     *            retain traces with an exception logged
+     * @param headers
+     *            retain responses with any of these headers
+     */
+    public TraceRetention(int minStatus, long slowMillis, boolean errors, String... headers)
+    {
+        if (minStatus < 0)
+        {
+            throw new IllegalArgumentException("Invalid status: " + minStatus);
+        }
+        if (slowMillis < 0)
+        {
+            throw new IllegalArgumentException("Invalid duration: " + slowMillis);
+        }
+        this.minStatus = minStatus;
+        this.slowNanos = TimeUnit.MILLISECONDS.toNanos(slowMillis);
+        this.errors = errors;
+        this.headers.addAll(Arrays.asList(headers));
+    }
+
+    public int getBufferSize()
+    {
+        return bufferSize;
+    }
+
+    /**
+     * @param bufferSize
+     *            the bytes of a trace to buffer in memory, before spilling to a temporary file
+     * @return this
+     */
+    public TraceRetention setBufferSize(int bufferSize)
+    {
+        if (bufferSize < 0)
+        {
+            throw new IllegalArgumentException("Invalid buffer size: " + bufferSize);
+        }
+        this.bufferSize = bufferSize;
+        return this;
+    }
+
+    /**
+     * @param response
+     *            the response, or null if not known
+     * @param nanos
+     *            the duration of the request
+     * @param failed
+     *            true if an exception was logged to the trace
+     * @return true if the trace should be kept
+     */
+    public boolean isRetained(HttpServletResponse response, long nanos, boolean failed)
+    {
+        if (errors && failed)
+        {
+            return true;
+        }
+        if ((slowNanos > 0) && (nanos > slowNanos))
+        {
+            return true;
+        }
+        if (response != null)
+        {
+            if ((minStatus > 0) && (response.getStatus() >= minStatus))
+            {
+                return true;
+            }
+            if (!headers.isEmpty())
+            {
+                for (String name : response.getHeaderNames())
+                {
+                    if (headers.contains(name))
+                    {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+}
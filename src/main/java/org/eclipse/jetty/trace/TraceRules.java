@@ -0,0 +1,318 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.trace;
+
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Precompiled include and exclude rules for requests.
+ * <p>
+ * A request is traced if it matches the include rules (when there are any), and does not match the exclude rules. A
+ * set of rules matches if any single rule of the set matches, where the rules are compiled so that the cost of
+ * matching a request depends on the request, not on the number of rules:
+ * <ul>
+ * <li>path prefixes - a trie walked once along the path (relative to the context path)</li>
+ * <li>extensions - a hash set of the lower case extension of the last path segment</li>
+ * <li>methods - a hash set of the request method</li>
+ * <li>headers - a case insensitive set, checked for each header present on the request</li>
+ * <li>content types - a case insensitive trie of prefixes of the request content type</li>
+ * </ul>
+ */
+public class TraceRules
+{
+    /**
+     * Trie of prefixes, matching if any of the prefixes is a prefix of the input.
+     */
+    public static class PrefixTrie
+    {
+        private static class Node
+        {
+            private char[] chars = new char[0];
+            private Node[] next = new Node[0];
+            private boolean terminal;
+
+            private Node child(char c)
+            {
+                for (int i = 0; i < chars.length; i++)
+                {
+                    if (chars[i] == c)
+                    {
+                        return next[i];
+                    }
+                }
+                return null;
+            }
+
+            private Node addChild(char c)
+            {
+                Node child = child(c);
+                if (child == null)
+                {
+                    child = new Node();
+                    chars = Arrays.copyOf(chars,chars.length + 1);
+                    next = Arrays.copyOf(next,next.length + 1);
+                    chars[chars.length - 1] = c;
+                    next[next.length - 1] = child;
+                }
+                return child;
+            }
+        }
+
+        private final Node root = new Node();
+        private final boolean ignoreCase;
+        private int size;
+
+        public PrefixTrie(boolean ignoreCase)
+        {
+            this.ignoreCase = ignoreCase;
+        }
+
+        public void add(String prefix)
+        {
+            Node node = root;
+            for (int i = 0; i < prefix.length(); i++)
+            {
+                node = node.addChild(fold(prefix.charAt(i)));
+            }
+            node.terminal = true;
+            size++;
+        }
+
+        private char fold(char c)
+        {
+            return ignoreCase?Character.toLowerCase(c):c;
+        }
+
+        public boolean isEmpty()
+        {
+            return size == 0;
+        }
+
+        public boolean matches(String input)
+        {
+            return matches(input,0);
+        }
+
+        /**
+         * @param input
+         *            the input to test
+         * @param offset
+         *            the offset in the input to start matching at
+         * @return true if any prefix matches the input
+         */
+        public boolean matches(String input, int offset)
+        {
+            if ((input == null) || (size == 0))
+            {
+                return false;
+            }
+            Node node = root;
+            for (int i = offset; i < input.length(); i++)
+            {
+                if (node.terminal)
+                {
+                    return true;
+                }
+                node = node.child(fold(input.charAt(i)));
+                if (node == null)
+                {
+                    return false;
+                }
+            }
+            return node.terminal;
+        }
+    }
+
+    /**
+     * A set of rules of which any single one needs to match.
+     */
+    public static class RuleSet
+    {
+        private final PrefixTrie paths = new PrefixTrie(false);
+        private final Set<String> extensions = new HashSet<>();
+        private final Set<String> methods = new HashSet<>();
+        // lower case, as header names are case insensitive
+        private final Set<String> headers = new HashSet<>();
+        private final PrefixTrie contentTypes = new PrefixTrie(true);
+
+        public RuleSet addPaths(String... prefixes)
+        {
+            for (String prefix : prefixes)
+            {
+                paths.add(prefix);
+            }
+            return this;
+        }
+
+        public RuleSet addExtensions(String... exts)
+        {
+            for (String ext : exts)
+            {
+                extensions.add((ext.startsWith(".")?ext.substring(1):ext).toLowerCase(Locale.ENGLISH));
+            }
+            return this;
+        }
+
+        public RuleSet addMethods(String... names)
+        {
+            for (String method : names)
+            {
+                methods.add(method.toUpperCase(Locale.ENGLISH));
+            }
+            return this;
+        }
+
+        public RuleSet addHeaders(String... names)
+        {
+            for (String name : names)
+            {
+                headers.add(name.toLowerCase(Locale.ENGLISH));
+            }
+            return this;
+        }
+
+        public RuleSet addContentTypes(String... prefixes)
+        {
+            for (String prefix : prefixes)
+            {
+                contentTypes.add(prefix);
+            }
+            return this;
+        }
+
+        public boolean isEmpty()
+        {
+            return paths.isEmpty() && extensions.isEmpty() && methods.isEmpty() && headers.isEmpty() && contentTypes.isEmpty();
+        }
+
+        public boolean matches(HttpServletRequest request)
+        {
+            if (!methods.isEmpty() && methods.contains(request.getMethod()))
+            {
+                return true;
+            }
+            if (!paths.isEmpty() || !extensions.isEmpty())
+            {
+                String uri = request.getRequestURI();
+                int offset = getPathOffset(request,uri);
+                if (paths.matches(uri,offset))
+                {
+                    return true;
+                }
+                if (!extensions.isEmpty())
+                {
+                    String ext = getExtension(uri,offset);
+                    if ((ext != null) && extensions.contains(ext))
+                    {
+                        return true;
+                    }
+                }
+            }
+            if (!contentTypes.isEmpty() && contentTypes.matches(request.getContentType()))
+            {
+                return true;
+            }
+            if (!headers.isEmpty())
+            {
+                Enumeration<String> names = request.getHeaderNames();
+                while ((names != null) && names.hasMoreElements())
+                {
+                    if (headers.contains(names.nextElement().toLowerCase(Locale.ENGLISH)))
+                    {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    private final RuleSet include;
+    private final RuleSet exclude;
+
+    public TraceRules(RuleSet include, RuleSet exclude)
+    {
+        this.include = include;
+        this.exclude = exclude;
+    }
+
+    public boolean isEmpty()
+    {
+        return include.isEmpty() && exclude.isEmpty();
+    }
+
+    /**
+     * @param request
+     *            the request to test
+     * @return true if the request should not be traced
+     */
+    public boolean isExcluded(HttpServletRequest request)
+    {
+        if (!include.isEmpty() && !include.matches(request))
+        {
+            return true;
+        }
+        return exclude.matches(request);
+    }
+
+    /**
+     * @return the offset of the path within the context, in the request URI
+     */
+    private static int getPathOffset(HttpServletRequest request, String uri)
+    {
+        String context = request.getContextPath();
+        if ((uri != null) && (context != null) && uri.startsWith(context))
+        {
+            return context.length();
+        }
+        return 0;
+    }
+
+    private static String getExtension(String path, int offset)
+    {
+        if (path == null)
+        {
+            return null;
+        }
+        int end = path.indexOf(';');
+        if (end < 0)
+        {
+            end = path.length();
+        }
+        for (int i = end - 1; i >= offset; i--)
+        {
+            char c = path.charAt(i);
+            if (c == '.')
+            {
+                return path.substring(i + 1,end).toLowerCase(Locale.ENGLISH);
+            }
+            if (c == '/')
+            {
+                return null;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,129 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.trace;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free decision of which requests to trace.
+ * <p>
+ * A request is sampled only if it passes every configured condition:
+ * <ul>
+ * <li>a fixed probability, using the per thread {@link ThreadLocalRandom}</li>
+ * <li>1 in every N requests, using a single atomic counter</li>
+ * <li>a maximum number of traces per second, as a token bucket (holding up to 1 second of traces) implemented with a
+ * single atomic "theoretical arrival time", so that no lock or refill thread is needed</li>
+ * </ul>
+ */
+public class TraceSampler
+{
+    private final double probability;
+    private final long every;
+    private final long interval;
+    private final long burst;
+    private final AtomicLong counter = new AtomicLong();
+    private final AtomicLong arrival = new AtomicLong(Long.MIN_VALUE);
+
+    /**
+     * @param probability
+     *            the probability (0.0 to 1.0) that a request is traced
+     * @param every
+     *            trace 1 in every N requests (1 to trace every request)
+     * @param perSecond
+     *            the maximum traces per second, or 0 for no limit
+     */
+    public TraceSampler(double probability, long every, double perSecond)
+    {
+        if ((probability < 0.0) || (probability > 1.0))
+        {
+            throw new IllegalArgumentException("Probability out of range: " + probability);
+        }
+        if (every < 1)
+        {
+            throw new IllegalArgumentException("Invalid 1 in N: " + every);
+        }
+        if (perSecond < 0.0)
+        {
+            throw new IllegalArgumentException("Invalid rate: " + perSecond);
+        }
+        this.probability = probability;
+        this.every = every;
+        if (perSecond > 0.0)
+        {
+            this.interval = Math.max(1L,(long)(TimeUnit.SECONDS.toNanos(1) / perSecond));
+            this.burst = Math.max(0L,TimeUnit.SECONDS.toNanos(1) - this.interval);
+        }
+        else
+        {
+            this.interval = 0;
+            this.burst = 0;
+        }
+    }
+
+    /**
+     * @return true if the current request should be traced
+     */
+    public boolean sample()
+    {
+        return sample(System.nanoTime());
+    }
+
+    /**
+     * @param now
+     *            the current {@link System#nanoTime()}
+     * @return true if the current request should be traced
+     */
+    public boolean sample(long now)
+    {
+        if ((probability < 1.0) && (ThreadLocalRandom.current().nextDouble() >= probability))
+        {
+            return false;
+        }
+        if ((every > 1) && ((counter.getAndIncrement() % every) != 0))
+        {
+            return false;
+        }
+        if (interval > 0)
+        {
+            // only take a token for requests that passed the other conditions
+            return acquire(now);
+        }
+        return true;
+    }
+
+    private boolean acquire(long now)
+    {
+        while (true)
+        {
+            long tat = arrival.get();
+            long base = ((tat == Long.MIN_VALUE) || (tat - now < 0))?now:tat;
+            if (base - now > burst)
+            {
+                // bucket is empty
+                return false;
+            }
+            if (arrival.compareAndSet(tat,base + interval))
+            {
+                return true;
+            }
+        }
+    }
+}
@@ -23,10 +23,99 @@ import java.io.IOException;
 import javax.servlet.ReadListener;
 import javax.servlet.ServletInputStream;
 
+/**
+ * Traces the request content, and the non blocking reads of Servlet 3.1: the readiness transitions seen by
+ * {@link #isReady()}, the time spent not ready before each {@link ReadListener#onDataAvailable()} and the bytes read in
+ * each callback. The listener callbacks are passed through as they are, on the thread of the container.
+ */
 public class TraceServletInputStream extends ServletInputStream
 {
+    private class TraceReadListener implements ReadListener
+    {
+        private final ReadListener listener;
+
+        public TraceReadListener(ReadListener listener)
+        {
+            this.listener = listener;
+        }
+
+        @Override
+        public void onDataAvailable() throws IOException
+        {
+            tracer.takeOver();
+            long begin = System.nanoTime();
+            long before = bytesRead;
+            if (notReadySince != 0)
+            {
+                tracer.log("[Request] onDataAvailable after %,d us not ready",(begin - notReadySince) / 1000);
+            }
+            else
+            {
+                tracer.log("[Request] onDataAvailable");
+            }
+            ready = true;
+            notReadySince = 0;
+            try
+            {
+                listener.onDataAvailable();
+                tracer.log("[Request] onDataAvailable returned, %,d bytes read in %,d us",bytesRead - before,(System.nanoTime() - begin) / 1000);
+            }
+            catch (Throwable t)
+            {
+                tracer.log(t);
+                throw t;
+            }
+            finally
+            {
+                tracer.handOff();
+            }
+        }
+
+        @Override
+        public void onAllDataRead() throws IOException
+        {
+            tracer.takeOver();
+            // the application may never read the EOF itself, once told there is nothing more to read
+            tracer.mark(TraceFile.Milestone.REQUEST_EOF);
+            tracer.log("[Request] onAllDataRead, %,d bytes read",bytesRead);
+            try
+            {
+                listener.onAllDataRead();
+            }
+            catch (Throwable t)
+            {
+                tracer.log(t);
+                throw t;
+            }
+            finally
+            {
+                tracer.handOff();
+            }
+        }
+
+        @Override
+        public void onError(Throwable failure)
+        {
+            tracer.takeOver();
+            tracer.log("[Request] onError");
+            tracer.log(failure);
+            try
+            {
+                listener.onError(failure);
+            }
+            finally
+            {
+                tracer.handOff();
+            }
+        }
+    }
+
     private final ServletInputStream delegate;
     private final TraceFile tracer;
+    // only accessed by the thread owning the trace, see TraceFile#takeOver()
+    private long bytesRead;
+    private boolean ready = true;
+    private long notReadySince;
 
     public TraceServletInputStream(ServletInputStream stream, TraceFile tracer)
     {
@@ -34,6 +123,12 @@ public class TraceServletInputStream extends ServletInputStream
         this.tracer = tracer;
     }
 
+    @Override
+    public int available() throws IOException
+    {
+        return delegate.available();
+    }
+
     @Override
     public void close() throws IOException
     {
@@ -41,7 +136,7 @@ public class TraceServletInputStream extends ServletInputStream
         try
         {
             delegate.close();
-            tracer.log("Closed: %s",delegate);
+            tracer.log("Closed: %s",String.valueOf(delegate));
         }
         catch (IOException e)
         {
@@ -59,7 +154,24 @@ public class TraceServletInputStream extends ServletInputStream
     @Override
     public boolean isReady()
     {
-        return delegate.isReady();
+        boolean ready = delegate.isReady();
+        if (ready != this.ready)
+        {
+            // only the transitions, non blocking readers poll this a lot
+            this.ready = ready;
+            long now = System.nanoTime();
+            if (ready)
+            {
+                tracer.log("[Request] Ready after %,d us",(now - notReadySince) / 1000);
+                notReadySince = 0;
+            }
+            else
+            {
+                tracer.log("[Request] Not ready");
+                notReadySince = now;
+            }
+        }
+        return ready;
     }
 
     @Override
@@ -70,11 +182,38 @@ public class TraceServletInputStream extends ServletInputStream
             int ret = delegate.read();
             if (ret != (-1))
             {
+                bytesRead++;
                 tracer.logRequestContentByte((byte)ret);
             }
             else
             {
-                tracer.log("EOF reached on %s",delegate);
+                tracer.mark(TraceFile.Milestone.REQUEST_EOF);
+                tracer.log("EOF reached on %s",String.valueOf(delegate));
+            }
+            return ret;
+        }
+        catch (IOException e)
+        {
+            tracer.log(e);
+            throw e;
+        }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        try
+        {
+            int ret = delegate.read(b,off,len);
+            if (ret > 0)
+            {
+                bytesRead += ret;
+                tracer.logRequestContentBytes(b,off,ret);
+            }
+            else if (ret == (-1))
+            {
+                tracer.mark(TraceFile.Milestone.REQUEST_EOF);
+                tracer.log("EOF reached on %s",String.valueOf(delegate));
             }
             return ret;
         }
@@ -88,6 +227,7 @@ public class TraceServletInputStream extends ServletInputStream
     @Override
     public void setReadListener(ReadListener readListener)
     {
-        delegate.setReadListener(readListener);
+        tracer.log("[Request] Non blocking, %s",readListener.getClass().getName());
+        delegate.setReadListener(new TraceReadListener(readListener));
     }
 }
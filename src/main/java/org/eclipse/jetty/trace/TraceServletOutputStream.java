@@ -23,10 +23,79 @@ import java.io.IOException;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.WriteListener;
 
+/**
+ * Traces the response content, and the non blocking writes of Servlet 3.1: the readiness transitions seen by
+ * {@link #isReady()}, the time spent not ready before each {@link WriteListener#onWritePossible()} and the bytes
+ * written in each callback. The listener callbacks are passed through as they are, on the thread of the container.
+ */
 public class TraceServletOutputStream extends ServletOutputStream
 {
+    private class TraceWriteListener implements WriteListener
+    {
+        private final WriteListener listener;
+
+        public TraceWriteListener(WriteListener listener)
+        {
+            this.listener = listener;
+        }
+
+        @Override
+        public void onWritePossible() throws IOException
+        {
+            tracer.takeOver();
+            long begin = System.nanoTime();
+            long before = bytesWritten;
+            if (notReadySince != 0)
+            {
+                tracer.log("[Response] onWritePossible after %,d us not ready",(begin - notReadySince) / 1000);
+            }
+            else
+            {
+                tracer.log("[Response] onWritePossible");
+            }
+            ready = true;
+            notReadySince = 0;
+            try
+            {
+                listener.onWritePossible();
+                tracer.log("[Response] onWritePossible returned, %,d bytes written in %,d us",bytesWritten - before,(System.nanoTime() - begin) / 1000);
+            }
+            catch (Throwable t)
+            {
+                tracer.log(t);
+                throw t;
+            }
+            finally
+            {
+                tracer.handOff();
+            }
+        }
+
+        @Override
+        public void onError(Throwable failure)
+        {
+            tracer.takeOver();
+            tracer.log("[Response] onError");
+            tracer.log(failure);
+            try
+            {
+                listener.onError(failure);
+            }
+            finally
+            {
+                tracer.handOff();
+            }
+        }
+    }
+
     private final ServletOutputStream delegate;
     private final TraceFile tracer;
+    // only accessed by the thread owning the trace, see TraceFile#takeOver()
+    private long bytesWritten;
+    private boolean ready = true;
+    private long notReadySince;
+    // set once the commit is recorded, so that each write does not ask the response again
+    private boolean committed;
 
     public TraceServletOutputStream(ServletOutputStream delegate, TraceFile tracer)
     {
@@ -34,14 +103,22 @@ public class TraceServletOutputStream extends ServletOutputStream
         this.tracer = tracer;
     }
 
+    private void markCommitted()
+    {
+        if (!committed)
+        {
+            committed = tracer.markCommitted();
+        }
+    }
+
     @Override
     public void close() throws IOException
     {
         try
         {
             tracer.logResponseContentClose();
-            super.close();
-            tracer.log("Closed: %s",delegate);
+            delegate.close();
+            tracer.log("Closed: %s",String.valueOf(delegate));
         }
         catch (IOException e)
         {
@@ -55,8 +132,10 @@ public class TraceServletOutputStream extends ServletOutputStream
     {
         try
         {
-            super.flush();
-            tracer.log("Flushed: %s",delegate);
+            tracer.logResponseFlush();
+            delegate.flush();
+            markCommitted();
+            tracer.log("Flushed: %s",String.valueOf(delegate));
         }
         catch (IOException e)
         {
@@ -68,13 +147,31 @@ public class TraceServletOutputStream extends ServletOutputStream
     @Override
     public boolean isReady()
     {
-        return delegate.isReady();
+        boolean ready = delegate.isReady();
+        if (ready != this.ready)
+        {
+            // only the transitions, non blocking writers poll this a lot
+            this.ready = ready;
+            long now = System.nanoTime();
+            if (ready)
+            {
+                tracer.log("[Response] Ready after %,d us",(now - notReadySince) / 1000);
+                notReadySince = 0;
+            }
+            else
+            {
+                tracer.log("[Response] Not ready");
+                notReadySince = now;
+            }
+        }
+        return ready;
     }
 
     @Override
     public void setWriteListener(WriteListener writeListener)
     {
-        this.delegate.setWriteListener(writeListener);
+        tracer.log("[Response] Non blocking, %s",writeListener.getClass().getName());
+        this.delegate.setWriteListener(new TraceWriteListener(writeListener));
     }
 
     @Override
@@ -84,6 +181,25 @@ public class TraceServletOutputStream extends ServletOutputStream
         {
             tracer.logResponseContentByte(b);
             delegate.write(b);
+            bytesWritten++;
+            markCommitted();
+        }
+        catch (IOException e)
+        {
+            tracer.log(e);
+            throw e;
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        try
+        {
+            tracer.logResponseContentBytes(b,off,len);
+            delegate.write(b,off,len);
+            bytesWritten += len;
+            markCommitted();
         }
         catch (IOException e)
         {
@@ -21,6 +21,13 @@ package org.eclipse.jetty.trace;
 import java.io.BufferedReader;
 import java.io.IOException;
 
+/**
+ * Traces the characters read from the request reader.
+ * <p>
+ * Every read method goes straight to the delegate and is traced exactly once, with the whole slice read. The
+ * {@link BufferedReader} this extends is only a type, its own buffer is not used. Lines read with {@link #readLine()}
+ * are traced with a <code>\n</code> terminator, whatever the terminator was in the request.
+ */
 public class TraceServletReader extends BufferedReader
 {
     private final BufferedReader delegate;
@@ -28,7 +35,8 @@ public class TraceServletReader extends BufferedReader
 
     public TraceServletReader(BufferedReader delegate, TraceFile tracer)
     {
-        super(delegate);
+        // the smallest buffer, as nothing is read through it
+        super(delegate,1);
         this.delegate = delegate;
         this.tracer = tracer;
     }
@@ -39,8 +47,8 @@ public class TraceServletReader extends BufferedReader
         try
         {
             tracer.logRequestContentClose();
-            super.close();
-            tracer.log("Closed: %s",delegate);
+            delegate.close();
+            tracer.log("Closed: %s",String.valueOf(delegate));
         }
         catch (IOException e)
         {
@@ -49,12 +57,18 @@ public class TraceServletReader extends BufferedReader
         }
     }
 
+    private void eof()
+    {
+        tracer.mark(TraceFile.Milestone.REQUEST_EOF);
+        tracer.log("EOF reached on %s",String.valueOf(delegate));
+    }
+
     @Override
     public int read() throws IOException
     {
         try
         {
-            int ret = super.read();
+            int ret = delegate.read();
 
             if (ret != (-1))
             {
@@ -62,7 +76,7 @@ public class TraceServletReader extends BufferedReader
             }
             else
             {
-                tracer.log("EOF reached on %s",delegate);
+                eof();
             }
 
             return ret;
@@ -73,4 +87,101 @@ public class TraceServletReader extends BufferedReader
             throw e;
         }
     }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException
+    {
+        try
+        {
+            int ret = delegate.read(cbuf,off,len);
+            if (ret > 0)
+            {
+                tracer.logRequestContentChars(cbuf,off,ret);
+            }
+            else if (ret == (-1))
+            {
+                eof();
+            }
+            return ret;
+        }
+        catch (IOException e)
+        {
+            tracer.log(e);
+            throw e;
+        }
+    }
+
+    @Override
+    public String readLine() throws IOException
+    {
+        try
+        {
+            String line = delegate.readLine();
+            if (line != null)
+            {
+                tracer.logRequestContentChars(line,0,line.length());
+                tracer.logRequestContentChar('\n');
+            }
+            else
+            {
+                eof();
+            }
+            return line;
+        }
+        catch (IOException e)
+        {
+            tracer.log(e);
+            throw e;
+        }
+    }
+
+    @Override
+    public long skip(long n) throws IOException
+    {
+        try
+        {
+            long skipped = delegate.skip(n);
+            tracer.log("[Request] Skipped %,d characters",skipped);
+            return skipped;
+        }
+        catch (IOException e)
+        {
+            tracer.log(e);
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean ready() throws IOException
+    {
+        return delegate.ready();
+    }
+
+    @Override
+    public boolean markSupported()
+    {
+        return delegate.markSupported();
+    }
+
+    @Override
+    public void mark(int readAheadLimit) throws IOException
+    {
+        delegate.mark(readAheadLimit);
+    }
+
+    @Override
+    public void reset() throws IOException
+    {
+        try
+        {
+            delegate.reset();
+            // the characters read again are traced again
+            tracer.log("[Request] Reset to mark");
+        }
+        catch (IOException e)
+        {
+            tracer.log(e);
+            throw e;
+        }
+    }
 }
@@ -20,16 +20,26 @@ package org.eclipse.jetty.trace;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.Map;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletException;
 import javax.servlet.ServletInputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.Part;
 
 public class TraceServletRequest extends HttpServletRequestWrapper
 {
     private final TraceFile tracer;
     private TraceServletInputStream stream;
     private TraceServletReader reader;
+    private boolean parametersLogged;
+    private boolean partsLogged;
 
     public TraceServletRequest(HttpServletRequest request, TraceFile tracer)
     {
@@ -38,6 +48,51 @@ public class TraceServletRequest extends HttpServletRequestWrapper
         this.tracer.logRequestHeaders(request);
     }
 
+    /**
+     * Log the parameters the first time the application asks for them, so that a form body is only parsed when, and
+     * as, the application would have it parsed without the filter.
+     */
+    private void logParameters()
+    {
+        if (!parametersLogged)
+        {
+            parametersLogged = true;
+            tracer.logRequestParameters(super.getParameterMap());
+        }
+    }
+
+    @Override
+    public String getParameter(String name)
+    {
+        String value = super.getParameter(name);
+        logParameters();
+        return value;
+    }
+
+    @Override
+    public Map<String, String[]> getParameterMap()
+    {
+        Map<String, String[]> params = super.getParameterMap();
+        logParameters();
+        return params;
+    }
+
+    @Override
+    public Enumeration<String> getParameterNames()
+    {
+        Enumeration<String> names = super.getParameterNames();
+        logParameters();
+        return names;
+    }
+
+    @Override
+    public String[] getParameterValues(String name)
+    {
+        String[] values = super.getParameterValues(name);
+        logParameters();
+        return values;
+    }
+
     @Override
     public BufferedReader getReader() throws IOException
     {
@@ -73,4 +128,51 @@ public class TraceServletRequest extends HttpServletRequestWrapper
         this.stream = new TraceServletInputStream(delegate,tracer);
         return this.stream;
     }
+
+    /**
+     * The container reads the body it parses into parts itself, not through the traced input stream, so the parts are
+     * logged as the container has them the first time the application asks for them.
+     */
+    private void logParts() throws IOException, ServletException
+    {
+        if (!partsLogged)
+        {
+            partsLogged = true;
+            tracer.log("Get Parts");
+            for (Part part : super.getParts())
+            {
+                tracer.log("[Request] Part %s: %s, %,d bytes",part.getName(),part.getContentType(),part.getSize());
+            }
+        }
+    }
+
+    @Override
+    public Collection<Part> getParts() throws IOException, ServletException
+    {
+        Collection<Part> parts = super.getParts();
+        logParts();
+        return parts;
+    }
+
+    @Override
+    public Part getPart(String name) throws IOException, ServletException
+    {
+        Part part = super.getPart(name);
+        logParts();
+        return part;
+    }
+
+    @Override
+    public AsyncContext startAsync() throws IllegalStateException
+    {
+        tracer.logAsyncStarted();
+        return super.startAsync();
+    }
+
+    @Override
+    public AsyncContext startAsync(ServletRequest servletRequest, ServletResponse servletResponse) throws IllegalStateException
+    {
+        tracer.logAsyncStarted();
+        return super.startAsync(servletRequest,servletResponse);
+    }
 }
@@ -20,6 +20,10 @@ package org.eclipse.jetty.trace;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
 
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletResponse;
@@ -28,13 +32,31 @@ import javax.servlet.http.HttpServletResponseWrapper;
 public class TraceServletResponse extends HttpServletResponseWrapper
 {
     private final TraceFile tracer;
+    private final boolean encodeWriter;
     private TraceServletOutputStream stream;
-    private TraceServletWriter writer;
+    private PrintWriter writer;
+    // the charset of the writer encoded by the filter, which the container does not know to be fixed
+    private String writerCharset;
 
     public TraceServletResponse(HttpServletResponse response, TraceFile tracer)
+    {
+        this(response,tracer,false);
+    }
+
+    /**
+     * @param response
+     *            the response to trace
+     * @param tracer
+     *            the trace of the request
+     * @param encodeWriter
+     *            if true, the characters written to {@link #getWriter()} are encoded by the filter onto the traced
+     *            response stream, and traced as the bytes sent, instead of as characters
+     */
+    public TraceServletResponse(HttpServletResponse response, TraceFile tracer, boolean encodeWriter)
     {
         super(response);
         this.tracer = tracer;
+        this.encodeWriter = encodeWriter;
         // You might be tempted to log the response headers here
         // but don't, as the response is not yet committed.
         // As strange as it sounds, it would be wiser to to
@@ -48,12 +70,12 @@ public class TraceServletResponse extends HttpServletResponseWrapper
         tracer.log("Response.flushBuffer()");
         tracer.logResponseFlush();
         super.flushBuffer();
+        tracer.markCommitted();
     }
 
     @Override
     public void reset()
     {
-        tracer.log("Response.reset()");
         tracer.logResponseReset();
         super.reset();
     }
@@ -61,7 +83,6 @@ public class TraceServletResponse extends HttpServletResponseWrapper
     @Override
     public void resetBuffer()
     {
-        tracer.log("Response.resetBuffer()");
         tracer.logResponseContentReset();
         super.resetBuffer();
     }
@@ -71,6 +92,7 @@ public class TraceServletResponse extends HttpServletResponseWrapper
     {
         tracer.logResponseError(sc,null);
         super.sendError(sc);
+        tracer.markCommitted();
     }
 
     @Override
@@ -78,6 +100,7 @@ public class TraceServletResponse extends HttpServletResponseWrapper
     {
         tracer.logResponseError(sc,msg);
         super.sendError(sc,msg);
+        tracer.markCommitted();
     }
 
     @Override
@@ -85,8 +108,59 @@ public class TraceServletResponse extends HttpServletResponseWrapper
     {
         tracer.logResponseRedirect(location);
         super.sendRedirect(location);
+        tracer.markCommitted();
     }
     
+    /**
+     * Once the writer encoded by the filter exists, the charset is fixed, as for the writer of the container.
+     */
+    @Override
+    public void setCharacterEncoding(String charset)
+    {
+        if (writerCharset != null)
+        {
+            tracer.log("Ignored charset %s after getWriter(), kept %s",charset,writerCharset);
+            return;
+        }
+        super.setCharacterEncoding(charset);
+    }
+
+    @Override
+    public void setContentType(String type)
+    {
+        if ((writerCharset == null) || (type == null))
+        {
+            super.setContentType(type);
+            return;
+        }
+        // the type may change, but not its charset
+        StringBuilder kept = new StringBuilder();
+        for (String part : type.split(";"))
+        {
+            if (kept.length() == 0)
+            {
+                kept.append(part.trim());
+            }
+            else if (!part.trim().toLowerCase(Locale.ENGLISH).startsWith("charset="))
+            {
+                kept.append(';').append(part.trim());
+            }
+        }
+        super.setContentType(kept.toString());
+        super.setCharacterEncoding(writerCharset);
+    }
+
+    @Override
+    public void setLocale(Locale locale)
+    {
+        super.setLocale(locale);
+        if (writerCharset != null)
+        {
+            // the container may map the locale to a charset
+            super.setCharacterEncoding(writerCharset);
+        }
+    }
+
     @Override
     public ServletOutputStream getOutputStream() throws IOException
     {
@@ -119,6 +193,31 @@ public class TraceServletResponse extends HttpServletResponseWrapper
             throw new IllegalStateException("getOutputStream() previously called");
         }
 
+        if (encodeWriter)
+        {
+            String charset = getCharacterEncoding();
+            if (charset == null)
+            {
+                charset = StandardCharsets.ISO_8859_1.name();
+            }
+            Charset encoding;
+            try
+            {
+                encoding = Charset.forName(charset);
+            }
+            catch (IllegalArgumentException e)
+            {
+                throw new UnsupportedEncodingException(charset);
+            }
+            // as the writer of the container would, so that the content type names the charset
+            super.setCharacterEncoding(charset);
+            this.writerCharset = charset;
+            tracer.logResponseCharset(charset);
+            TraceServletOutputStream encoded = new TraceServletOutputStream(super.getOutputStream(),tracer);
+            this.writer = new PrintWriter(new TraceEncodingWriter(encoded,encoding));
+            return this.writer;
+        }
+
         PrintWriter delegate = super.getWriter();
         this.writer = new TraceServletWriter(delegate,tracer);
         return this.writer;
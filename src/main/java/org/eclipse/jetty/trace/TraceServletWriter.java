@@ -26,6 +26,8 @@ public class TraceServletWriter extends PrintWriter
     private final static int LINESEPLEN = LINESEP.length();
     private final PrintWriter delegate;
     private final TraceFile tracer;
+    // set once the commit is recorded, so that each write does not ask the response again
+    private boolean committed;
 
     public TraceServletWriter(PrintWriter delegate, TraceFile tracer)
     {
@@ -34,19 +36,29 @@ public class TraceServletWriter extends PrintWriter
         this.tracer = tracer;
     }
 
+    private void markCommitted()
+    {
+        if (!committed)
+        {
+            committed = tracer.markCommitted();
+        }
+    }
+
     @Override
     public void close()
     {
         tracer.logResponseContentClose();
-        tracer.log("Closed: %s",delegate);
+        tracer.log("Closed: %s",String.valueOf(delegate));
         super.close();
     }
 
     @Override
     public void flush()
     {
-        tracer.log("Flushed: %s",delegate);
+        tracer.logResponseFlush();
+        tracer.log("Flushed: %s",String.valueOf(delegate));
         super.flush();
+        markCommitted();
     }
 
     @Override
@@ -54,6 +66,7 @@ public class TraceServletWriter extends PrintWriter
     {
         tracer.logResponseContentChar(LINESEP,0,LINESEPLEN);
         super.println();
+        markCommitted();
     }
 
     @Override
@@ -61,6 +74,7 @@ public class TraceServletWriter extends PrintWriter
     {
         tracer.logResponseContentChar(buf,off,len);
         super.write(buf,off,len);
+        markCommitted();
     }
 
     @Override
@@ -68,6 +82,7 @@ public class TraceServletWriter extends PrintWriter
     {
         tracer.logResponseContentChar(c);
         super.write(c);
+        markCommitted();
     }
 
     @Override
@@ -75,5 +90,6 @@ public class TraceServletWriter extends PrintWriter
     {
         tracer.logResponseContentChar(s,off,len);
         super.write(s,off,len);
+        markCommitted();
     }
 }
@@ -0,0 +1,148 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.trace;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Bytes held in memory up to a limit, and in a temporary spill file beyond that.
+ */
+class TraceSpillBuffer extends OutputStream
+{
+    private final int memoryLimit;
+    private final File spillDir;
+    private byte[] buf = new byte[256];
+    private int count;
+    private File spillFile;
+    private OutputStream spill;
+
+    /**
+     * @param memoryLimit
+     *            the number of bytes to keep in memory
+     * @param spillDir
+     *            the directory for the spill file, or null for the default temporary directory
+     */
+    public TraceSpillBuffer(int memoryLimit, File spillDir)
+    {
+        this.memoryLimit = memoryLimit;
+        this.spillDir = spillDir;
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+        if (reserve(1))
+        {
+            buf[count++] = (byte)b;
+        }
+        else
+        {
+            spill.write(b);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        if (reserve(len))
+        {
+            System.arraycopy(b,off,buf,count,len);
+            count += len;
+        }
+        else
+        {
+            spill.write(b,off,len);
+        }
+    }
+
+    /**
+     * @return true if the bytes fit in memory, false if they need to be written to the spill file
+     */
+    private boolean reserve(int len) throws IOException
+    {
+        if (spill != null)
+        {
+            return false;
+        }
+        if (count + len > memoryLimit)
+        {
+            spillFile = File.createTempFile("trace-spill-",".tmp",spillDir);
+            spill = new BufferedOutputStream(new FileOutputStream(spillFile),64 * 1024);
+            spill.write(buf,0,count);
+            buf = null;
+            return false;
+        }
+        if (count + len > buf.length)
+        {
+            buf = Arrays.copyOf(buf,Math.min(memoryLimit,Math.max(count + len,buf.length * 2)));
+        }
+        return true;
+    }
+
+    public boolean isSpilled()
+    {
+        return spill != null;
+    }
+
+    /**
+     * @return the buffered bytes, after which the buffer must be {@link #discard() discarded}
+     */
+    public InputStream getInputStream() throws IOException
+    {
+        if (spill != null)
+        {
+            spill.close();
+            return new FileInputStream(spillFile);
+        }
+        return new ByteArrayInputStream(buf,0,count);
+    }
+
+    /**
+     * Release the memory and delete the spill file.
+     */
+    public void discard()
+    {
+        buf = null;
+        count = 0;
+        if (spill != null)
+        {
+            try
+            {
+                spill.close();
+            }
+            catch (IOException ignore)
+            {
+                // deleting anyway
+            }
+            if (!spillFile.delete())
+            {
+                spillFile.deleteOnExit();
+            }
+            spill = null;
+        }
+    }
+}
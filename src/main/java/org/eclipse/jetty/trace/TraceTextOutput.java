@@ -0,0 +1,342 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.trace;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The human readable trace layout: one timestamped line per event, hex dumps of byte content and escaped lines of
+ * character content.
+ * <p>
+ * Not thread safe, the renderers are only used with the lock of the output held.
+ */
+class TraceTextOutput implements TraceOutput
+{
+    private class ByteRenderer
+    {
+        private final String mode;
+        private final HexDumper dumper;
+        private final byte[] buf;
+        private int count = 0;
+        // text content, decoded as it is rendered
+        private CharsetDecoder decoder;
+        private ByteBuffer encoded;
+        private CharBuffer decoded;
+        private CharRenderer text;
+
+        public ByteRenderer(String mode)
+        {
+            this.mode = mode;
+            this.dumper = new HexDumper(mode);
+            this.buf = new byte[HexDumper.BYTES_PER_LINE];
+        }
+
+        private void setCharset(long timestamp, Charset charset)
+        {
+            processBuf(timestamp,true);
+            decoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+            if (text == null)
+            {
+                encoded = ByteBuffer.allocate(1024);
+                decoded = CharBuffer.allocate(1024);
+                text = new CharRenderer(mode);
+            }
+        }
+
+        private void render(long timestamp, byte[] content, int off, int len)
+        {
+            if (decoder != null)
+            {
+                decode(timestamp,content,off,len);
+                return;
+            }
+            int end = off + len;
+            while (off < end)
+            {
+                processBuf(timestamp,false);
+                int part = Math.min(end - off,buf.length - count);
+                System.arraycopy(content,off,buf,count,part);
+                count += part;
+                off += part;
+            }
+        }
+
+        private void decode(long timestamp, byte[] content, int off, int len)
+        {
+            while (len > 0)
+            {
+                int part = Math.min(len,encoded.remaining());
+                encoded.put(content,off,part);
+                off += part;
+                len -= part;
+                encoded.flip();
+                decode(timestamp,false);
+                // keeps any partial multibyte sequence for the next content
+                encoded.compact();
+            }
+        }
+
+        private void decode(long timestamp, boolean endOfInput)
+        {
+            CoderResult result;
+            do
+            {
+                result = decoder.decode(encoded,decoded,endOfInput);
+                decoded.flip();
+                text.render(timestamp,decoded.array(),0,decoded.limit());
+                decoded.clear();
+            }
+            while (result.isOverflow());
+        }
+
+        private void processBuf(long timestamp, boolean partialOk)
+        {
+            if ((decoder != null) && partialOk)
+            {
+                // end of a run of content, any partial sequence is malformed
+                encoded.flip();
+                decode(timestamp,true);
+                encoded.clear();
+                decoder.flush(decoded);
+                decoded.flip();
+                text.render(timestamp,decoded.array(),0,decoded.limit());
+                decoded.clear();
+                decoder.reset();
+                text.processBuf(timestamp);
+                return;
+            }
+            if ((partialOk && (count > 0)) || (count >= buf.length))
+            {
+                // time to dump the buffer contents to the log
+                int len = dumper.render(buf,0,count);
+                writeLine(timestamp,dumper.getLine(),0,len);
+                count = 0;
+            }
+        }
+    }
+
+    private class CharRenderer
+    {
+        private final CharEscaper escaper;
+
+        public CharRenderer(String mode)
+        {
+            this.escaper = new CharEscaper(mode,lineWidth);
+        }
+
+        private void render(long timestamp, char[] content, int off, int len)
+        {
+            int end = off + len;
+            while (off < end)
+            {
+                off += escaper.escape(content,off,end - off);
+                if (escaper.isFull())
+                {
+                    processBuf(timestamp);
+                }
+            }
+        }
+
+        private void processBuf(long timestamp)
+        {
+            if (!escaper.isEmpty())
+            {
+                writeLine(timestamp,escaper.getLine(),0,escaper.getLength());
+                escaper.reset();
+            }
+        }
+    }
+
+    private final PrintWriter out;
+    private final int lineWidth;
+    private final Map<String, ByteRenderer> byteRenderers = new HashMap<>();
+    private final Map<String, CharRenderer> charRenderers = new HashMap<>();
+    private long start;
+    private long startNanos;
+
+    public TraceTextOutput(Writer output)
+    {
+        this(output,CharEscaper.DEFAULT_WIDTH);
+    }
+
+    /**
+     * @param output
+     *            the writer of the trace
+     * @param lineWidth
+     *            the number of characters of content per line
+     */
+    public TraceTextOutput(Writer output, int lineWidth)
+    {
+        this.out = new PrintWriter(output);
+        this.lineWidth = lineWidth;
+    }
+
+    @Override
+    public void open(String id, long start, long startNanos)
+    {
+        this.start = start;
+        this.startNanos = startNanos;
+    }
+
+    private ByteRenderer getByteRenderer(String mode)
+    {
+        ByteRenderer renderer = byteRenderers.get(mode);
+        if (renderer == null)
+        {
+            renderer = new ByteRenderer(mode);
+            byteRenderers.put(mode,renderer);
+        }
+        return renderer;
+    }
+
+    private CharRenderer getCharRenderer(String mode)
+    {
+        CharRenderer renderer = charRenderers.get(mode);
+        if (renderer == null)
+        {
+            renderer = new CharRenderer(mode);
+            charRenderers.put(mode,renderer);
+        }
+        return renderer;
+    }
+
+    /**
+     * @param timestamp
+     *            the {@link System#nanoTime()} of the event, rendered as wall clock time relative to the start of the
+     *            trace, so that the times within a trace are monotonic
+     */
+    private void writePrefix(long timestamp)
+    {
+        long millis = start + ((timestamp - startNanos) / 1_000_000);
+        TraceClock clock = TraceClock.get();
+        out.write(clock.render(millis),0,clock.getPrefixLength());
+    }
+
+    private void writeLine(long timestamp, String format, Object... args)
+    {
+        writePrefix(timestamp);
+        out.printf(format,args);
+        out.println();
+    }
+
+    private void writeLine(long timestamp, char[] line, int off, int len)
+    {
+        writePrefix(timestamp);
+        out.write(line,off,len);
+        out.println();
+    }
+
+    /**
+     * Flush any partial line of content.
+     */
+    private void flushContent(long timestamp, String mode, boolean chars)
+    {
+        if (chars)
+        {
+            getCharRenderer(mode).processBuf(timestamp);
+        }
+        else
+        {
+            getByteRenderer(mode).processBuf(timestamp,true);
+        }
+    }
+
+    @Override
+    public void line(long timestamp, String format, Object... args)
+    {
+        writeLine(timestamp,format,args);
+    }
+
+    @Override
+    public void block(long timestamp, String title, String block)
+    {
+        writeLine(timestamp,"%s",title);
+        out.print(block);
+    }
+
+    @Override
+    public void content(long timestamp, String mode, byte[] b, int off, int len)
+    {
+        getByteRenderer(mode).render(timestamp,b,off,len);
+    }
+
+    @Override
+    public void content(long timestamp, String mode, char[] c, int off, int len)
+    {
+        getCharRenderer(mode).render(timestamp,c,off,len);
+    }
+
+    @Override
+    public void charset(long timestamp, String mode, String charset)
+    {
+        writeLine(timestamp,"[%s] Charset:: %s",mode,charset);
+        try
+        {
+            getByteRenderer(mode).setCharset(timestamp,Charset.forName(charset));
+        }
+        catch (IllegalArgumentException e)
+        {
+            // unknown to this JVM, rendered as a hex dump
+            writeLine(timestamp,"[%s] Unsupported charset, content not decoded",mode);
+        }
+    }
+
+    @Override
+    public void elided(long timestamp, String mode, boolean chars, long count)
+    {
+        flushContent(timestamp,mode,chars);
+        writeLine(timestamp,"[%s] Content:: ... %,d %s elided ...",mode,count,chars?"characters":"bytes");
+    }
+
+    @Override
+    public void closed(long timestamp, String mode, boolean chars, long seen, long elided)
+    {
+        flushContent(timestamp,mode,chars);
+        String unit = chars?"characters":"bytes";
+        if (elided > 0)
+        {
+            writeLine(timestamp,"[%s] Closed :: Seen %,d %s (%,d elided)",mode,seen,unit,elided);
+        }
+        else
+        {
+            writeLine(timestamp,"[%s] Closed :: Seen %,d %s",mode,seen,unit);
+        }
+    }
+
+    @Override
+    public void flush()
+    {
+        out.flush();
+    }
+
+    @Override
+    public void close()
+    {
+        out.close();
+    }
+}
@@ -0,0 +1,270 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.trace;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Background writer of trace events.
+ * <p>
+ * Request threads only place events on a bounded queue, the writer thread takes them off in batches, formats them and
+ * writes them to the trace files, flushing each trace touched by a batch once at the end of that batch.
+ * <p>
+ * When the queue is full, ordinary events are dropped (and counted) rather than blocking the request thread. Events
+ * that must not be lost (such as closing a trace) wait for room in the queue instead.
+ */
+public class TraceWriter implements Runnable
+{
+    private static final Logger LOG = Logger.getLogger(TraceWriter.class.getName());
+    private static final int MAX_BATCH = 1024;
+
+    private final BlockingQueue<TraceEvent> queue;
+    private final AtomicLong droppedEvents = new AtomicLong();
+    private final TraceEvent stopEvent = new TraceEvent(null)
+    {
+        @Override
+        protected void render()
+        {
+        }
+    };
+    private volatile boolean running;
+    // set until the writer thread is started, and once it has exited, when events are written by the calling thread
+    private volatile boolean stopped = true;
+    private Thread thread;
+
+    public TraceWriter(int queueSize)
+    {
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+    }
+
+    public long getDroppedEvents()
+    {
+        return droppedEvents.get();
+    }
+
+    public int getQueueDepth()
+    {
+        return queue.size();
+    }
+
+    public boolean isRunning()
+    {
+        return running;
+    }
+
+    /**
+     * Queue an event for writing.
+     *
+     * @param event
+     *            the event to write
+     * @param mustDeliver
+     *            true to wait for room in the queue, false to drop the event if the queue is full
+     * @return true if the event was accepted, false if it was dropped
+     */
+    boolean offer(TraceEvent event, boolean mustDeliver)
+    {
+        if (stopped)
+        {
+            // no writer thread, write on the calling thread
+            event.trace.render(event);
+            return true;
+        }
+        if (mustDeliver)
+        {
+            try
+            {
+                queue.put(event);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                event.trace.render(event);
+                return true;
+            }
+        }
+        else if (!queue.offer(event))
+        {
+            droppedEvents.incrementAndGet();
+            return false;
+        }
+        if (stopped)
+        {
+            // stopped while the event was queued, possibly after stop() drained the queue
+            drain();
+        }
+        return true;
+    }
+
+    @Override
+    public void run()
+    {
+        List<TraceEvent> batch = new ArrayList<>(MAX_BATCH);
+        List<TraceFile> dirty = new ArrayList<>();
+        boolean done = false;
+        try
+        {
+            while (!done)
+            {
+                try
+                {
+                    batch.add(queue.take());
+                    queue.drainTo(batch,MAX_BATCH - 1);
+                }
+                catch (InterruptedException e)
+                {
+                    LOG.log(Level.FINE,"Interrupted",e);
+                    continue;
+                }
+
+                for (TraceEvent event : batch)
+                {
+                    if (event == stopEvent)
+                    {
+                        done = true;
+                        continue;
+                    }
+                    write(event);
+                    if (event.trace.markDirty())
+                    {
+                        dirty.add(event.trace);
+                    }
+                }
+                for (TraceFile trace : dirty)
+                {
+                    flush(trace);
+                }
+                batch.clear();
+                dirty.clear();
+            }
+        }
+        finally
+        {
+            if (!done)
+            {
+                // the writer thread died, the callers write their own events from now on
+                LOG.log(Level.WARNING,"Trace writer exited");
+                running = false;
+                stopped = true;
+                drain();
+            }
+        }
+    }
+
+    private void write(TraceEvent event)
+    {
+        try
+        {
+            event.trace.render(event);
+        }
+        catch (Throwable x)
+        {
+            LOG.log(Level.WARNING,"Unable to write trace event",x);
+        }
+    }
+
+    private void flush(TraceFile trace)
+    {
+        try
+        {
+            trace.flushOutput();
+        }
+        catch (Throwable x)
+        {
+            LOG.log(Level.WARNING,"Unable to flush trace",x);
+        }
+    }
+
+    /**
+     * Write the events left in the queue on the calling thread, once the writer thread is stopped.
+     */
+    private void drain()
+    {
+        TraceEvent event;
+        while ((event = queue.poll()) != null)
+        {
+            if (event != stopEvent)
+            {
+                write(event);
+                flush(event.trace);
+            }
+        }
+    }
+
+    public synchronized void start()
+    {
+        if (thread != null)
+        {
+            return;
+        }
+        running = true;
+        stopped = false;
+        thread = new Thread(this,"TraceWriter");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop the writer thread, after writing every event already in the queue. Waits for the writer thread to exit even
+     * if interrupted, and then restores the interrupt.
+     */
+    public synchronized void stop()
+    {
+        if (thread == null)
+        {
+            return;
+        }
+        running = false;
+        boolean interrupted = false;
+        boolean queued = false;
+        while (thread.isAlive())
+        {
+            try
+            {
+                if (queued)
+                {
+                    thread.join();
+                }
+                else
+                {
+                    // the writer thread may have died, with the queue full
+                    queued = queue.offer(stopEvent,100,TimeUnit.MILLISECONDS);
+                }
+            }
+            catch (InterruptedException e)
+            {
+                interrupted = true;
+            }
+        }
+        stopped = true;
+        // events that raced with the stop, later ones are written by offer()
+        drain();
+        thread = null;
+        if (interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
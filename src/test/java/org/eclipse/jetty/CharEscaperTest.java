@@ -0,0 +1,218 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Random;
+
+import org.eclipse.jetty.TraceTesting.NullWriter;
+import org.eclipse.jetty.TraceTesting.Workload;
+import org.eclipse.jetty.toolchain.test.AdvancedRunner;
+import org.eclipse.jetty.toolchain.test.annotation.Stress;
+import org.eclipse.jetty.trace.CharEscaper;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AdvancedRunner.class)
+public class CharEscaperTest
+{
+    private interface Formatter
+    {
+        void format(char[] content, Writer out) throws IOException;
+    }
+
+    /**
+     * The StringBuilder and switch based line rendering that CharEscaper replaces.
+     */
+    private static String legacyLine(String mode, char[] c, int off, int len)
+    {
+        StringBuilder line = new StringBuilder();
+        line.append('[').append(mode).append("] Content:: ");
+        for (int i = 0; i < len; i++)
+        {
+            char ch = c[off + i];
+            switch (ch)
+            {
+                case '\r':
+                    line.append("\\r");
+                    break;
+                case '\n':
+                    line.append("\\n");
+                    break;
+                case '\t':
+                    line.append("\\t");
+                    break;
+                default:
+                    line.append(ch);
+                    break;
+            }
+        }
+        return line.toString();
+    }
+
+    private static final Formatter LEGACY = new Formatter()
+    {
+        // the 128 byte buffer, as chars
+        private static final int WIDTH = 64;
+
+        @Override
+        public void format(char[] content, Writer out) throws IOException
+        {
+            for (int off = 0; off < content.length; off += WIDTH)
+            {
+                out.write(legacyLine("Response",content,off,Math.min(WIDTH,content.length - off)));
+            }
+        }
+    };
+
+    private static final Formatter TABLE = new Formatter()
+    {
+        private final CharEscaper escaper = new CharEscaper("Response");
+
+        @Override
+        public void format(char[] content, Writer out) throws IOException
+        {
+            int off = 0;
+            while (off < content.length)
+            {
+                off += escaper.escape(content,off,content.length - off);
+                out.write(escaper.getLine(),0,escaper.getLength());
+                escaper.reset();
+            }
+        }
+    };
+
+    private static char[] html(int size)
+    {
+        StringBuilder html = new StringBuilder("<!DOCTYPE html>\r\n<html>\r\n<body>\r\n");
+        Random random = new Random(size);
+        while (html.length() < size)
+        {
+            html.append("\t<div class=\"row\" id=\"r").append(random.nextInt(100_000)).append("\">\r\n");
+            html.append("\t\t<p>Lorem ipsum dolor sit amet, &quot;consectetur&quot; adipiscing elit &#8211; ").append(random.nextLong()).append("</p>\r\n");
+            html.append("\t</div>\r\n");
+        }
+        html.setLength(size);
+        return html.toString().toCharArray();
+    }
+
+    private static char[] json(int size)
+    {
+        StringBuilder json = new StringBuilder("[\n");
+        Random random = new Random(size);
+        while (json.length() < size)
+        {
+            json.append("  {\n    \"id\": ").append(random.nextInt(100_000));
+            json.append(",\n    \"name\": \"café über 日本\",\n    \"tags\": [\"a\", \"b\\tc\"],\n    \"value\": ").append(random.nextDouble());
+            json.append("\n  },\n");
+        }
+        json.setLength(size);
+        return json.toString().toCharArray();
+    }
+
+    @Test
+    public void testMatchesLegacyLayout()
+    {
+        char[] content = html(4096);
+        CharEscaper escaper = new CharEscaper("Request",64);
+        for (int off = 0; off < content.length; off += 64)
+        {
+            int len = Math.min(64,content.length - off);
+            assertThat("consumed",escaper.escape(content,off,len),is(len));
+            String actual = new String(escaper.getLine(),0,escaper.getLength());
+            assertThat("line[" + off + "]",actual,is(legacyLine("Request",content,off,len)));
+            escaper.reset();
+        }
+    }
+
+    @Test
+    public void testLineWidth()
+    {
+        char[] content = json(1000);
+        CharEscaper escaper = new CharEscaper("Response");
+        assertThat("width",escaper.getWidth(),is(CharEscaper.DEFAULT_WIDTH));
+        assertTrue("empty",escaper.isEmpty());
+
+        // appended in pieces, up to the width, however many escapes
+        assertThat("first",escaper.escape(content,0,100),is(100));
+        assertFalse("full",escaper.isFull());
+        assertThat("second",escaper.escape(content,100,100),is(28));
+        assertTrue("full",escaper.isFull());
+        assertThat("when full",escaper.escape(content,128,100),is(0));
+        assertThat("line",new String(escaper.getLine(),0,escaper.getLength()),is(legacyLine("Response",content,0,128)));
+
+        escaper.reset();
+        assertTrue("empty",escaper.isEmpty());
+        assertThat("prefix",new String(escaper.getLine(),0,escaper.getLength()),is("[Response] Content:: "));
+    }
+
+    @Test
+    public void testControlCharacters()
+    {
+        char[] content = "a\u0000b\u001Bc\u007Fdé\r\n\t\\".toCharArray();
+        CharEscaper escaper = new CharEscaper("Request",content.length);
+        escaper.escape(content,0,content.length);
+        assertThat("escaped",new String(escaper.getLine(),0,escaper.getLength()),is("[Request] Content:: a\\u0000b\\u001Bc\\u007Fdé\\r\\n\\t\\"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidWidth()
+    {
+        new CharEscaper("Request",0);
+    }
+
+    private static void bench(String name, Formatter formatter, char[] content) throws IOException
+    {
+        TraceTesting.bench(name,workload(formatter,json(64 * 1024)),workload(formatter,content),content.length,"chars",1);
+    }
+
+    private static Workload workload(final Formatter formatter, final char[] content)
+    {
+        return new Workload()
+        {
+            @Override
+            public void run() throws IOException
+            {
+                formatter.format(content,new NullWriter());
+            }
+        };
+    }
+
+    @Test
+    @Stress("Character escaping benchmark")
+    public void testBenchmark() throws IOException
+    {
+        for (int size : new int[] { 1024 * 1024, 16 * 1024 * 1024 })
+        {
+            char[] html = html(size);
+            char[] json = json(size);
+            for (int round = 0; round < 3; round++)
+            {
+                bench("legacy",LEGACY,html);
+                bench("table",TABLE,html);
+                bench("legacy",LEGACY,json);
+                bench("table",TABLE,json);
+            }
+        }
+    }
+}
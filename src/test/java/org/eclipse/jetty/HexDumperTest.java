@@ -0,0 +1,157 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Random;
+
+import org.eclipse.jetty.TraceTesting.NullWriter;
+import org.eclipse.jetty.TraceTesting.Workload;
+import org.eclipse.jetty.toolchain.test.AdvancedRunner;
+import org.eclipse.jetty.toolchain.test.annotation.Stress;
+import org.eclipse.jetty.trace.HexDumper;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AdvancedRunner.class)
+public class HexDumperTest
+{
+    private interface Formatter
+    {
+        void format(byte[] content, Writer out) throws IOException;
+    }
+
+    /**
+     * The String.format based line rendering that HexDumper replaces.
+     */
+    private static String legacyLine(String mode, byte[] b, int off, int len)
+    {
+        StringBuilder hexed = new StringBuilder();
+        StringBuilder asciid = new StringBuilder();
+        for (int i = 0; i < len; i++)
+        {
+            if (i == (HexDumper.BYTES_PER_LINE / 2))
+            {
+                hexed.append(" ");
+            }
+            byte c = b[off + i];
+            hexed.append(String.format("%02X ",c));
+            if ((c >= 0x20) && (c <= 0x7E))
+            {
+                asciid.append((char)c);
+            }
+            else
+            {
+                asciid.append(".");
+            }
+        }
+        return String.format("[%s] Content:: %-49s | %s",mode,hexed,asciid);
+    }
+
+    private static final Formatter LEGACY = new Formatter()
+    {
+        @Override
+        public void format(byte[] content, Writer out) throws IOException
+        {
+            for (int off = 0; off < content.length; off += HexDumper.BYTES_PER_LINE)
+            {
+                int len = Math.min(HexDumper.BYTES_PER_LINE,content.length - off);
+                out.write(legacyLine("Response",content,off,len));
+            }
+        }
+    };
+
+    private static final Formatter TABLE = new Formatter()
+    {
+        private final HexDumper dumper = new HexDumper("Response");
+
+        @Override
+        public void format(byte[] content, Writer out) throws IOException
+        {
+            for (int off = 0; off < content.length; off += HexDumper.BYTES_PER_LINE)
+            {
+                int len = Math.min(HexDumper.BYTES_PER_LINE,content.length - off);
+                out.write(dumper.getLine(),0,dumper.render(content,off,len));
+            }
+        }
+    };
+
+    private static byte[] randomContent(int size)
+    {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        return content;
+    }
+
+    @Test
+    public void testMatchesLegacyLayout()
+    {
+        byte[] content = randomContent(4096);
+        HexDumper dumper = new HexDumper("Request");
+        // exercise every partial length, including shorter lines after longer ones
+        for (int len = HexDumper.BYTES_PER_LINE; len >= 0; len--)
+        {
+            for (int off = 0; off < 256; off += HexDumper.BYTES_PER_LINE)
+            {
+                String actual = new String(dumper.getLine(),0,dumper.render(content,off,len));
+                assertThat("line[" + off + "," + len + "]",actual,is(legacyLine("Request",content,off,len)));
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testLineTooLong()
+    {
+        new HexDumper("Request").render(new byte[32],0,17);
+    }
+
+    private static void bench(String name, Formatter formatter, byte[] content) throws IOException
+    {
+        TraceTesting.bench(name,workload(formatter,randomContent(64 * 1024)),workload(formatter,content),content.length,"bytes",HexDumper.BYTES_PER_LINE);
+    }
+
+    private static Workload workload(final Formatter formatter, final byte[] content)
+    {
+        return new Workload()
+        {
+            @Override
+            public void run() throws IOException
+            {
+                formatter.format(content,new NullWriter());
+            }
+        };
+    }
+
+    @Test
+    @Stress("Hex dump benchmark")
+    public void testBenchmark() throws IOException
+    {
+        int[] sizes = new int[] { 1024, 1024 * 1024, 100 * 1024 * 1024 };
+        for (int size : sizes)
+        {
+            byte[] content = randomContent(size);
+            bench("legacy",LEGACY,content);
+            bench("table",TABLE,content);
+        }
+    }
+}
@@ -0,0 +1,447 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.DispatcherType;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.toolchain.test.AdvancedRunner;
+import org.eclipse.jetty.toolchain.test.IO;
+import org.eclipse.jetty.toolchain.test.TestingDir;
+import org.eclipse.jetty.toolchain.test.annotation.Stress;
+import org.eclipse.jetty.trace.TraceBufferPool;
+import org.eclipse.jetty.trace.TraceFile;
+import org.eclipse.jetty.trace.TraceFormat;
+import org.eclipse.jetty.trace.TraceMetrics;
+import org.eclipse.jetty.trace.TraceRetention;
+import org.eclipse.jetty.trace.TraceWriter;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AdvancedRunner.class)
+public class TraceAsyncTest
+{
+    /**
+     * Starts async, and never completes it.
+     */
+    @SuppressWarnings("serial")
+    public static class TimeoutServlet extends HttpServlet
+    {
+        private static volatile File traceDir;
+        private static final AtomicInteger closedAtTimeout = new AtomicInteger();
+
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException
+        {
+            if (req.getDispatcherType() != DispatcherType.REQUEST)
+            {
+                // the error dispatch after the timeout, before the container completes the request
+                if (isCompleted(new File(traceDir,resp.getHeader(TRACE_ID_HEADER))))
+                {
+                    closedAtTimeout.incrementAndGet();
+                }
+                return;
+            }
+            AsyncContext async = req.startAsync();
+            async.setTimeout(Long.parseLong(req.getParameter("timeout")));
+        }
+    }
+
+    /**
+     * @return true once the trace is written out, waiting a little for the writer thread
+     */
+    private static boolean isCompleted(File trace) throws IOException
+    {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (System.nanoTime() < deadline)
+        {
+            if (trace.exists() && IO.readToString(trace).contains("Trace completed"))
+            {
+                return true;
+            }
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        return false;
+    }
+
+    /**
+     * Starts async, and a worker that keeps writing past the timeout, while the container completes the request.
+     */
+    @SuppressWarnings("serial")
+    public static class WorkerServlet extends HttpServlet
+    {
+        private static final AtomicReference<Throwable> failure = new AtomicReference<>();
+        private static final AtomicInteger running = new AtomicInteger();
+        private static final AtomicInteger started = new AtomicInteger();
+
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException
+        {
+            if (req.getDispatcherType() != DispatcherType.REQUEST)
+            {
+                return;
+            }
+            final long timeout = Long.parseLong(req.getParameter("timeout"));
+            final AsyncContext async = req.startAsync();
+            async.setTimeout(timeout);
+            final ServletOutputStream out = resp.getOutputStream();
+            started.incrementAndGet();
+            running.incrementAndGet();
+            async.start(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    byte[] chunk = new byte[10];
+                    Arrays.fill(chunk,(byte)'x');
+                    long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout + 200);
+                    try
+                    {
+                        while (System.nanoTime() < end)
+                        {
+                            try
+                            {
+                                out.write(chunk);
+                                // little enough content for the socket buffers, however slow the client
+                                LockSupport.parkNanos(10_000);
+                            }
+                            catch (Throwable x)
+                            {
+                                if (isTraceFailure(x))
+                                {
+                                    failure.compareAndSet(null,x);
+                                }
+                            }
+                        }
+                    }
+                    finally
+                    {
+                        running.decrementAndGet();
+                    }
+                }
+            });
+        }
+
+        /**
+         * @return true if the failure is not the container refusing a write to a completed response, but the trace
+         */
+        private static boolean isTraceFailure(Throwable x)
+        {
+            if ((x instanceof NullPointerException) || (x instanceof ConcurrentModificationException) || (x instanceof IndexOutOfBoundsException))
+            {
+                return true;
+            }
+            StackTraceElement[] stack = x.getStackTrace();
+            return (stack.length > 0) && stack[0].getClassName().startsWith("org.eclipse.jetty.trace.");
+        }
+    }
+
+    private static final String TRACE_ID_HEADER = "X-Trace-Id";
+
+    @Rule
+    public TestingDir testdir = new TestingDir();
+
+    private TraceServer server;
+
+    private void startServer(File traceDir) throws Exception
+    {
+        server = new TraceServer(traceDir);
+        server.setInitParameter("trace-content-head","4096");
+        server.setInitParameter("trace-id-header",TRACE_ID_HEADER);
+        server.addServlet(new TimeoutServlet(),"/timeout");
+        server.addServlet(new WorkerServlet(),"/worker");
+        server.start();
+        TimeoutServlet.traceDir = traceDir;
+        TimeoutServlet.closedAtTimeout.set(0);
+    }
+
+    @After
+    public void stopServer() throws Exception
+    {
+        if (server != null)
+        {
+            server.stop();
+        }
+    }
+
+    private int request(int timeout) throws IOException
+    {
+        return request("/timeout",timeout);
+    }
+
+    private int request(String path, int timeout) throws IOException
+    {
+        URL url = server.getURI().resolve(path + "?timeout=" + timeout).toURL();
+        HttpURLConnection conn = (HttpURLConnection)url.openConnection();
+        conn.setReadTimeout(10000);
+        // not queued behind a response that a worker is still writing
+        conn.setRequestProperty("Connection","close");
+        int status = conn.getResponseCode();
+        InputStream stream = (status < 400)?conn.getInputStream():conn.getErrorStream();
+        if (stream != null)
+        {
+            IO.copy(stream,new ByteArrayOutputStream());
+            stream.close();
+        }
+        return status;
+    }
+
+    private static long openFileDescriptors()
+    {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.UnixOperatingSystemMXBean)
+        {
+            return ((com.sun.management.UnixOperatingSystemMXBean)os).getOpenFileDescriptorCount();
+        }
+        return -1;
+    }
+
+    @Test
+    public void testTimeoutClosesTrace() throws Exception
+    {
+        File traceDir = testdir.getEmptyDir();
+        startServer(traceDir);
+
+        request(50);
+        server.awaitWritten();
+        TraceMetrics metrics = server.getFilter().getMetrics();
+
+        assertThat("open",metrics.getOpenTraces(),is(0L));
+        assertThat("timeouts",metrics.getAsyncTimeouts(),is(1L));
+        assertThat("closed at timeout",TimeoutServlet.closedAtTimeout.get(),is(1));
+        File[] traces = traceDir.listFiles();
+        assertThat("traces",traces.length,is(1));
+        String trace = IO.readToString(traces[0]);
+        assertThat("timeout",trace,containsString("Async timeout after "));
+        assertThat("milestone",trace,containsString("  async timeout "));
+        assertThat("completed",trace,containsString("Trace completed"));
+        // closed once, by the timeout
+        assertThat("once",trace.indexOf("Trace completed"),is(trace.lastIndexOf("Trace completed")));
+    }
+
+    @Test
+    public void testErrorClosesTrace() throws Exception
+    {
+        StringWriter output = new StringWriter();
+        TraceFile tracer = new TraceFile("error",output,null);
+        tracer.logAsyncStarted();
+        tracer.logResponseContentChar("Partial",0,7);
+        tracer.onError(new AsyncEvent(null,null,null,new IOException("Connection reset")));
+        assertThat("closed",output.toString(),containsString("Trace completed"));
+        // the application is still writing, and the container completes later
+        tracer.logResponseContentChar(" more",0,5);
+        tracer.onComplete(null);
+        tracer.logResponseContentChar(" late",0,5);
+        tracer.close();
+
+        String trace = output.toString();
+        assertThat("error",trace,containsString("Connection reset"));
+        assertThat("milestone",trace,containsString("  async error "));
+        assertThat("content",trace,containsString("[Response] Content:: Partial"));
+        assertThat("ignored",trace,not(containsString("more")));
+        assertThat("ignored",trace,not(containsString("late")));
+        assertThat("once",trace.indexOf("Trace completed"),is(trace.lastIndexOf("Trace completed")));
+    }
+
+    @Test
+    public void testWorkerWritesAcrossTimeout() throws Exception
+    {
+        File traceDir = testdir.getEmptyDir();
+        startServer(traceDir);
+        WorkerServlet.failure.set(null);
+        WorkerServlet.started.set(0);
+
+        int requests = 10;
+        for (int i = 0; i < requests; i++)
+        {
+            try
+            {
+                request("/worker",20 + i);
+            }
+            catch (IOException e)
+            {
+                // the worker writes over the error response of the container
+            }
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while ((WorkerServlet.running.get() > 0) && (System.nanoTime() < deadline))
+        {
+            Thread.sleep(10);
+        }
+        server.awaitWritten();
+        TraceMetrics metrics = server.getFilter().getMetrics();
+
+        assertThat("worker failure",WorkerServlet.failure.get(),nullValue());
+        assertThat("running",WorkerServlet.running.get(),is(0));
+        assertThat("open",metrics.getOpenTraces(),is(0L));
+        // the client retries a request that failed without a response
+        int started = WorkerServlet.started.get();
+        assertThat("started",started,greaterThanOrEqualTo(requests));
+        assertThat("timeouts",metrics.getAsyncTimeouts(),is((long)started));
+        File[] traces = traceDir.listFiles();
+        assertThat("traces",traces.length,is(started));
+        for (File file : traces)
+        {
+            String trace = IO.readToString(file);
+            assertThat("timeout",trace,containsString("Async timeout after "));
+            assertThat("once",trace.indexOf("Trace completed"),is(trace.lastIndexOf("Trace completed")));
+            // nothing rendered after the trace was completed
+            assertThat("last",trace.trim(),containsString("Trace completed"));
+            assertThat("last",trace.substring(trace.indexOf("Trace completed")).trim().split("\n").length,is(1));
+        }
+    }
+
+    @Test
+    public void testCaptureRacesTimeoutAndComplete() throws Exception
+    {
+        final TraceWriter writer = new TraceWriter(1024);
+        writer.start();
+        final TraceBufferPool pool = new TraceBufferPool(64);
+        File dir = testdir.getEmptyDir();
+        final byte[] chunk = new byte[64];
+        final char[] chars = new char[64];
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        for (int i = 0; i < 200; i++)
+        {
+            final TraceFile tracer = new TraceFile(new File(dir,"race-" + i + ".log"),writer,TraceFormat.TEXT,new TraceRetention(0,0,true),pool);
+            tracer.logAsyncStarted();
+            final CountDownLatch started = new CountDownLatch(1);
+            final AtomicBoolean stop = new AtomicBoolean();
+            Thread worker = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        while (!stop.get())
+                        {
+                            tracer.logResponseContentBytes(chunk,0,chunk.length);
+                            tracer.logResponseContentChar(chars,0,chars.length);
+                            tracer.log("Written");
+                            started.countDown();
+                        }
+                    }
+                    catch (Throwable x)
+                    {
+                        failure.compareAndSet(null,x);
+                    }
+                }
+            };
+            worker.start();
+            assertTrue(started.await(10,TimeUnit.SECONDS));
+            tracer.onTimeout(null);
+            tracer.onComplete(null);
+            stop.set(true);
+            worker.join();
+            assertThat("worker failure",failure.get(),nullValue());
+        }
+        writer.stop();
+        for (File file : dir.listFiles())
+        {
+            String trace = IO.readToString(file);
+            assertThat("timeout",trace,containsString("Async timeout after "));
+            // nothing rendered after the trace was completed
+            assertThat("last",trace.substring(trace.indexOf("Trace completed")).trim().split("\\n").length,is(1));
+        }
+    }
+
+    @Test
+    @Stress("Thousands of timing out async requests")
+    public void testTimeoutStress() throws Exception
+    {
+        File traceDir = testdir.getEmptyDir();
+        startServer(traceDir);
+        request(10);
+        server.awaitWritten();
+        TraceMetrics metrics = server.getFilter().getMetrics();
+        long fds = openFileDescriptors();
+
+        final int threads = 50;
+        final int requests = 100;
+        final AtomicInteger failures = new AtomicInteger();
+        final CountDownLatch latch = new CountDownLatch(threads);
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++)
+        {
+            new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    for (int i = 0; i < requests; i++)
+                    {
+                        try
+                        {
+                            request(10 + (i % 20));
+                        }
+                        catch (IOException e)
+                        {
+                            failures.incrementAndGet();
+                        }
+                    }
+                    latch.countDown();
+                }
+            }.start();
+        }
+        assertTrue(latch.await(5,TimeUnit.MINUTES));
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        server.awaitWritten();
+
+        System.out.printf("%,d timed out requests in %,dms: %,d timeouts, %,d open traces, %,d failures, file descriptors %,d before and %,d after%n",threads * requests,
+                millis,metrics.getAsyncTimeouts(),metrics.getOpenTraces(),failures.get(),fds,openFileDescriptors());
+        assertThat("failures",failures.get(),is(0));
+        assertThat("timeouts",metrics.getAsyncTimeouts(),is((long)(threads * requests) + 1));
+        // each trace released its file at the timeout, before the container completed the request
+        assertThat("closed at timeout",TimeoutServlet.closedAtTimeout.get(),is((threads * requests) + 1));
+        assertThat("open",metrics.getOpenTraces(),is(0L));
+        assertThat("traces",traceDir.listFiles().length,is((threads * requests) + 1));
+        // only the client connections remain open
+        assertThat("file descriptors",openFileDescriptors(),lessThan(fds + (2 * threads) + 16));
+    }
+}
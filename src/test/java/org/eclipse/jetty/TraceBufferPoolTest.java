@@ -0,0 +1,175 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty;
+
+import static org.eclipse.jetty.TraceTesting.allocatedBytes;
+import static org.eclipse.jetty.TraceTesting.newContent;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.eclipse.jetty.toolchain.test.AdvancedRunner;
+import org.eclipse.jetty.toolchain.test.IO;
+import org.eclipse.jetty.toolchain.test.TestingDir;
+import org.eclipse.jetty.toolchain.test.annotation.Stress;
+import org.eclipse.jetty.trace.TraceBufferPool;
+import org.eclipse.jetty.trace.TraceFile;
+import org.eclipse.jetty.trace.TraceFormat;
+import org.eclipse.jetty.trace.TraceRetention;
+import org.eclipse.jetty.trace.TraceWriter;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AdvancedRunner.class)
+public class TraceBufferPoolTest
+{
+    @Rule
+    public TestingDir testdir = new TestingDir();
+
+    private static void request(File file, byte[] body, TraceBufferPool pool) throws IOException
+    {
+        TraceFile tracer = new TraceFile(file,null,TraceFormat.TEXT,pool);
+        tracer.log("Request: %s","GET /");
+        tracer.logRequestContentBytes(body,0,body.length);
+        tracer.logRequestContentClose();
+        tracer.logResponseContentBytes(body,0,body.length);
+        tracer.logResponseContentBytes(body,0,body.length);
+        tracer.logResponseContentClose();
+        tracer.close();
+        assertTrue(file.delete());
+    }
+
+    @Test
+    public void testBounded()
+    {
+        TraceBufferPool pool = new TraceBufferPool(4);
+        byte[][] bytes = new byte[10][];
+        char[][] chars = new char[10][];
+        for (int i = 0; i < bytes.length; i++)
+        {
+            bytes[i] = pool.acquireBytes();
+            chars[i] = pool.acquireChars();
+            assertThat("bytes",bytes[i].length,is(TraceBufferPool.BYTES));
+            assertThat("chars",chars[i].length,is(TraceBufferPool.CHARS));
+        }
+        for (int i = 0; i < bytes.length; i++)
+        {
+            pool.release(bytes[i]);
+            pool.release(chars[i]);
+        }
+        assertThat("idle bytes",pool.getIdleBytes(),is(4));
+        assertThat("idle chars",pool.getIdleChars(),is(4));
+
+        // buffers of another size are not pooled
+        pool = new TraceBufferPool(4);
+        pool.release(new byte[16]);
+        pool.release(new char[16]);
+        assertThat("idle bytes",pool.getIdleBytes(),is(0));
+        assertThat("idle chars",pool.getIdleChars(),is(0));
+    }
+
+    @Test
+    public void testReleaseOnOtherThread() throws Exception
+    {
+        final TraceBufferPool pool = new TraceBufferPool(64);
+        final byte[] buffer = pool.acquireBytes();
+        Thread releaser = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                pool.release(buffer);
+            }
+        };
+        releaser.start();
+        releaser.join();
+        assertThat("reused",pool.acquireBytes(),sameInstance(buffer));
+        assertThat("idle",pool.getIdleBytes(),is(0));
+    }
+
+    @Test
+    public void testTraceReleasesBuffers() throws IOException
+    {
+        TraceBufferPool pool = new TraceBufferPool(64);
+        TraceWriter writer = new TraceWriter(1024);
+        writer.start();
+        byte[] content = newContent(10000);
+        TraceFile tracer = new TraceFile(new File(testdir.getEmptyDir(),"pooled.log"),writer,TraceFormat.TEXT,pool);
+        tracer.logRequestContentBytes(content,0,content.length);
+        tracer.logRequestContentClose();
+        for (char c : "Hello World".toCharArray())
+        {
+            tracer.logResponseContentChar(c);
+        }
+        tracer.logResponseContentClose();
+        tracer.close();
+        writer.stop();
+
+        // 3 byte chunks, 1 char chunk and the 2 output buffers, all returned by the writer thread
+        assertThat("idle bytes",pool.getIdleBytes(),is(4));
+        assertThat("idle chars",pool.getIdleChars(),is(2));
+        String trace = IO.readToString(tracer.getOutputFile());
+        assertThat("bytes",trace,containsString("[Request] Closed :: Seen 10,000 bytes"));
+        assertThat("chars",trace,containsString("[Response] Content:: Hello World"));
+    }
+
+    @Test
+    public void testDroppedTraceReleasesBuffers() throws IOException
+    {
+        TraceBufferPool pool = new TraceBufferPool(64);
+        File file = new File(testdir.getEmptyDir(),"dropped.log");
+        byte[] content = newContent(10000);
+        TraceFile tracer = new TraceFile(file,null,TraceFormat.TEXT,new TraceRetention(500,0,false),pool);
+        tracer.logRequestContentBytes(content,0,content.length);
+        tracer.logRequestContentClose();
+        tracer.close();
+
+        assertThat("idle bytes",pool.getIdleBytes(),is(3));
+        assertFalse("file",file.exists());
+    }
+
+    @Test
+    @Stress("Allocation per traced request")
+    public void testAllocation() throws IOException
+    {
+        File file = new File(testdir.getEmptyDir(),"alloc.log");
+        byte[] body = new byte[8192];
+        int requests = 20_000;
+
+        for (TraceBufferPool pool : new TraceBufferPool[] { null, new TraceBufferPool(256) })
+        {
+            for (int round = 0; round < 5; round++)
+            {
+                long allocated = allocatedBytes();
+                long start = System.nanoTime();
+                for (int i = 0; i < requests; i++)
+                {
+                    request(file,body,pool);
+                }
+                long nanos = System.nanoTime() - start;
+                allocated = allocatedBytes() - allocated;
+                System.out.printf("%s round %d: %,d bytes allocated per request, %,.1f us per request%n",(pool == null)?"Unpooled":"Pooled",round,
+                        allocated / requests,nanos / 1000.0 / requests);
+            }
+        }
+    }
+}
@@ -0,0 +1,155 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.TraceTesting.NullWriter;
+import org.eclipse.jetty.toolchain.test.AdvancedRunner;
+import org.eclipse.jetty.toolchain.test.annotation.Stress;
+import org.eclipse.jetty.trace.TraceBufferPool;
+import org.eclipse.jetty.trace.TraceFile;
+import org.eclipse.jetty.trace.TraceWriter;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AdvancedRunner.class)
+public class TraceCaptureTest
+{
+    private static void request(TraceWriter writer, TraceBufferPool pool, int size)
+    {
+        TraceFile tracer = new TraceFile("contention",new NullWriter(),writer,pool);
+        tracer.setContentLimits(1024,1024);
+        for (int i = 0; i < size; i++)
+        {
+            tracer.logRequestContentByte((byte)i);
+        }
+        tracer.logRequestContentClose();
+        for (int i = 0; i < size; i++)
+        {
+            tracer.logResponseContentChar((char)('a' + (i % 26)));
+        }
+        tracer.logResponseContentClose();
+        tracer.close();
+    }
+
+    @Test
+    public void testCaptureAcrossThreads() throws Exception
+    {
+        StringWriter output = new StringWriter();
+        final TraceFile tracer = new TraceFile("async",output,null);
+        tracer.logRequestContentBytes("Hello".getBytes(),0,5);
+        tracer.logRequestContentClose();
+        tracer.logResponseContentChar("Before ",0,7);
+
+        // continued and completed by another thread, as after startAsync()
+        final CountDownLatch completed = new CountDownLatch(1);
+        new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    tracer.logResponseContentChar("After",0,5);
+                    tracer.logResponseContentClose();
+                    tracer.onComplete(null);
+                    completed.countDown();
+                }
+                catch (IOException e)
+                {
+                    e.printStackTrace();
+                }
+            }
+        }.start();
+        assertTrue(completed.await(10,TimeUnit.SECONDS));
+
+        String trace = output.toString();
+        assertThat("request",trace,containsString("[Request] Closed :: Seen 5 bytes"));
+        assertThat("response",trace,containsString("[Response] Content:: Before After"));
+        assertThat("completed",trace,containsString("Trace completed"));
+    }
+
+    @Test
+    public void testResponseLifecycle() throws Exception
+    {
+        StringWriter output = new StringWriter();
+        TraceFile tracer = new TraceFile("lifecycle",output,null);
+        tracer.logResponseContentReset();
+        tracer.logResponseReset();
+        tracer.logResponseError(404,null);
+        tracer.logResponseError(500,"Broken");
+        tracer.logResponseRedirect("/elsewhere");
+        tracer.close();
+
+        String trace = output.toString();
+        assertThat("content reset",trace,containsString("Response.resetBuffer()"));
+        assertThat("reset",trace,containsString("Response.reset()"));
+        assertThat("error",trace,containsString("Response.sendError(404)"));
+        assertThat("error message",trace,containsString("Response.sendError(500, Broken)"));
+        assertThat("redirect",trace,containsString("Response.sendRedirect(/elsewhere)"));
+        // in the order called
+        assertThat("order",trace.indexOf("Response.resetBuffer()"),lessThan(trace.indexOf("Response.reset()")));
+        assertThat("order",trace.indexOf("Response.sendError(404)"),lessThan(trace.indexOf("Response.sendRedirect(/elsewhere)")));
+    }
+
+    @Test
+    @Stress("Per byte capture under many concurrent requests")
+    public void testContention() throws Exception
+    {
+        final TraceWriter writer = new TraceWriter(64 * 1024);
+        writer.start();
+        final TraceBufferPool pool = new TraceBufferPool(256);
+        final int size = 64 * 1024;
+        for (int threads : new int[] { 1, 4, 16, 64 })
+        {
+            for (int round = 0; round < 3; round++)
+            {
+                final int requests = 2048 / threads;
+                final CountDownLatch latch = new CountDownLatch(threads);
+                long start = System.nanoTime();
+                for (int t = 0; t < threads; t++)
+                {
+                    new Thread()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            for (int i = 0; i < requests; i++)
+                            {
+                                request(writer,pool,size);
+                            }
+                            latch.countDown();
+                        }
+                    }.start();
+                }
+                assertTrue(latch.await(5,TimeUnit.MINUTES));
+                long nanos = System.nanoTime() - start;
+                System.out.printf("%2d threads round %d: %,.2f ns per captured byte or char%n",threads,round,(double)nanos / (threads * requests * size * 2L));
+            }
+        }
+        writer.stop();
+    }
+}
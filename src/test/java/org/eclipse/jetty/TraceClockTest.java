@@ -0,0 +1,116 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import org.eclipse.jetty.toolchain.test.AdvancedRunner;
+import org.eclipse.jetty.toolchain.test.annotation.Stress;
+import org.eclipse.jetty.trace.TraceClock;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AdvancedRunner.class)
+public class TraceClockTest
+{
+    private static String expected(TimeZone zone, long millis)
+    {
+        Calendar cal = Calendar.getInstance(zone);
+        cal.setTimeInMillis(millis);
+        return String.format("%tF %<tT.%<tL - ",cal);
+    }
+
+    private static String render(TraceClock clock, long millis)
+    {
+        return new String(clock.render(millis),0,clock.getPrefixLength());
+    }
+
+    @Test
+    public void testMatchesCalendarFormat()
+    {
+        TimeZone zone = TimeZone.getTimeZone("America/New_York");
+        TraceClock clock = new TraceClock(zone);
+        // walk across millisecond, second, day and DST boundaries
+        long base = 1394344799000L - 1500; // 2014-03-09 01:59:57.500 EST, just before DST starts
+        for (long millis = base; millis < base + 4000; millis += 7)
+        {
+            assertThat("millis " + millis,render(clock,millis),is(expected(zone,millis)));
+        }
+        // jumps backwards and forwards
+        long[] times = new long[] { 0L, 946684799999L, 946684800000L, 1234567890123L, 1234567890123L, 4102444800000L };
+        for (long millis : times)
+        {
+            assertThat("millis " + millis,render(clock,millis),is(expected(zone,millis)));
+        }
+    }
+
+    @Test
+    public void testThreadClock()
+    {
+        assertThat("same instance on thread",TraceClock.get(),sameInstance(TraceClock.get()));
+    }
+
+    @Test
+    @Stress("Timestamp prefix benchmark")
+    public void testBenchmark()
+    {
+        final int lines = 5_000_000;
+        Writer sink = new StringWriter()
+        {
+            @Override
+            public void write(char[] cbuf, int off, int len)
+            {
+            }
+
+            @Override
+            public void write(String str, int off, int len)
+            {
+            }
+        };
+        PrintWriter out = new PrintWriter(sink);
+        TraceClock clock = new TraceClock(TimeZone.getDefault());
+
+        for (int round = 0; round < 3; round++)
+        {
+            long start = System.nanoTime();
+            for (int i = 0; i < lines; i++)
+            {
+                Calendar now = Calendar.getInstance();
+                out.printf("%tF %<tT.%<tL - ",now);
+            }
+            long legacy = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < lines; i++)
+            {
+                out.write(clock.render(System.currentTimeMillis()),0,clock.getPrefixLength());
+            }
+            long cached = System.nanoTime() - start;
+
+            System.out.printf("Round %d: Calendar+printf %,.1f ns/line, TraceClock %,.1f ns/line%n",round,(double)legacy / lines,(double)cached / lines);
+        }
+    }
+}
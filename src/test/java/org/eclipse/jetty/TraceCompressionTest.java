@@ -0,0 +1,171 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import org.eclipse.jetty.toolchain.test.AdvancedRunner;
+import org.eclipse.jetty.toolchain.test.IO;
+import org.eclipse.jetty.toolchain.test.MavenTestingUtils;
+import org.eclipse.jetty.toolchain.test.TestingDir;
+import org.eclipse.jetty.toolchain.test.annotation.Stress;
+import org.eclipse.jetty.trace.TraceDecoder;
+import org.eclipse.jetty.trace.TraceFile;
+import org.eclipse.jetty.trace.TraceFormat;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AdvancedRunner.class)
+public class TraceCompressionTest
+{
+    @Rule
+    public TestingDir testdir = new TestingDir();
+
+    private static void writeTrace(TraceFile tracer, byte[] bytes, String chars)
+    {
+        tracer.log("Request: %s %s","GET","/long-binary");
+        tracer.logRequestContentBytes(bytes,0,bytes.length);
+        tracer.logRequestContentClose();
+        tracer.logResponseContentChar(chars,0,chars.length());
+        tracer.logResponseContentClose();
+        tracer.close();
+    }
+
+    private static String withoutTimestamps(String trace)
+    {
+        return trace.replaceAll("(?m)^\\d{4}-\\d\\d-\\d\\d \\d\\d:\\d\\d:\\d\\d\\.\\d{3} - ","").replaceAll("Trace completed in .*ms","Trace completed").replaceAll("\\+[\\d,.]+ms","+ms");
+    }
+
+    private static String gunzip(File file) throws IOException
+    {
+        // same charset as the text trace files
+        StringWriter trace = new StringWriter();
+        try (Reader reader = new InputStreamReader(new GZIPInputStream(new FileInputStream(file))))
+        {
+            IO.copy(reader,trace);
+        }
+        return trace.toString();
+    }
+
+    private static byte[] getQuotes() throws IOException
+    {
+        return Files.readAllBytes(MavenTestingUtils.getTestResourceFile("quotes.txt").toPath());
+    }
+
+    @Test
+    public void testGzipText() throws IOException
+    {
+        File dir = testdir.getEmptyDir();
+        byte[] quotes = getQuotes();
+        String chars = new String(quotes,"UTF-8") + "\u20ac\r\n";
+
+        TraceFile plain = new TraceFile(new File(dir,"trace" + TraceFormat.TEXT.getSuffix()),null,TraceFormat.TEXT,null);
+        writeTrace(plain,quotes,chars);
+        TraceFormat gzip = TraceFormat.TEXT.gzip(Deflater.BEST_SPEED);
+        assertThat("suffix",gzip.getSuffix(),is(".log.gz"));
+        TraceFile compressed = new TraceFile(new File(dir,"trace" + gzip.getSuffix()),null,gzip,null);
+        writeTrace(compressed,quotes,chars);
+
+        String expected = IO.readToString(plain.getOutputFile());
+        assertThat("gunzip",withoutTimestamps(gunzip(compressed.getOutputFile())),is(withoutTimestamps(expected)));
+        assertThat("size",compressed.getOutputFile().length(),lessThan(plain.getOutputFile().length() / 3));
+    }
+
+    @Test
+    public void testGzipBinaryDecodes() throws IOException
+    {
+        File dir = testdir.getEmptyDir();
+        byte[] quotes = getQuotes();
+        String chars = new String(quotes,"UTF-8");
+
+        TraceFile plain = new TraceFile(new File(dir,"trace.log"),null,false);
+        writeTrace(plain,quotes,chars);
+        TraceFormat gzip = TraceFormat.BINARY.gzip(Deflater.BEST_COMPRESSION);
+        assertThat("suffix",gzip.getSuffix(),is(".trc.gz"));
+        TraceFile compressed = new TraceFile(new File(dir,"trace" + gzip.getSuffix()),null,gzip,null);
+        writeTrace(compressed,quotes,chars);
+
+        File decoded = new File(dir,"decoded.log");
+        try (Writer output = new OutputStreamWriter(new FileOutputStream(decoded)))
+        {
+            TraceDecoder.decode(compressed.getOutputFile(),output);
+        }
+        assertThat("decoded",withoutTimestamps(IO.readToString(decoded)),is(withoutTimestamps(IO.readToString(plain.getOutputFile()))));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidLevel()
+    {
+        TraceFormat.TEXT.gzip(10);
+    }
+
+    @Test
+    @Stress("Compression ratio and throughput")
+    public void testBenchmark() throws IOException
+    {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        File dir = testdir.getEmptyDir();
+        // the payload of the test servlets, as bytes (LongBinaryServlet) and as characters (LongWriterServlet)
+        byte[] quotes = getQuotes();
+        String chars = new String(quotes,"UTF-8");
+        int requests = 2000;
+        TraceFormat[] formats = new TraceFormat[] { TraceFormat.TEXT, TraceFormat.TEXT.gzip(Deflater.BEST_SPEED),
+                TraceFormat.TEXT.gzip(Deflater.DEFAULT_COMPRESSION), TraceFormat.BINARY, TraceFormat.BINARY.gzip(Deflater.BEST_SPEED) };
+
+        for (int round = 0; round < 3; round++)
+        {
+            long plainSize = 0;
+            for (TraceFormat format : formats)
+            {
+                long size = 0;
+                long cpu = threads.getCurrentThreadCpuTime();
+                for (int i = 0; i < requests; i++)
+                {
+                    TraceFile tracer = new TraceFile(new File(dir,"bench-" + i + format.getSuffix()),null,format,null);
+                    writeTrace(tracer,quotes,chars);
+                    size += tracer.getOutputFile().length();
+                }
+                cpu = threads.getCurrentThreadCpuTime() - cpu;
+                if (format == TraceFormat.TEXT)
+                {
+                    plainSize = size;
+                }
+                System.out.printf("Round %d: %-24s %,11d bytes (%5.1fx), %,5dms cpu, %6.1f MB/s of text trace%n",round,format,size,(double)plainSize / size,
+                        cpu / 1_000_000,(plainSize / (1024.0 * 1024.0)) / (cpu / 1_000_000_000.0));
+            }
+        }
+    }
+}
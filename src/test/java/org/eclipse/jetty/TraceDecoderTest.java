@@ -0,0 +1,171 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty;
+
+import static org.eclipse.jetty.TraceTesting.newContent;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.eclipse.jetty.toolchain.test.AdvancedRunner;
+import org.eclipse.jetty.toolchain.test.IO;
+import org.eclipse.jetty.toolchain.test.TestingDir;
+import org.eclipse.jetty.toolchain.test.annotation.Stress;
+import org.eclipse.jetty.trace.TraceDecoder;
+import org.eclipse.jetty.trace.TraceFile;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AdvancedRunner.class)
+public class TraceDecoderTest
+{
+    @Rule
+    public TestingDir testdir = new TestingDir();
+
+    private static final IOException FAILURE = new IOException("Broken pipe");
+
+    private static void writeTrace(TraceFile tracer, byte[] bytes, String chars)
+    {
+        tracer.log("Request: %s %s","GET","/ctx/100%");
+        tracer.log(FAILURE);
+        tracer.logRequestContentBytes(bytes,0,bytes.length);
+        tracer.logRequestContentByte((byte)0x7F);
+        tracer.logResponseContentChar(chars,0,chars.length());
+        tracer.logResponseContentChar('\n');
+        tracer.close();
+    }
+
+    private static String withoutTimestamps(String trace)
+    {
+        return trace.replaceAll("(?m)^\\d{4}-\\d\\d-\\d\\d \\d\\d:\\d\\d:\\d\\d\\.\\d{3} - ","").replaceAll("Trace completed in .*ms","Trace completed").replaceAll("\\+[\\d,.]+ms","+ms");
+    }
+
+    private String decode(File file) throws IOException
+    {
+        // same charset as the text trace files
+        File decoded = new File(file.getPath() + ".log");
+        try (Writer output = new OutputStreamWriter(new FileOutputStream(decoded)))
+        {
+            TraceDecoder.decode(file,output);
+        }
+        return IO.readToString(decoded);
+    }
+
+    @Test
+    public void testDecodeMatchesText() throws IOException
+    {
+        File dir = testdir.getEmptyDir();
+        byte[] bytes = newContent(10000);
+        String chars = "Hello\tW\u00f6rld\r\n\u20ac 100\u00a0%\r\n";
+
+        TraceFile text = new TraceFile(new File(dir,"trace.log"),null,false);
+        writeTrace(text,bytes,chars);
+        TraceFile binary = new TraceFile(new File(dir,"trace.trc"),null,true);
+        writeTrace(binary,bytes,chars);
+
+        String expected = IO.readToString(text.getOutputFile());
+        String decoded = decode(binary.getOutputFile());
+        assertThat("decoded",withoutTimestamps(decoded),is(withoutTimestamps(expected)));
+        assertThat("timestamps",decoded,startsWith(expected.substring(0,10)));
+        assertThat("binary size",binary.getOutputFile().length(),lessThan(text.getOutputFile().length() / 4));
+    }
+
+    @Test
+    public void testDecodeContentLimits() throws IOException
+    {
+        File dir = testdir.getEmptyDir();
+        byte[] bytes = newContent(100000);
+        String chars = "0123456789abcdef\u20ac";
+
+        TraceFile text = new TraceFile(new File(dir,"limits.log"),null,false);
+        text.setContentLimits(100,20);
+        writeTrace(text,bytes,chars);
+        TraceFile binary = new TraceFile(new File(dir,"limits.trc"),null,true);
+        binary.setContentLimits(100,20);
+        writeTrace(binary,bytes,chars);
+
+        String decoded = decode(binary.getOutputFile());
+        assertThat("elided",decoded,containsString("[Request] Closed :: Seen 100,001 bytes (99,881 elided)"));
+        assertThat("decoded",withoutTimestamps(decoded),is(withoutTimestamps(IO.readToString(text.getOutputFile()))));
+    }
+
+    @Test
+    public void testTruncated() throws IOException
+    {
+        File dir = testdir.getEmptyDir();
+        TraceFile binary = new TraceFile(new File(dir,"cut.trc"),null,true);
+        writeTrace(binary,newContent(1000),"abc");
+
+        File cut = new File(dir,"cut-short.trc");
+        byte[] data = Files.readAllBytes(binary.getOutputFile().toPath());
+        Files.write(cut.toPath(),Arrays.copyOf(data,data.length / 2));
+        assertThat("truncated",decode(cut),endsWith("Truncated trace" + System.lineSeparator()));
+    }
+
+    private static long cpuTime(ThreadMXBean threads)
+    {
+        return threads.getCurrentThreadCpuTime();
+    }
+
+    @Test
+    @Stress("Text vs binary trace size and CPU")
+    public void testBenchmark() throws IOException
+    {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        File dir = testdir.getEmptyDir();
+        byte[] bytes = newContent(8 * 1024 * 1024);
+        StringBuilder html = new StringBuilder();
+        while (html.length() < 8 * 1024 * 1024)
+        {
+            html.append("<tr><td class=\"name\">Item</td><td>\u20ac 42.00</td></tr>\n");
+        }
+        String chars = html.toString();
+
+        for (int round = 0; round < 4; round++)
+        {
+            long cpu = cpuTime(threads);
+            TraceFile text = new TraceFile(new File(dir,"bench-" + round + ".log"),null,false);
+            writeTrace(text,bytes,chars);
+            long textCpu = cpuTime(threads) - cpu;
+
+            cpu = cpuTime(threads);
+            TraceFile binary = new TraceFile(new File(dir,"bench-" + round + ".trc"),null,true);
+            writeTrace(binary,bytes,chars);
+            long binaryCpu = cpuTime(threads) - cpu;
+
+            cpu = cpuTime(threads);
+            decode(binary.getOutputFile());
+            long decodeCpu = cpuTime(threads) - cpu;
+
+            System.out.printf("Round %d: text %,d bytes in %,dms cpu, binary %,d bytes in %,dms cpu (%.1fx smaller, %.1fx less cpu), decode %,dms cpu%n",
+                    round,text.getOutputFile().length(),textCpu / 1_000_000,binary.getOutputFile().length(),binaryCpu / 1_000_000,
+                    (double)text.getOutputFile().length() / binary.getOutputFile().length(),(double)textCpu / binaryCpu,decodeCpu / 1_000_000);
+        }
+    }
+}
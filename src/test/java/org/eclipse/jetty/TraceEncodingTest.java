@@ -0,0 +1,255 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.toolchain.test.AdvancedRunner;
+import org.eclipse.jetty.toolchain.test.IO;
+import org.eclipse.jetty.toolchain.test.TestingDir;
+import org.eclipse.jetty.toolchain.test.annotation.Stress;
+import org.eclipse.jetty.trace.TraceDecoder;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AdvancedRunner.class)
+public class TraceEncodingTest
+{
+    // 2 and 3 byte UTF-8 sequences, and a surrogate pair (4 bytes)
+    private static final String TEXT = "Grüße, 日本語 and 😀!\r\n";
+
+    /**
+     * Writes the text <code>count</code> times, in the charset of the <code>charset</code> parameter, splitting the
+     * surrogate pair across writes.
+     */
+    @SuppressWarnings("serial")
+    public static class TextServlet extends HttpServlet
+    {
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException
+        {
+            resp.setContentType("text/plain");
+            resp.setCharacterEncoding(req.getParameter("charset"));
+            int count = Integer.parseInt(req.getParameter("count"));
+            PrintWriter writer = resp.getWriter();
+            String late = req.getParameter("late");
+            if (late != null)
+            {
+                // ignored once the writer exists
+                resp.setCharacterEncoding(late);
+                resp.setContentType("text/plain;charset=" + late);
+                resp.setLocale(Locale.JAPAN);
+            }
+            int split = TEXT.indexOf('\uD83D') + 1;
+            for (int i = 0; i < count; i++)
+            {
+                writer.write(TEXT,0,split);
+                writer.write(TEXT,split,TEXT.length() - split);
+            }
+        }
+    }
+
+    @Rule
+    public TestingDir testdir = new TestingDir();
+
+    private TraceServer server;
+    private File traceDir;
+
+    private void startServer(Map<String, String> params) throws Exception
+    {
+        traceDir = testdir.getEmptyDir();
+        server = new TraceServer(traceDir);
+        for (Map.Entry<String, String> param : params.entrySet())
+        {
+            server.setInitParameter(param.getKey(),param.getValue());
+        }
+        server.addServlet(new TextServlet(),"/text");
+        server.start();
+    }
+
+    @After
+    public void stopServer() throws Exception
+    {
+        if (server != null)
+        {
+            server.stop();
+        }
+    }
+
+    private HttpURLConnection request(String charset, int count) throws IOException
+    {
+        return request("/text?charset=" + charset + "&count=" + count);
+    }
+
+    private HttpURLConnection request(String uri) throws IOException
+    {
+        URL url = server.getURI().resolve(uri).toURL();
+        HttpURLConnection conn = (HttpURLConnection)url.openConnection();
+        assertThat("status",conn.getResponseCode(),is(HttpURLConnection.HTTP_OK));
+        return conn;
+    }
+
+    private static byte[] readBody(HttpURLConnection conn) throws IOException
+    {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (InputStream in = conn.getInputStream())
+        {
+            IO.copy(in,body);
+        }
+        return body.toByteArray();
+    }
+
+    private String readTrace() throws Exception
+    {
+        server.awaitWritten();
+        File[] traces = traceDir.listFiles();
+        assertThat("traces",traces.length,is(1));
+        if (traces[0].getName().endsWith(".trc"))
+        {
+            StringWriter text = new StringWriter();
+            TraceDecoder.decode(traces[0],text);
+            return text.toString();
+        }
+        return IO.readToString(traces[0]);
+    }
+
+    private static Map<String, String> params(String... pairs)
+    {
+        Map<String, String> params = new HashMap<>();
+        for (int i = 0; i < pairs.length; i += 2)
+        {
+            params.put(pairs[i],pairs[i + 1]);
+        }
+        return params;
+    }
+
+    @Test
+    public void testEncodedWriter() throws Exception
+    {
+        startServer(params("trace-encode-writer","true"));
+        HttpURLConnection conn = request("UTF-8",3);
+        byte[] body = readBody(conn);
+
+        byte[] expected = (TEXT + TEXT + TEXT).getBytes(StandardCharsets.UTF_8);
+        assertThat("body",new String(body,StandardCharsets.UTF_8),is(TEXT + TEXT + TEXT));
+        assertThat("content type",conn.getContentType(),containsString("charset=UTF-8"));
+
+        String trace = readTrace();
+        assertThat("charset",trace,containsString("[Response] Charset:: UTF-8"));
+        // decoded when rendered, the text file holds it in the platform charset
+        assertThat("decoded",trace,containsString("[Response] Content:: Gr"));
+        assertThat("lines",trace,containsString("!\\r\\nGr"));
+        assertThat("bytes",trace,containsString(String.format("[Response] Closed :: Seen %,d bytes",expected.length)));
+        assertThat("no hex",trace,not(containsString(" | ")));
+    }
+
+    @Test
+    public void testCharsetChangedAfterGetWriter() throws Exception
+    {
+        startServer(params("trace-encode-writer","true"));
+        HttpURLConnection conn = request("/text?charset=UTF-8&count=1&late=ISO-8859-1");
+        byte[] body = readBody(conn);
+
+        assertThat("body",new String(body,StandardCharsets.UTF_8),is(TEXT));
+        assertThat("content type",conn.getContentType(),containsString("charset=UTF-8"));
+        assertThat("content type",conn.getContentType(),not(containsString("ISO-8859-1")));
+        String trace = readTrace();
+        assertThat("charset",trace,containsString("[Response] Charset:: UTF-8"));
+        assertThat("ignored",trace,containsString("Ignored charset ISO-8859-1 after getWriter(), kept UTF-8"));
+    }
+
+    @Test
+    public void testEncodedWriterBinaryTrace() throws Exception
+    {
+        startServer(params("trace-encode-writer","true","trace-format","binary"));
+        byte[] body = readBody(request("UTF-8",2));
+
+        assertThat("body",new String(body,StandardCharsets.UTF_8),is(TEXT + TEXT));
+        String trace = readTrace();
+        assertThat("charset",trace,containsString("[Response] Charset:: UTF-8"));
+        // the surrogate pair split across writes is whole again
+        assertThat("decoded",trace,containsString("[Response] Content:: Grüße, 日本語 and 😀!\\r\\nGrüße, 日本語 and 😀!\\r\\n"));
+        assertThat("bytes",trace,containsString(String.format("[Response] Closed :: Seen %,d bytes",body.length)));
+    }
+
+    @Test
+    public void testUnmappableCharacters() throws Exception
+    {
+        startServer(params("trace-encode-writer","true","trace-format","binary"));
+        byte[] body = readBody(request("ISO-8859-1",1));
+
+        // replaced, as by the writer of the container
+        assertThat("body",new String(body,StandardCharsets.ISO_8859_1),is("Grüße, ??? and ?!\r\n"));
+        String trace = readTrace();
+        assertThat("charset",trace,containsString("[Response] Charset:: ISO-8859-1"));
+        assertThat("decoded",trace,containsString("[Response] Content:: Grüße, ??? and ?!\\r\\n"));
+        assertThat("bytes",trace,containsString("[Response] Closed :: Seen 19 bytes"));
+    }
+
+    @Test
+    public void testCharacterWriter() throws Exception
+    {
+        startServer(params());
+        byte[] body = readBody(request("UTF-8",1));
+
+        assertThat("body",new String(body,StandardCharsets.UTF_8),is(TEXT));
+        String trace = readTrace();
+        assertThat("chars",trace,containsString("[Response] Character Based"));
+        assertThat("no charset",trace,not(containsString("Charset::")));
+        assertThat("count",trace,containsString("[Response] Closed :: Seen " + TEXT.length() + " characters"));
+    }
+
+    @Test
+    @Stress("Response writer throughput, traced as characters or as encoded bytes")
+    public void testThroughput() throws Exception
+    {
+        int count = 500_000;
+        for (String encode : new String[] { "false", "true", "false", "true", "false", "true", "false", "true" })
+        {
+            startServer(params("trace-encode-writer",encode,"trace-content-head","1024","trace-content-tail","1024"));
+            long start = System.nanoTime();
+            byte[] body = readBody(request("UTF-8",count));
+            long nanos = System.nanoTime() - start;
+            server.stop();
+            System.out.printf("%-10s %,d bytes: %,.1f MB/s%n",Boolean.parseBoolean(encode)?"encoded":"characters",body.length,
+                    (body.length / (1024.0 * 1024.0)) / (nanos / 1_000_000_000.0));
+        }
+    }
+}
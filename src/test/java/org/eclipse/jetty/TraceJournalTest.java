@@ -0,0 +1,194 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.eclipse.jetty.toolchain.test.TestingDir;
+import org.eclipse.jetty.trace.TraceFile;
+import org.eclipse.jetty.trace.TraceJournal;
+import org.eclipse.jetty.trace.TraceWriter;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class TraceJournalTest
+{
+    @Rule
+    public TestingDir testdir = new TestingDir();
+
+    private static TraceFile newTracer(TraceJournal journal, TraceWriter writer) throws IOException
+    {
+        TraceJournal.Entry entry = journal.newEntry("Trace started");
+        return new TraceFile(entry.getId(),entry,writer);
+    }
+
+    private static String extract(File dir, String id) throws IOException
+    {
+        StringWriter output = new StringWriter();
+        assertTrue("end of " + id,TraceJournal.extract(dir,id,output));
+        return output.toString();
+    }
+
+    @Test
+    public void testInterleavedTraces() throws IOException
+    {
+        File dir = testdir.getEmptyDir();
+        TraceWriter writer = new TraceWriter(64 * 1024);
+        writer.start();
+        TraceFile[] tracers = new TraceFile[20];
+        try (TraceJournal journal = new TraceJournal(dir,16 * 1024))
+        {
+            for (int i = 0; i < tracers.length; i++)
+            {
+                tracers[i] = newTracer(journal,writer);
+            }
+            byte[] content = new byte[1000];
+            for (int round = 0; round < 5; round++)
+            {
+                for (int i = 0; i < tracers.length; i++)
+                {
+                    tracers[i].log("Trace #%d round %d",i,round);
+                    tracers[i].logResponseContentBytes(content,0,content.length);
+                }
+            }
+            for (TraceFile tracer : tracers)
+            {
+                tracer.close();
+            }
+            writer.stop();
+        }
+
+        assertTrue("rolled over segments",TraceJournal.getSegmentFile(dir,2).exists());
+        for (int i = 0; i < tracers.length; i++)
+        {
+            String id = tracers[i].getId();
+            assertThat("id",id,startsWith("000001-"));
+            assertThat("file",tracers[i].getOutputFile(),nullValue());
+
+            String trace = extract(dir,id);
+            assertThat("trace",trace,startsWith("Trace started"));
+            for (int round = 0; round < 5; round++)
+            {
+                assertThat("trace",trace,containsString("Trace #" + i + " round " + round));
+            }
+            assertThat("trace",trace,containsString("[Response] Closed :: Seen 5,000 bytes"));
+            assertThat("trace",trace,containsString("Trace completed in"));
+            for (int j = 0; j < tracers.length; j++)
+            {
+                if (j != i)
+                {
+                    assertThat("trace",trace,not(containsString("Trace #" + j + " ")));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSynchronousTraceAppendedBeforeClose() throws IOException
+    {
+        File dir = testdir.getEmptyDir();
+        try (TraceJournal journal = new TraceJournal(dir,16 * 1024))
+        {
+            TraceFile tracer = newTracer(journal,null);
+            byte[] content = new byte[1000];
+            for (int i = 0; i < 50; i++)
+            {
+                tracer.logResponseContentBytes(content,0,content.length);
+            }
+            // the pending lines were appended (and rolled over the segment) while the trace is still open
+            assertTrue("rolled over segments",TraceJournal.getSegmentFile(dir,2).exists());
+            tracer.close();
+            assertThat("trace",extract(dir,tracer.getId()),containsString("[Response] Closed :: Seen 50,000 bytes"));
+        }
+    }
+
+    @Test
+    public void testNewSegmentOnRestart() throws IOException
+    {
+        File dir = testdir.getEmptyDir();
+        try (TraceJournal journal = new TraceJournal(dir,1024))
+        {
+            TraceFile tracer = newTracer(journal,null);
+            tracer.close();
+            assertThat("id",tracer.getId(),is("000001-0"));
+        }
+        try (TraceJournal journal = new TraceJournal(dir,1024))
+        {
+            TraceFile tracer = newTracer(journal,null);
+            tracer.close();
+            assertThat("id",tracer.getId(),is("000002-0"));
+        }
+        assertThat("first trace",extract(dir,"000001-0"),containsString("Trace completed in"));
+    }
+
+    @Test
+    public void testNewEntryWithoutWrite() throws IOException
+    {
+        File dir = testdir.getEmptyDir();
+        // every append fills a segment
+        try (TraceJournal journal = new TraceJournal(dir,1))
+        {
+            TraceFile first = newTracer(journal,null);
+            TraceFile second = newTracer(journal,null);
+            // nothing written, nor rolled over, until a trace appends a block
+            assertThat("written",TraceJournal.getSegmentFile(dir,1).length(),is(0L));
+            assertFalse("rolled over segments",TraceJournal.getSegmentFile(dir,2).exists());
+            assertThat("ids",first.getId(),not(second.getId()));
+
+            // appended in the reverse order of the ids
+            second.log("Second");
+            second.close();
+            first.log("First");
+            first.close();
+
+            assertThat("first",extract(dir,first.getId()),allOf(startsWith("Trace started"),containsString("First"),not(containsString("Second"))));
+            assertThat("second",extract(dir,second.getId()),allOf(startsWith("Trace started"),containsString("Second"),not(containsString("First"))));
+        }
+    }
+
+    @Test
+    public void testExistingSegmentSkipped() throws IOException
+    {
+        File dir = testdir.getEmptyDir();
+        try (TraceJournal journal = new TraceJournal(dir,1024))
+        {
+            // created by another journal in the same directory
+            File other = TraceJournal.getSegmentFile(dir,2);
+            assertTrue(other.createNewFile());
+
+            TraceFile tracer = newTracer(journal,null);
+            byte[] content = new byte[1000];
+            tracer.logResponseContentBytes(content,0,content.length);
+            tracer.close();
+            assertThat("other",other.length(),is(0L));
+            assertThat("id",newTracer(journal,null).getId(),startsWith("000003-"));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidSegmentSize() throws IOException
+    {
+        new TraceJournal(testdir.getEmptyDir(),0).close();
+    }
+}
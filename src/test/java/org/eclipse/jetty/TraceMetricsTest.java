@@ -0,0 +1,202 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.toolchain.test.AdvancedRunner;
+import org.eclipse.jetty.toolchain.test.TestingDir;
+import org.eclipse.jetty.toolchain.test.annotation.Stress;
+import org.eclipse.jetty.trace.TraceFile;
+import org.eclipse.jetty.trace.TraceFormat;
+import org.eclipse.jetty.trace.TraceHistogram;
+import org.eclipse.jetty.trace.TraceMetrics;
+import org.eclipse.jetty.trace.TraceWriter;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AdvancedRunner.class)
+public class TraceMetricsTest
+{
+    @Rule
+    public TestingDir testdir = new TestingDir();
+
+    private static void assertClose(String msg, long actual, long expected)
+    {
+        // a log-linear histogram with 8 sub buckets is within 1/8th of the value
+        assertThat(msg,(double)actual,closeTo(expected,expected / 8.0 + 1));
+    }
+
+    @Test
+    public void testPercentiles()
+    {
+        TraceHistogram histogram = new TraceHistogram();
+        for (long i = 1; i <= 100_000; i++)
+        {
+            histogram.record(i);
+        }
+        assertThat("count",histogram.getCount(),is(100_000L));
+        assertThat("mean",histogram.getMean(),closeTo(50_000.5,0.01));
+        assertClose("max",histogram.getMax(),100_000);
+        assertClose("p50",histogram.getPercentile(50),50_000);
+        assertClose("p99",histogram.getPercentile(99),99_000);
+        assertClose("p99.9",histogram.getPercentile(99.9),99_900);
+    }
+
+    @Test
+    public void testSmallAndLargeValues()
+    {
+        TraceHistogram histogram = new TraceHistogram();
+        assertThat("empty",histogram.getPercentile(50),is(0L));
+        assertThat("empty mean",histogram.getMean(),is(0.0));
+
+        histogram.record(0);
+        histogram.record(3);
+        histogram.record(Long.MAX_VALUE);
+        histogram.record(-1);
+        assertThat("count",histogram.getCount(),is(4L));
+        assertThat("p25",histogram.getPercentile(25),is(0L));
+        assertThat("p50",histogram.getPercentile(50),is(0L));
+        assertThat("p75",histogram.getPercentile(75),is(3L));
+        assertThat("max",histogram.getMax(),is(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testConcurrentRecording() throws Exception
+    {
+        final TraceHistogram histogram = new TraceHistogram();
+        final int threads = 8;
+        final int records = 100_000;
+        final CountDownLatch latch = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++)
+        {
+            new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    for (int i = 0; i < records; i++)
+                    {
+                        histogram.record(i);
+                    }
+                    latch.countDown();
+                }
+            }.start();
+        }
+        assertTrue(latch.await(30,TimeUnit.SECONDS));
+        assertThat("count",histogram.getCount(),is((long)threads * records));
+        assertClose("p50",histogram.getPercentile(50),records / 2);
+    }
+
+    @Test
+    public void testTraceMetrics() throws IOException
+    {
+        TraceWriter writer = new TraceWriter(1024);
+        writer.start();
+        TraceMetrics metrics = new TraceMetrics(writer);
+        byte[] content = "Hello World".getBytes();
+
+        TraceFile tracer = new TraceFile(new File(testdir.getEmptyDir(),"metrics.log"),writer,TraceFormat.TEXT,null);
+        tracer.setMetrics(metrics);
+        metrics.onTraced();
+        assertThat("open",metrics.getOpenTraces(),is(1L));
+        tracer.logRequestContentBytes(content,0,content.length);
+        tracer.logRequestContentClose();
+        tracer.logResponseContentBytes(content,0,5);
+        tracer.logResponseContentClose();
+        tracer.close();
+        writer.stop();
+
+        assertThat("traced",metrics.getTracedRequests(),is(1L));
+        assertThat("open",metrics.getOpenTraces(),is(0L));
+        assertThat("request bytes",metrics.getRequestBytesCaptured(),is(11L));
+        assertThat("response bytes",metrics.getResponseBytesCaptured(),is(5L));
+        assertThat("durations",metrics.getRequestDuration().getCount(),is(1L));
+        assertThat("writes",metrics.getTraceWriteTime().getCount(),is(1L));
+        assertThat("dropped",metrics.getDroppedEvents(),is(0L));
+    }
+
+    @Test
+    public void testFailedOutputNotLeftOpen() throws IOException
+    {
+        TraceMetrics metrics = new TraceMetrics(null);
+        TraceFile tracer = new TraceFile("failing",new StringWriter()
+        {
+            @Override
+            public void close()
+            {
+                throw new IllegalStateException("Output failed");
+            }
+        },null);
+        tracer.setMetrics(metrics);
+        assertThat("open",metrics.getOpenTraces(),is(1L));
+        try
+        {
+            tracer.close();
+            fail("close of the output did not fail");
+        }
+        catch (IllegalStateException e)
+        {
+            assertThat("failure",e.getMessage(),is("Output failed"));
+        }
+        assertThat("open",metrics.getOpenTraces(),is(0L));
+        assertThat("writes",metrics.getTraceWriteTime().getCount(),is(1L));
+    }
+
+    @Test
+    @Stress("Contention of histogram recording")
+    public void testContention() throws Exception
+    {
+        final TraceHistogram histogram = new TraceHistogram();
+        final int records = 10_000_000;
+        for (int threads : new int[] { 1, 2, 4, 8, 16 })
+        {
+            final CountDownLatch latch = new CountDownLatch(threads);
+            long start = System.nanoTime();
+            for (int t = 0; t < threads; t++)
+            {
+                new Thread()
+                {
+                    @Override
+                    public void run()
+                    {
+                        Random random = new Random();
+                        for (int i = 0; i < records; i++)
+                        {
+                            histogram.record(random.nextInt(1_000_000));
+                        }
+                        latch.countDown();
+                    }
+                }.start();
+            }
+            assertTrue(latch.await(5,TimeUnit.MINUTES));
+            long nanos = System.nanoTime() - start;
+            System.out.printf("%2d threads: %,.1f ns per record%n",threads,(double)nanos / records);
+        }
+    }
+}
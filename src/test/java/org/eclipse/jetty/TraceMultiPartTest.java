@@ -0,0 +1,237 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty;
+
+import static org.eclipse.jetty.TraceTesting.allocatedBytes;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.eclipse.jetty.toolchain.test.AdvancedRunner;
+import org.eclipse.jetty.toolchain.test.IO;
+import org.eclipse.jetty.toolchain.test.TestingDir;
+import org.eclipse.jetty.toolchain.test.annotation.Stress;
+import org.eclipse.jetty.trace.TraceFile;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AdvancedRunner.class)
+public class TraceMultiPartTest
+{
+    private static final String BOUNDARY = "----TraceBoundary7MA4YWxk";
+
+    @Rule
+    public TestingDir testdir = new TestingDir();
+    private File dir;
+
+    @Before
+    public void setUp()
+    {
+        dir = testdir.getEmptyDir();
+    }
+
+    private static HttpServletRequest newRequest(final String contentType)
+    {
+        return (HttpServletRequest)Proxy.newProxyInstance(TraceMultiPartTest.class.getClassLoader(),new Class<?>[] { HttpServletRequest.class },
+                new InvocationHandler()
+                {
+                    @Override
+                    public Object invoke(Object proxy, Method m, Object[] args)
+                    {
+                        switch (m.getName())
+                        {
+                            case "getMethod":
+                                return "POST";
+                            case "getRequestURL":
+                                return new StringBuffer("http://localhost:8080/upload");
+                            case "getQueryString":
+                                return null;
+                            case "getHeaderNames":
+                                return Collections.enumeration(Collections.singleton("Content-Type"));
+                            case "getHeader":
+                            case "getContentType":
+                                return contentType;
+                            default:
+                                throw new UnsupportedOperationException(m.getName());
+                        }
+                    }
+                });
+    }
+
+    private static byte[] newBody(byte[] file)
+    {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        write(body,"preamble, ignored\r\n");
+        write(body,"--" + BOUNDARY + "\r\n");
+        write(body,"Content-Disposition: form-data; name=\"title\"\r\n\r\n");
+        // looks like the start of a delimiter, but is not one
+        write(body,"Line 1\r\n--" + BOUNDARY.substring(0,10) + "\r\r\nLine 2");
+        write(body,"\r\n--" + BOUNDARY + "  \r\n");
+        write(body,"Content-Disposition: form-data; name=\"file\"; filename=\"data.bin\"\r\n");
+        write(body,"Content-Type: application/octet-stream\r\n\r\n");
+        body.write(file,0,file.length);
+        write(body,"\r\n--" + BOUNDARY + "\r\n");
+        // a part without headers
+        write(body,"\r\nno headers");
+        write(body,"\r\n--" + BOUNDARY + "--\r\n");
+        write(body,"epilogue, ignored");
+        return body.toByteArray();
+    }
+
+    private static void write(ByteArrayOutputStream out, String text)
+    {
+        byte[] b = text.getBytes(StandardCharsets.UTF_8);
+        out.write(b,0,b.length);
+    }
+
+    private static byte[] newFile(int size)
+    {
+        byte[] file = new byte[size];
+        for (int i = 0; i < size; i++)
+        {
+            file[i] = (byte)(i % 251);
+        }
+        return file;
+    }
+
+    private String trace(String name, int preview, byte[] body, int chunk) throws IOException
+    {
+        TraceFile tracer = new TraceFile(new File(dir,name));
+        tracer.setPartPreview(preview);
+        tracer.logRequestHeaders(newRequest("multipart/form-data; boundary=\"" + BOUNDARY + "\""));
+        for (int off = 0; off < body.length; off += chunk)
+        {
+            int len = Math.min(chunk,body.length - off);
+            if (len == 1)
+            {
+                tracer.logRequestContentByte(body[off]);
+            }
+            else
+            {
+                tracer.logRequestContentBytes(body,off,len);
+            }
+        }
+        tracer.logRequestContentClose();
+        tracer.close();
+        return IO.readToString(tracer.getOutputFile());
+    }
+
+    @Test
+    public void testParts() throws IOException
+    {
+        byte[] body = newBody(newFile(1000));
+        for (int chunk : new int[] { 1, 2, 7, 4096, body.length })
+        {
+            String trace = trace("parts-" + chunk + ".log",40,body,chunk);
+            assertThat("field",trace,containsString("[Request] Part 1:"));
+            assertThat("field",trace,containsString("  Content-Disposition: form-data; name=\"title\""));
+            assertThat("field",trace,containsString("  (part size): 29 bytes"));
+            assertThat("field",trace,containsString("  [Part 1] Content:: Line 1\\r\\n------TraceB\\r\\r\\nLine 2"));
+            assertThat("file",trace,containsString("  Content-Disposition: form-data; name=\"file\"; filename=\"data.bin\""));
+            assertThat("file",trace,containsString("  Content-Type: application/octet-stream"));
+            assertThat("file",trace,containsString("  (part size): 1,000 bytes"));
+            assertThat("file",trace,containsString("  [Part 2] Content:: 00 01 02 03 04 05 06 07  08 09 0A 0B 0C 0D 0E 0F  | ................"));
+            assertThat("file",trace,containsString("  [Part 2] Content:: 20 21 22 23 24 25 26 27                           |  !\"#$%&'"));
+            assertThat("preview",trace,not(containsString("[Part 2] Content:: 28 ")));
+            assertThat("empty",trace,containsString("  (part size): 10 bytes"));
+            assertThat("empty",trace,containsString("  [Part 3] Content:: no headers"));
+            assertThat("end",trace,containsString("[Request] Multipart end, 3 parts"));
+            assertThat("content",trace,containsString(String.format("[Request] Closed :: Seen %,d bytes",body.length)));
+        }
+    }
+
+    @Test
+    public void testIncomplete() throws IOException
+    {
+        byte[] body = newBody(newFile(1000));
+        String content = new String(body,StandardCharsets.ISO_8859_1);
+        // ends 100 bytes into the file
+        int end = content.indexOf("\r\n\r\n",content.indexOf("data.bin")) + 104;
+        byte[] truncated = new byte[end];
+        System.arraycopy(body,0,truncated,0,end);
+
+        String trace = trace("incomplete.log",0,truncated,4096);
+        assertThat("field",trace,containsString("  (part size): 29 bytes"));
+        assertThat("file",trace,containsString("  (part size): 100 bytes, incomplete"));
+        assertThat("preview",trace,not(containsString("[Part 1] Content::")));
+        assertThat("end",trace,containsString("[Request] Multipart incomplete, 2 parts"));
+    }
+
+    @Test
+    public void testNotParsed() throws IOException
+    {
+        byte[] body = newBody(newFile(100));
+        String trace = trace("disabled.log",-1,body,4096);
+        assertThat("parts",trace,not(containsString("[Request] Part 1:")));
+        assertThat("end",trace,not(containsString("Multipart")));
+        assertThat("content",trace,containsString(String.format("[Request] Closed :: Seen %,d bytes",body.length)));
+    }
+
+    @Test
+    @Stress("Multipart upload capture, memory and throughput")
+    public void testLargeUpload() throws IOException
+    {
+        byte[] head = ("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"file\"; filename=\"big.bin\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.UTF_8);
+        byte[] tail = ("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.UTF_8);
+        // random bytes, with a CR every 251 bytes on average
+        byte[] chunk = newFile(64 * 1024);
+        long size = 2L * 1024 * 1024 * 1024;
+
+        for (int round = 0; round < 6; round++)
+        {
+            int preview = ((round % 2) == 0)?-1:256;
+            TraceFile tracer = new TraceFile(new File(dir,"upload.log"));
+            tracer.setContentLimits(1024,0);
+            tracer.setPartPreview(preview);
+            tracer.logRequestHeaders(newRequest("multipart/form-data; boundary=" + BOUNDARY));
+            long allocated = allocatedBytes();
+            long start = System.nanoTime();
+            tracer.logRequestContentBytes(head,0,head.length);
+            for (long sent = 0; sent < size; sent += chunk.length)
+            {
+                tracer.logRequestContentBytes(chunk,0,chunk.length);
+            }
+            tracer.logRequestContentBytes(tail,0,tail.length);
+            tracer.logRequestContentClose();
+            long nanos = System.nanoTime() - start;
+            allocated = allocatedBytes() - allocated;
+            tracer.close();
+            String trace = IO.readToString(tracer.getOutputFile());
+            if (preview >= 0)
+            {
+                assertThat("size",trace,containsString(String.format("  (part size): %,d bytes",size)));
+            }
+            System.out.printf("%-12s %,d MB: %,.0f MB/s, %,d bytes allocated%n",(preview < 0)?"Unparsed":"Multipart",size >> 20,
+                    (size / (1024.0 * 1024.0)) / (nanos / 1_000_000_000.0),allocated);
+        }
+    }
+}
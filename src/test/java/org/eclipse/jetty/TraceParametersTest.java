@@ -0,0 +1,185 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.toolchain.test.AdvancedRunner;
+import org.eclipse.jetty.toolchain.test.IO;
+import org.eclipse.jetty.toolchain.test.TestingDir;
+import org.eclipse.jetty.trace.TraceFile;
+import org.eclipse.jetty.trace.TraceFormat;
+import org.eclipse.jetty.trace.TraceRetention;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AdvancedRunner.class)
+public class TraceParametersTest
+{
+    /**
+     * Reads the form body as a stream, without asking for the parameters.
+     */
+    @SuppressWarnings("serial")
+    public static class StreamServlet extends HttpServlet
+    {
+        @Override
+        protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException
+        {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            IO.copy(req.getInputStream(),body);
+            resp.setContentType("text/plain");
+            resp.getWriter().printf("Read %d bytes",body.size());
+        }
+    }
+
+    /**
+     * Has the container parse the form body.
+     */
+    @SuppressWarnings("serial")
+    public static class ParameterServlet extends HttpServlet
+    {
+        @Override
+        protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException
+        {
+            resp.setContentType("text/plain");
+            resp.getWriter().printf("name = %s, %d parameters",req.getParameter("name"),req.getParameterMap().size());
+        }
+    }
+
+    @Rule
+    public TestingDir testdir = new TestingDir();
+
+    private TraceServer server;
+    private File traceDir;
+
+    private void startServer() throws Exception
+    {
+        traceDir = testdir.getEmptyDir();
+        server = new TraceServer(traceDir);
+        server.addServlet(new StreamServlet(),"/stream");
+        server.addServlet(new ParameterServlet(),"/parameters");
+        server.start();
+    }
+
+    @After
+    public void stopServer() throws Exception
+    {
+        if (server != null)
+        {
+            server.stop();
+        }
+    }
+
+    private String post(String uri, String form) throws IOException
+    {
+        URL url = server.getURI().resolve(uri).toURL();
+        HttpURLConnection conn = (HttpURLConnection)url.openConnection();
+        conn.setDoOutput(true);
+        conn.setRequestMethod("POST");
+        conn.setRequestProperty("Content-Type","application/x-www-form-urlencoded");
+        try (OutputStream out = conn.getOutputStream())
+        {
+            out.write(form.getBytes(StandardCharsets.UTF_8));
+        }
+        assertThat("status",conn.getResponseCode(),is(HttpURLConnection.HTTP_OK));
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (InputStream in = conn.getInputStream())
+        {
+            IO.copy(in,body);
+        }
+        return new String(body.toByteArray(),StandardCharsets.UTF_8);
+    }
+
+    private String readTrace() throws Exception
+    {
+        server.awaitWritten();
+        File[] traces = traceDir.listFiles();
+        assertThat("traces",traces.length,is(1));
+        return IO.readToString(traces[0]);
+    }
+
+    @Test
+    public void testFormBodyNotParsed() throws Exception
+    {
+        startServer();
+        String form = "name=value&other=a+b";
+        // the body is left to the application
+        assertThat("response",post("/stream?mode=stream",form),is("Read " + form.length() + " bytes"));
+        String trace = readTrace();
+        assertThat("query",trace,containsString("  (query parameters)"));
+        assertThat("query",trace,containsString("  mode = [stream]"));
+        assertThat("form",trace,not(containsString("Request Parameters:")));
+        assertThat("content",trace,containsString("| name=value&other"));
+        assertThat("content",trace,containsString("[Request] Closed :: Seen " + form.length() + " bytes"));
+    }
+
+    @Test
+    public void testFormParametersLogged() throws Exception
+    {
+        startServer();
+        assertThat("response",post("/parameters?mode=parse","name=value&other=a+b"),is("name = value, 3 parameters"));
+        String trace = readTrace();
+        assertThat("query",trace,containsString("  mode = [parse]"));
+        // logged once, when the servlet first asked for a parameter
+        assertThat("form",trace,containsString("Request Parameters:"));
+        assertThat("form",trace.indexOf("Request Parameters:"),is(trace.lastIndexOf("Request Parameters:")));
+        assertThat("form",trace,containsString("  name = [value]"));
+        assertThat("form",trace,containsString("  other = [a b]"));
+    }
+
+    @Test
+    public void testParametersCopiedWhenLogged() throws Exception
+    {
+        File file = new File(testdir.getEmptyDir(),"parameters.log");
+        // held by the retention until the close
+        TraceFile tracer = new TraceFile(file,null,TraceFormat.TEXT,new TraceRetention(0,0,true),null);
+        Map<String, String[]> params = new LinkedHashMap<>();
+        params.put("name",new String[] { "value" });
+        tracer.logRequestParameters(params);
+        // the request is recycled before the event is rendered
+        params.get("name")[0] = "recycled";
+        params.put("other",new String[] { "added" });
+        tracer.log(new IOException("retained"));
+        tracer.close();
+
+        String trace = IO.readToString(file);
+        assertThat("form",trace,containsString("  name = [value]"));
+        assertThat("form",trace,not(containsString("recycled")));
+        assertThat("form",trace,not(containsString("added")));
+    }
+}
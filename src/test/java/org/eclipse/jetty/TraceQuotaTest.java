@@ -0,0 +1,209 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.toolchain.test.TestingDir;
+import org.eclipse.jetty.trace.TraceFile;
+import org.eclipse.jetty.trace.TraceJournal;
+import org.eclipse.jetty.trace.TraceQuota;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class TraceQuotaTest
+{
+    @Rule
+    public TestingDir testdir = new TestingDir();
+
+    private File dir;
+
+    @Before
+    public void initDir()
+    {
+        dir = testdir.getEmptyDir();
+    }
+
+    private File newFile(String name, int size) throws IOException
+    {
+        File file = new File(dir,name);
+        Files.write(file.toPath(),new byte[size]);
+        return file;
+    }
+
+    @Test
+    public void testEvictOldestFirst() throws IOException
+    {
+        TraceQuota quota = new TraceQuota(dir,10000,0,0);
+        File[] files = new File[10];
+        for (int i = 0; i < files.length; i++)
+        {
+            files[i] = newFile("tracer-" + i + ".log",1000);
+            quota.added(files[i]);
+        }
+        assertThat("total",quota.getTotalSize(),is(10000L));
+        assertThat("full",quota.getMode(),is(TraceQuota.Mode.NONE));
+
+        quota.evict();
+        // evicted down to the low water mark
+        assertThat("total",quota.getTotalSize(),is(8000L));
+        assertThat("files",quota.getFileCount(),is(8));
+        assertThat("evicted",quota.getEvictedFiles(),is(2L));
+        assertFalse("oldest",files[0].exists());
+        assertFalse("second oldest",files[1].exists());
+        assertTrue("newer",files[2].exists());
+        assertThat("mode",quota.getMode(),is(TraceQuota.Mode.FULL));
+    }
+
+    @Test
+    public void testModes() throws IOException
+    {
+        TraceQuota quota = new TraceQuota(dir,0,10,0);
+        for (int i = 0; i < 9; i++)
+        {
+            quota.added(newFile("tracer-" + i + ".log",10));
+        }
+        assertThat("90%",quota.getMode(),is(TraceQuota.Mode.FULL));
+        quota.added(newFile("tracer-9.log",10));
+        assertThat("100%",quota.getMode(),is(TraceQuota.Mode.NONE));
+        quota.evict();
+        assertThat("files",quota.getFileCount(),is(8));
+
+        quota = new TraceQuota(dir,1000,0,0);
+        quota.added(newFile("tracer-big.log",950));
+        assertThat("95%",quota.getMode(),is(TraceQuota.Mode.HEADERS));
+
+        // a trace that was not retained leaves no file
+        quota.added(new File(dir,"tracer-missing.log"));
+        assertThat("missing",quota.getTotalSize(),is(950L));
+    }
+
+    @Test
+    public void testScanAndMaxAge() throws IOException
+    {
+        File old = newFile("tracer-old.log.gz",100);
+        assertTrue(old.setLastModified(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(2)));
+        File recent = newFile("tracer-recent.trc",100);
+        File segment = newFile("trace-journal-000001.log",100);
+        File other = newFile("other.log",100);
+        assertTrue(other.setLastModified(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(2)));
+
+        TraceQuota quota = new TraceQuota(dir,0,0,TimeUnit.HOURS.toMillis(1));
+        quota.start();
+        try
+        {
+            long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (old.exists() && (System.nanoTime() < end))
+            {
+                Thread.yield();
+            }
+        }
+        finally
+        {
+            quota.stop();
+        }
+        assertFalse("expired",old.exists());
+        assertTrue("recent",recent.exists());
+        assertTrue("segment",segment.exists());
+        assertTrue("not a trace",other.exists());
+        assertThat("files",quota.getFileCount(),is(2));
+        assertThat("total",quota.getTotalSize(),is(200L));
+    }
+
+    @Test
+    public void testTraceReportsFile() throws IOException
+    {
+        TraceQuota quota = new TraceQuota(dir,1024 * 1024,0,0);
+        TraceFile tracer = new TraceFile(new File(dir,"tracer-1.log"));
+        tracer.setQuota(quota);
+        tracer.log("Hello %s","World");
+        assertThat("open trace",quota.getFileCount(),is(0));
+        tracer.close();
+        assertThat("files",quota.getFileCount(),is(1));
+        assertThat("total",quota.getTotalSize(),is(tracer.getOutputFile().length()));
+    }
+
+    @Test
+    public void testBackgroundEviction() throws Exception
+    {
+        TraceQuota quota = new TraceQuota(dir,0,100,0);
+        quota.start();
+        try
+        {
+            for (int i = 0; i < 1000; i++)
+            {
+                quota.added(newFile("tracer-" + i + ".log",10));
+            }
+            long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while ((quota.getFileCount() > 90) && (System.nanoTime() < end))
+            {
+                Thread.sleep(10);
+            }
+        }
+        finally
+        {
+            quota.stop();
+        }
+        // between the low and high water marks
+        assertThat("files",quota.getFileCount(),both(greaterThanOrEqualTo(80)).and(lessThanOrEqualTo(90)));
+        assertThat("on disk",dir.list().length,is(quota.getFileCount()));
+        assertTrue("newest kept",new File(dir,"tracer-999.log").exists());
+    }
+
+    @Test
+    public void testOnlyCompletedSegmentsCounted() throws IOException
+    {
+        TraceQuota quota = new TraceQuota(dir,1024 * 1024,0,0);
+        try (TraceJournal journal = new TraceJournal(dir,4096))
+        {
+            journal.setQuota(quota);
+            TraceJournal.Entry entry = journal.newEntry("Trace started");
+            TraceFile tracer = new TraceFile(entry.getId(),entry,null);
+            tracer.log("Hello %s","World");
+            tracer.close();
+            // in flight, until the segment is full
+            File first = TraceJournal.getSegmentFile(dir,1);
+            assertThat("written",first.length(),greaterThan(0L));
+            assertThat("open segment",quota.getFileCount(),is(0));
+
+            entry = journal.newEntry("Trace started");
+            tracer = new TraceFile(entry.getId(),entry,null);
+            byte[] content = new byte[4096];
+            tracer.logResponseContentBytes(content,0,content.length);
+            tracer.close();
+            // every segment but the open one
+            int segments = 1;
+            long completed = 0;
+            while (TraceJournal.getSegmentFile(dir,segments + 1).exists())
+            {
+                completed += TraceJournal.getSegmentFile(dir,segments++).length();
+            }
+            assertThat("rolled over segments",segments,greaterThan(1));
+            assertThat("files",quota.getFileCount(),is(segments - 1));
+            assertThat("total",quota.getTotalSize(),is(completed));
+        }
+    }
+}
@@ -0,0 +1,316 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.toolchain.test.AdvancedRunner;
+import org.eclipse.jetty.toolchain.test.IO;
+import org.eclipse.jetty.toolchain.test.TestingDir;
+import org.eclipse.jetty.toolchain.test.annotation.Stress;
+import org.eclipse.jetty.trace.TraceFile;
+import org.eclipse.jetty.trace.TraceFilter;
+import org.eclipse.jetty.trace.TraceRetention;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AdvancedRunner.class)
+public class TraceRetentionTest
+{
+    @Rule
+    public TestingDir testdir = new TestingDir();
+    private File dir;
+
+    @Before
+    public void setUp()
+    {
+        dir = testdir.getEmptyDir();
+    }
+
+    private static HttpServletResponse newResponse(final int status, final String... headers)
+    {
+        return (HttpServletResponse)Proxy.newProxyInstance(TraceRetentionTest.class.getClassLoader(),new Class<?>[] { HttpServletResponse.class },
+                new InvocationHandler()
+                {
+                    @Override
+                    public Object invoke(Object proxy, Method m, Object[] args)
+                    {
+                        switch (m.getName())
+                        {
+                            case "getStatus":
+                                return status;
+                            case "getHeaderNames":
+                                return Arrays.asList(headers);
+                            case "getHeader":
+                                return "true";
+                            case "toString":
+                                return "Response " + status;
+                            default:
+                                throw new UnsupportedOperationException(m.getName());
+                        }
+                    }
+                });
+    }
+
+    private static HttpServletRequest newRequest()
+    {
+        final Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("Host","localhost:8080");
+        headers.put("User-Agent","Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36");
+        headers.put("Accept","text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8");
+        headers.put("Accept-Encoding","gzip, deflate");
+        headers.put("Accept-Language","en-US,en;q=0.5");
+        headers.put("Cookie","JSESSIONID=1x2y3z4w5v6u7t8s9r0q");
+        headers.put("Content-Type","application/x-www-form-urlencoded");
+        return (HttpServletRequest)Proxy.newProxyInstance(TraceRetentionTest.class.getClassLoader(),new Class<?>[] { HttpServletRequest.class },
+                new InvocationHandler()
+                {
+                    @Override
+                    public Object invoke(Object proxy, Method m, Object[] args)
+                    {
+                        switch (m.getName())
+                        {
+                            case "getMethod":
+                                return "POST";
+                            case "getRequestURL":
+                                return new StringBuffer("http://localhost:8080/ctx/search");
+                            case "getQueryString":
+                                return "q=trace+filter&page=2&page=3&empty";
+                            case "getHeaderNames":
+                                return Collections.enumeration(headers.keySet());
+                            case "getHeader":
+                                return headers.get(args[0]);
+                            default:
+                                throw new UnsupportedOperationException(m.getName());
+                        }
+                    }
+                });
+    }
+
+    private TraceFile trace(TraceRetention retention, HttpServletResponse response, byte[] content)
+    {
+        TraceFile tracer = new TraceFile(new File(dir,"tracer.log"),null,false,retention);
+        tracer.setResponse(response);
+        tracer.log("Request: GET /");
+        tracer.logResponseContentBytes(content,0,content.length);
+        return tracer;
+    }
+
+    private void assertNoSpillFiles()
+    {
+        for (String name : dir.list())
+        {
+            assertThat("leftover",name,not(startsWith("trace-spill-")));
+        }
+    }
+
+    @Test
+    public void testHealthyNotRetained()
+    {
+        TraceFile tracer = trace(new TraceRetention(500,0,true),newResponse(200),new byte[100]);
+        tracer.close();
+        assertFalse("trace file",tracer.getOutputFile().exists());
+        assertNoSpillFiles();
+    }
+
+    @Test
+    public void testStatusRetained() throws IOException
+    {
+        TraceFile tracer = trace(new TraceRetention(500,0,false),newResponse(503),new byte[100]);
+        tracer.close();
+        String trace = IO.readToString(tracer.getOutputFile());
+        assertThat("trace",trace,containsString("Request: GET /"));
+        assertThat("trace",trace,containsString("[Response] Closed :: Seen 100 bytes"));
+        assertThat("trace",trace,containsString("  (response status code): 503"));
+        assertThat("trace",trace,containsString("Trace completed in"));
+    }
+
+    @Test
+    public void testErrorRetained() throws IOException
+    {
+        TraceFile tracer = trace(new TraceRetention(500,0,true),newResponse(200),new byte[10]);
+        tracer.log(new IOException("Broken pipe"));
+        tracer.close();
+        assertThat("trace",IO.readToString(tracer.getOutputFile()),containsString("java.io.IOException: Broken pipe"));
+    }
+
+    @Test
+    public void testHeaderRetained() throws IOException
+    {
+        TraceRetention retention = new TraceRetention(0,0,false,"X-Trace-Keep");
+        TraceFile tracer = trace(retention,newResponse(200,"Content-Type"),new byte[10]);
+        tracer.close();
+        assertFalse("without header",tracer.getOutputFile().exists());
+
+        tracer = trace(retention,newResponse(200,"Content-Type","x-trace-keep"),new byte[10]);
+        tracer.close();
+        assertTrue("with header",tracer.getOutputFile().exists());
+    }
+
+    @Test
+    public void testSlowRetained() throws Exception
+    {
+        TraceFile tracer = trace(new TraceRetention(0,50,false),newResponse(200),new byte[10]);
+        tracer.close();
+        assertFalse("fast",tracer.getOutputFile().exists());
+
+        tracer = trace(new TraceRetention(0,50,false),newResponse(200),new byte[10]);
+        Thread.sleep(100);
+        tracer.close();
+        assertTrue("slow",tracer.getOutputFile().exists());
+    }
+
+    @Test
+    public void testRequestHeaders() throws IOException
+    {
+        TraceFile tracer = new TraceFile(new File(dir,"headers.log"),null,false,new TraceRetention(500,0,false));
+        tracer.logRequestHeaders(newRequest());
+        tracer.setResponse(newResponse(500,"Content-Type"));
+        tracer.close();
+        String trace = IO.readToString(tracer.getOutputFile());
+        assertThat("trace",trace,containsString("Request Headers:"));
+        assertThat("trace",trace,containsString("  (request url): http://localhost:8080/ctx/search?q=trace+filter&page=2&page=3&empty"));
+        assertThat("trace",trace,containsString("  Cookie: JSESSIONID=1x2y3z4w5v6u7t8s9r0q"));
+        // from the query string, the form body is not parsed
+        assertThat("trace",trace,containsString("  (query parameters)"));
+        assertThat("trace",trace,containsString("  q = [trace filter]"));
+        assertThat("trace",trace,containsString("  page = [2, 3]"));
+        assertThat("trace",trace,containsString("  empty = []"));
+        assertThat("trace",trace,containsString("  Content-Type: true"));
+    }
+
+    @Test
+    @Stress("Cost of traces that are not retained")
+    public void testBenchmark() throws IOException
+    {
+        TraceRetention retention = new TraceRetention(500,0,false);
+        HttpServletRequest request = newRequest();
+        HttpServletResponse response = newResponse(200,"Content-Type","Content-Length");
+        byte[] body = new byte[4096];
+        char[] page = new char[4096];
+        Arrays.fill(page,'x');
+        File file = new File(dir,"dropped.log");
+        int requests = 200_000;
+
+        for (int round = 0; round < 5; round++)
+        {
+            long start = System.nanoTime();
+            for (int i = 0; i < requests; i++)
+            {
+                TraceFile tracer = new TraceFile(file,null,false,retention);
+                tracer.logRequestHeaders(request);
+                tracer.logRequestContentBytes(body,0,body.length);
+                tracer.logRequestContentClose();
+                tracer.setResponse(response);
+                tracer.logResponseContentChar(page,0,page.length);
+                tracer.logResponseContentClose();
+                tracer.log("Closed: %s",response);
+                tracer.close();
+            }
+            long nanos = System.nanoTime() - start;
+            assertFalse("dropped",file.exists());
+            System.out.printf("Round %d: %,.0f ns per dropped request%n",round,(double)nanos / requests);
+        }
+    }
+
+    @Test
+    public void testSpill() throws IOException
+    {
+        TraceRetention retention = new TraceRetention(500,0,false).setBufferSize(4096);
+        byte[] content = new byte[1024 * 1024];
+
+        TraceFile dropped = trace(retention,newResponse(200),content);
+        assertThat("spilled",dir.list().length,is(1));
+        dropped.close();
+        assertFalse("dropped",dropped.getOutputFile().exists());
+        assertNoSpillFiles();
+
+        TraceFile kept = trace(retention,newResponse(500),content);
+        kept.close();
+        assertThat("kept",IO.readToString(kept.getOutputFile()),containsString("[Response] Closed :: Seen 1,048,576 bytes"));
+        assertNoSpillFiles();
+    }
+
+    @Test
+    public void testBufferSizeOutOfRange() throws Exception
+    {
+        final Map<String, String> params = new LinkedHashMap<>();
+        params.put("trace-dir",dir.getAbsolutePath());
+        params.put("trace-jmx","false");
+        params.put("trace-retain-status","500");
+        // 512 once truncated to an int
+        params.put("trace-retain-buffer-size","4294967808");
+        TraceFilter filter = new TraceFilter();
+        try
+        {
+            filter.init(new FilterConfig()
+            {
+                @Override
+                public String getFilterName()
+                {
+                    return "trace";
+                }
+
+                @Override
+                public ServletContext getServletContext()
+                {
+                    return null;
+                }
+
+                @Override
+                public String getInitParameter(String name)
+                {
+                    return params.get(name);
+                }
+
+                @Override
+                public Enumeration<String> getInitParameterNames()
+                {
+                    return Collections.enumeration(params.keySet());
+                }
+            });
+            filter.destroy();
+            fail("accepted an out of range buffer size");
+        }
+        catch (ServletException e)
+        {
+            assertThat("message",e.getMessage(),is("'trace-retain-buffer-size' is not a valid number: 4294967808"));
+        }
+    }
+}
@@ -0,0 +1,175 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.eclipse.jetty.toolchain.test.AdvancedRunner;
+import org.eclipse.jetty.toolchain.test.annotation.Stress;
+import org.eclipse.jetty.trace.TraceRules;
+import org.eclipse.jetty.trace.TraceRules.RuleSet;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AdvancedRunner.class)
+public class TraceRulesTest
+{
+    private static HttpServletRequest newRequest(final String method, final String uri, final String contentType, String... headers)
+    {
+        final Map<String, String> fields = new HashMap<>();
+        for (String header : headers)
+        {
+            fields.put(header,"true");
+        }
+        return (HttpServletRequest)Proxy.newProxyInstance(TraceRulesTest.class.getClassLoader(),new Class<?>[] { HttpServletRequest.class },
+                new InvocationHandler()
+                {
+                    @Override
+                    public Object invoke(Object proxy, Method m, Object[] args)
+                    {
+                        switch (m.getName())
+                        {
+                            case "getMethod":
+                                return method;
+                            case "getRequestURI":
+                                return uri;
+                            case "getContextPath":
+                                return "/ctx";
+                            case "getContentType":
+                                return contentType;
+                            case "getHeaderNames":
+                                return Collections.enumeration(fields.keySet());
+                            case "getHeader":
+                                return fields.get(args[0]);
+                            default:
+                                throw new UnsupportedOperationException(m.getName());
+                        }
+                    }
+                });
+    }
+
+    private static TraceRules exclude(RuleSet exclude)
+    {
+        return new TraceRules(new RuleSet(),exclude);
+    }
+
+    @Test
+    public void testPathPrefix()
+    {
+        TraceRules rules = exclude(new RuleSet().addPaths("/health","/static/"));
+        assertTrue(rules.isExcluded(newRequest("GET","/ctx/health",null)));
+        assertTrue(rules.isExcluded(newRequest("GET","/ctx/healthz",null)));
+        assertTrue(rules.isExcluded(newRequest("GET","/ctx/static/app.js",null)));
+        assertFalse(rules.isExcluded(newRequest("GET","/ctx/static",null)));
+        // prefixes are relative to the context path
+        assertFalse(rules.isExcluded(newRequest("GET","/ctx/api/health",null)));
+    }
+
+    @Test
+    public void testExtension()
+    {
+        TraceRules rules = exclude(new RuleSet().addExtensions("css",".PNG"));
+        assertTrue(rules.isExcluded(newRequest("GET","/ctx/a/b/site.css",null)));
+        assertTrue(rules.isExcluded(newRequest("GET","/ctx/logo.png;jsessionid=1234",null)));
+        assertTrue(rules.isExcluded(newRequest("GET","/ctx/LOGO.Png",null)));
+        assertFalse(rules.isExcluded(newRequest("GET","/ctx/css/site",null)));
+        assertFalse(rules.isExcluded(newRequest("GET","/ctx/site.css.map",null)));
+    }
+
+    @Test
+    public void testMethodHeaderContentType()
+    {
+        TraceRules rules = exclude(new RuleSet().addMethods("options").addHeaders("X-Health-Check").addContentTypes("image/"));
+        assertTrue(rules.isExcluded(newRequest("OPTIONS","/ctx/",null)));
+        assertTrue(rules.isExcluded(newRequest("GET","/ctx/",null,"x-health-check")));
+        assertTrue(rules.isExcluded(newRequest("PUT","/ctx/",null,"Accept","X-HEALTH-CHECK")));
+        assertTrue(rules.isExcluded(newRequest("PUT","/ctx/upload","Image/PNG")));
+        assertFalse(rules.isExcluded(newRequest("PUT","/ctx/upload","application/json","Accept")));
+    }
+
+    @Test
+    public void testInclude()
+    {
+        TraceRules rules = new TraceRules(new RuleSet().addPaths("/api/"),new RuleSet().addMethods("HEAD"));
+        assertFalse(rules.isExcluded(newRequest("GET","/ctx/api/orders",null)));
+        assertTrue(rules.isExcluded(newRequest("HEAD","/ctx/api/orders",null)));
+        assertTrue(rules.isExcluded(newRequest("GET","/ctx/index.html",null)));
+    }
+
+    private static TraceRules newRules(int count)
+    {
+        RuleSet exclude = new RuleSet();
+        for (int i = 0; i < count; i++)
+        {
+            exclude.addPaths("/service" + i + "/poll");
+            exclude.addExtensions("ext" + i);
+            exclude.addHeaders("X-Probe-" + i);
+            exclude.addContentTypes("application/vnd.type" + i);
+        }
+        exclude.addMethods("OPTIONS","TRACE");
+        return exclude(exclude);
+    }
+
+    private static double nanosPerRequest(TraceRules rules, HttpServletRequest[] requests, int iterations)
+    {
+        int excluded = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+        {
+            if (rules.isExcluded(requests[i % requests.length]))
+            {
+                excluded++;
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        assertThat(excluded,lessThanOrEqualTo(iterations));
+        return (double)nanos / iterations;
+    }
+
+    @Test
+    @Stress("Rule matching benchmark")
+    public void testBenchmark()
+    {
+        HttpServletRequest[] requests = new HttpServletRequest[] {
+                newRequest("GET","/ctx/service42/poll/status",null,"Accept","User-Agent","Host"),
+                newRequest("GET","/ctx/app/main.ext7",null,"Accept","User-Agent","Host"),
+                newRequest("POST","/ctx/api/orders","application/json","Accept","User-Agent","Host","Content-Length"),
+                newRequest("GET","/ctx/index.html",null,"Accept","User-Agent","Host","X-Probe-3") };
+        int[] sizes = new int[] { 1, 10, 100, 500 };
+        for (int round = 0; round < 3; round++)
+        {
+            for (int size : sizes)
+            {
+                TraceRules rules = newRules(size);
+                double nanos = nanosPerRequest(rules,requests,2_000_000);
+                System.out.printf("Round %d: %,4d rules per kind (%,5d total): %,.1f ns/request%n",round,size,size * 4 + 2,nanos);
+            }
+        }
+    }
+}
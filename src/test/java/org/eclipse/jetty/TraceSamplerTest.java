@@ -0,0 +1,92 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.trace.TraceSampler;
+import org.junit.Test;
+
+public class TraceSamplerTest
+{
+    private static int count(TraceSampler sampler, int requests, long now)
+    {
+        int sampled = 0;
+        for (int i = 0; i < requests; i++)
+        {
+            if (sampler.sample(now))
+            {
+                sampled++;
+            }
+        }
+        return sampled;
+    }
+
+    @Test
+    public void testOneInN()
+    {
+        TraceSampler sampler = new TraceSampler(1.0,10,0);
+        assertThat("first request",sampler.sample(),is(true));
+        assertThat("sampled",count(sampler,999,0) + 1,is(100));
+    }
+
+    @Test
+    public void testProbability()
+    {
+        assertThat("never",count(new TraceSampler(0.0,1,0),10000,0),is(0));
+        assertThat("always",count(new TraceSampler(1.0,1,0),10000,0),is(10000));
+        int sampled = count(new TraceSampler(0.25,1,0),100000,0);
+        assertThat("quarter",sampled,allOf(greaterThan(23000),lessThan(27000)));
+    }
+
+    @Test
+    public void testRateLimit()
+    {
+        TraceSampler sampler = new TraceSampler(1.0,1,50);
+        long now = TimeUnit.HOURS.toNanos(1);
+        // a full bucket allows a burst of one second worth of traces
+        assertThat("burst",count(sampler,1000,now),is(50));
+        // then refills at the configured rate
+        now += TimeUnit.MILLISECONDS.toNanos(100);
+        assertThat("after 100ms",count(sampler,1000,now),is(5));
+        now += TimeUnit.SECONDS.toNanos(10);
+        assertThat("after idle",count(sampler,1000,now),is(50));
+    }
+
+    @Test
+    public void testSlowRateLimit()
+    {
+        TraceSampler sampler = new TraceSampler(1.0,1,0.5);
+        long now = 0;
+        assertThat("first",count(sampler,10,now),is(1));
+        now += TimeUnit.SECONDS.toNanos(1);
+        assertThat("too soon",count(sampler,10,now),is(0));
+        now += TimeUnit.SECONDS.toNanos(1);
+        assertThat("after 2s",count(sampler,10,now),is(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidProbability()
+    {
+        new TraceSampler(1.5,1,0);
+    }
+}
@@ -0,0 +1,110 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty;
+
+import java.io.File;
+import java.net.URI;
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.http.HttpServlet;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.trace.TraceFilter;
+import org.eclipse.jetty.trace.TraceMetrics;
+
+/**
+ * A server on an ephemeral port, with the {@link TraceFilter} in front of the servlets of a test, writing its traces to
+ * the given directory.
+ */
+public class TraceServer
+{
+    private final Server server = new Server();
+    private final ServerConnector connector = new ServerConnector(server);
+    private final ServletContextHandler context = new ServletContextHandler();
+    private final TraceFilter filter = new TraceFilter();
+    private final FilterHolder holder = new FilterHolder(filter);
+    private URI uri;
+
+    public TraceServer(File traceDir)
+    {
+        connector.setPort(0);
+        server.addConnector(connector);
+        context.setContextPath("/");
+        holder.setAsyncSupported(true);
+        // set one at a time, as setInitParameters() replaces them all
+        holder.setInitParameter("trace-dir",traceDir.getAbsolutePath());
+        holder.setInitParameter("trace-jmx","false");
+        context.addFilter(holder,"/*",EnumSet.of(DispatcherType.REQUEST));
+        server.setHandler(context);
+    }
+
+    public TraceServer setInitParameter(String name, String value)
+    {
+        holder.setInitParameter(name,value);
+        return this;
+    }
+
+    public TraceServer addServlet(HttpServlet servlet, String pathSpec)
+    {
+        ServletHolder holder = new ServletHolder(servlet);
+        holder.setAsyncSupported(true);
+        context.addServlet(holder,pathSpec);
+        return this;
+    }
+
+    public void start() throws Exception
+    {
+        server.start();
+        uri = new URI("http://localhost:" + connector.getLocalPort());
+    }
+
+    public void stop() throws Exception
+    {
+        server.stop();
+    }
+
+    public TraceFilter getFilter()
+    {
+        return filter;
+    }
+
+    public URI getURI()
+    {
+        return uri;
+    }
+
+    /**
+     * Wait (for a while) until every trace started has been written out.
+     */
+    public void awaitWritten() throws InterruptedException
+    {
+        TraceMetrics metrics = filter.getMetrics();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while ((metrics.getOpenTraces() > 0) && (System.nanoTime() < deadline))
+        {
+            Thread.sleep(10);
+        }
+    }
+}
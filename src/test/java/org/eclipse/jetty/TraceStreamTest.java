@@ -0,0 +1,756 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty;
+
+import static org.eclipse.jetty.TraceTesting.newContent;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.CharArrayWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.toolchain.test.AdvancedRunner;
+import org.eclipse.jetty.toolchain.test.IO;
+import org.eclipse.jetty.toolchain.test.MavenTestingUtils;
+import org.eclipse.jetty.toolchain.test.TestingDir;
+import org.eclipse.jetty.toolchain.test.annotation.Stress;
+import org.eclipse.jetty.trace.TraceFile;
+import org.eclipse.jetty.trace.TraceServletInputStream;
+import org.eclipse.jetty.trace.TraceServletOutputStream;
+import org.eclipse.jetty.trace.TraceServletReader;
+import org.eclipse.jetty.trace.TraceServletWriter;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AdvancedRunner.class)
+public class TraceStreamTest
+{
+    private static class CountingInputStream extends ServletInputStream
+    {
+        private final InputStream in;
+        private int singleReads;
+        private int bulkReads;
+
+        public CountingInputStream(byte[] content)
+        {
+            this.in = new ByteArrayInputStream(content);
+        }
+
+        @Override
+        public boolean isFinished()
+        {
+            return false;
+        }
+
+        @Override
+        public boolean isReady()
+        {
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            singleReads++;
+            return in.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            bulkReads++;
+            return in.read(b,off,len);
+        }
+
+        @Override
+        public void setReadListener(ReadListener readListener)
+        {
+        }
+    }
+
+    private static class CountingOutputStream extends ServletOutputStream
+    {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private int singleWrites;
+        private int bulkWrites;
+
+        @Override
+        public boolean isReady()
+        {
+            return true;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener)
+        {
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            singleWrites++;
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            bulkWrites++;
+            out.write(b,off,len);
+        }
+    }
+
+    /**
+     * A non blocking input stream, that is ready for one chunk of content each time data is made available.
+     */
+    private static class NonBlockingInputStream extends ServletInputStream
+    {
+        private final InputStream in;
+        private final int chunk;
+        private ReadListener listener;
+        private int available;
+        private boolean finished;
+
+        public NonBlockingInputStream(byte[] content, int chunk)
+        {
+            this.in = new ByteArrayInputStream(content);
+            this.chunk = chunk;
+        }
+
+        public void dataAvailable() throws IOException
+        {
+            if (finished)
+            {
+                listener.onAllDataRead();
+            }
+            else
+            {
+                available = chunk;
+                listener.onDataAvailable();
+            }
+        }
+
+        @Override
+        public boolean isFinished()
+        {
+            return finished;
+        }
+
+        @Override
+        public boolean isReady()
+        {
+            return finished || (available > 0);
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            int ret = in.read(b,off,Math.min(len,available));
+            if (ret > 0)
+            {
+                available -= ret;
+            }
+            finished = (in.available() == 0);
+            return ret;
+        }
+
+        @Override
+        public void setReadListener(ReadListener readListener)
+        {
+            this.listener = readListener;
+        }
+    }
+
+    /**
+     * A non blocking output stream, that accepts one write each time a write is possible.
+     */
+    private static class NonBlockingOutputStream extends ServletOutputStream
+    {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private WriteListener listener;
+        private boolean ready = true;
+
+        public void writePossible() throws IOException
+        {
+            ready = true;
+            listener.onWritePossible();
+        }
+
+        @Override
+        public boolean isReady()
+        {
+            return ready;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener)
+        {
+            this.listener = writeListener;
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            out.write(b,off,len);
+            ready = false;
+        }
+    }
+
+    private static final int BUFSIZE = 8192;
+
+    @Rule
+    public TestingDir testdir = new TestingDir();
+
+    private static long readFully(InputStream in) throws IOException
+    {
+        byte[] buf = new byte[BUFSIZE];
+        long length = 0;
+        int len;
+        while ((len = in.read(buf,0,buf.length)) != (-1))
+        {
+            length += len;
+        }
+        return length;
+    }
+
+    private static void writeFully(byte[] content, OutputStream out) throws IOException
+    {
+        for (int off = 0; off < content.length; off += BUFSIZE)
+        {
+            out.write(content,off,Math.min(BUFSIZE,content.length - off));
+        }
+    }
+
+    /**
+     * @return a large text body, the quotes served by LongWriterServlet repeated
+     */
+    private static String newText(int size) throws IOException
+    {
+        String quotes = IO.readToString(MavenTestingUtils.getTestResourceFile("quotes.txt"));
+        StringBuilder text = new StringBuilder(size + quotes.length());
+        while (text.length() < size)
+        {
+            text.append(quotes);
+        }
+        text.setLength(size);
+        return text.toString();
+    }
+
+    private TraceFile newTracer(String name) throws IOException
+    {
+        return new TraceFile(new File(testdir.getEmptyDir(),name));
+    }
+
+    private String readTrace(TraceFile tracer) throws IOException
+    {
+        return IO.readToString(tracer.getOutputFile());
+    }
+
+    @Test
+    public void testBulkReadDelegateCalls() throws IOException
+    {
+        byte[] content = newContent(1024 * 1024);
+
+        CountingInputStream plain = new CountingInputStream(content);
+        assertThat("plain length",readFully(plain),is((long)content.length));
+
+        TraceFile tracer = newTracer("bulk-read.log");
+        CountingInputStream delegate = new CountingInputStream(content);
+        try (TraceServletInputStream traced = new TraceServletInputStream(delegate,tracer))
+        {
+            assertThat("traced length",readFully(traced),is((long)content.length));
+        }
+        tracer.close();
+
+        assertThat("single byte reads",delegate.singleReads,is(0));
+        assertThat("bulk reads",delegate.bulkReads,is(plain.bulkReads));
+        assertThat("trace",readTrace(tracer),containsString("[Request] Closed :: Seen 1,048,576 bytes"));
+    }
+
+    @Test
+    public void testBulkWriteDelegateCalls() throws IOException
+    {
+        byte[] content = newContent(1024 * 1024);
+
+        CountingOutputStream plain = new CountingOutputStream();
+        writeFully(content,plain);
+
+        TraceFile tracer = newTracer("bulk-write.log");
+        CountingOutputStream delegate = new CountingOutputStream();
+        try (TraceServletOutputStream traced = new TraceServletOutputStream(delegate,tracer))
+        {
+            writeFully(content,traced);
+        }
+        tracer.close();
+
+        assertThat("single byte writes",delegate.singleWrites,is(0));
+        assertThat("bulk writes",delegate.bulkWrites,is(plain.bulkWrites));
+        assertTrue("content",Arrays.equals(content,delegate.out.toByteArray()));
+        assertThat("trace",readTrace(tracer),containsString("[Response] Closed :: Seen 1,048,576 bytes"));
+    }
+
+    @Test
+    public void testPartialLineChunks() throws IOException
+    {
+        // chunk sizes that do not line up with the 16 byte hex lines
+        byte[] content = newContent(1000);
+        TraceFile tracer = newTracer("partial.log");
+        CountingOutputStream delegate = new CountingOutputStream();
+        try (TraceServletOutputStream traced = new TraceServletOutputStream(delegate,tracer))
+        {
+            int off = 0;
+            int chunk = 1;
+            while (off < content.length)
+            {
+                int len = Math.min(chunk,content.length - off);
+                traced.write(content,off,len);
+                off += len;
+                chunk += 7;
+            }
+        }
+        tracer.close();
+
+        assertTrue("content",Arrays.equals(content,delegate.out.toByteArray()));
+        String trace = readTrace(tracer);
+        assertThat("trace",trace,containsString("[Response] Closed :: Seen 1,000 bytes"));
+        // 1000 bytes = 62 full lines + 1 partial line
+        int lines = 0;
+        for (int idx = trace.indexOf("[Response] Content::"); idx >= 0; idx = trace.indexOf("[Response] Content::",idx + 1))
+        {
+            lines++;
+        }
+        assertThat("hex lines",lines,is(63));
+    }
+
+    @Test
+    public void testContentLimits() throws IOException
+    {
+        byte[] content = newContent(1024 * 1024);
+        TraceFile tracer = newTracer("limits.log");
+        tracer.setContentLimits(64,40);
+        CountingOutputStream delegate = new CountingOutputStream();
+        try (TraceServletOutputStream traced = new TraceServletOutputStream(delegate,tracer))
+        {
+            // mix of single byte and odd sized writes, to wrap the tail ring buffer
+            int off = 0;
+            int chunk = 1;
+            while (off < content.length)
+            {
+                int len = Math.min(chunk,content.length - off);
+                if (len == 1)
+                {
+                    traced.write(content[off]);
+                }
+                else
+                {
+                    traced.write(content,off,len);
+                }
+                off += len;
+                chunk = (chunk % 53) + 1;
+            }
+        }
+        tracer.close();
+
+        assertTrue("content",Arrays.equals(content,delegate.out.toByteArray()));
+        String trace = readTrace(tracer);
+        assertThat("elided",trace,containsString("[Response] Content:: ... 1,048,472 bytes elided ..."));
+        assertThat("closed",trace,containsString("[Response] Closed :: Seen 1,048,576 bytes (1,048,472 elided)"));
+        // 64 head bytes = 4 lines, 1 elided line, 40 tail bytes = 3 lines
+        int lines = 0;
+        for (int idx = trace.indexOf("[Response] Content::"); idx >= 0; idx = trace.indexOf("[Response] Content::",idx + 1))
+        {
+            lines++;
+        }
+        assertThat("hex lines",lines,is(8));
+        // the tail lines hold the last bytes of the content, in order
+        int tailStart = trace.indexOf("bytes elided");
+        byte[] tail = Arrays.copyOfRange(content,content.length - 40,content.length);
+        StringBuilder hex = new StringBuilder();
+        for (int i = 0; i < 8; i++)
+        {
+            hex.append(String.format("%02X ",tail[i]));
+        }
+        assertThat("tail",trace.indexOf(hex.toString().trim(),tailStart),greaterThan(tailStart));
+    }
+
+    @Test
+    public void testMilestones() throws IOException
+    {
+        byte[] content = newContent(1000);
+        TraceFile tracer = newTracer("milestones.log");
+        try (TraceServletInputStream traced = new TraceServletInputStream(new CountingInputStream(content),tracer))
+        {
+            readFully(traced);
+        }
+        try (TraceServletOutputStream traced = new TraceServletOutputStream(new CountingOutputStream(),tracer))
+        {
+            writeFully(content,traced);
+            traced.flush();
+        }
+        tracer.mark(TraceFile.Milestone.CHAIN_RETURN);
+        tracer.close();
+
+        String trace = readTrace(tracer);
+        int timing = trace.indexOf("Timing:");
+        assertThat("timing",timing,greaterThan(0));
+        // in the order reached
+        int previous = timing;
+        for (String milestone : new String[] { "filter entry", "first request read", "request EOF", "first response write", "first flush", "chain return" })
+        {
+            int idx = trace.indexOf("  " + milestone + " ",timing);
+            assertThat(milestone,idx,greaterThan(previous));
+            previous = idx;
+        }
+        assertThat("not reached",trace,not(containsString("async complete")));
+        assertThat("filter entry",trace,containsString("filter entry           +0.000000ms (+0.000000ms)"));
+    }
+
+    @Test
+    public void testCommitCheckedUntilCommitted() throws IOException
+    {
+        final AtomicInteger checks = new AtomicInteger();
+        // committed from the start
+        HttpServletResponse response = (HttpServletResponse)Proxy.newProxyInstance(getClass().getClassLoader(),new Class<?>[] { HttpServletResponse.class },
+                new InvocationHandler()
+                {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                    {
+                        switch (method.getName())
+                        {
+                            case "isCommitted":
+                                checks.incrementAndGet();
+                                return true;
+                            case "getStatus":
+                                return 200;
+                            case "getHeaderNames":
+                                return Collections.emptyList();
+                            default:
+                                return null;
+                        }
+                    }
+                });
+        TraceFile tracer = newTracer("commit.log");
+        tracer.setResponse(response);
+        byte[] content = newContent(100);
+        try (TraceServletOutputStream traced = new TraceServletOutputStream(new CountingOutputStream(),tracer))
+        {
+            for (int i = 0; i < 100; i++)
+            {
+                traced.write(content);
+            }
+        }
+        try (TraceServletWriter traced = new TraceServletWriter(new PrintWriter(new CharArrayWriter()),tracer))
+        {
+            for (int i = 0; i < 100; i++)
+            {
+                traced.write("text");
+            }
+        }
+        tracer.close();
+
+        // once by the stream, and not again once either knows
+        assertThat("checks",checks.get(),is(1));
+        assertThat("milestone",readTrace(tracer),containsString("  response commit "));
+    }
+
+    @Test
+    public void testReaderMethods() throws IOException
+    {
+        String text = "first line\nsecond line\nthird line\nand the rest of the body";
+        TraceFile tracer = newTracer("reader.log");
+        StringBuilder received = new StringBuilder();
+        try (TraceServletReader reader = new TraceServletReader(new BufferedReader(new StringReader(text)),tracer))
+        {
+            received.append((char)reader.read());
+            char[] buf = new char[5];
+            int len = reader.read(buf,0,buf.length);
+            received.append(buf,0,len);
+            received.append(reader.readLine()).append('\n');
+            received.append(reader.readLine()).append('\n');
+            CharBuffer buffer = CharBuffer.allocate(6);
+            reader.read(buffer);
+            buffer.flip();
+            received.append(buffer);
+            assertThat("skipped",reader.skip(4),is(4L));
+            int c;
+            while ((c = reader.read()) != (-1))
+            {
+                received.append((char)c);
+            }
+        }
+        tracer.close();
+
+        assertThat("received",received.toString(),is(text.replace("third line","third ")));
+        String trace = readTrace(tracer);
+        // every character read is traced once, skipped characters are only logged
+        assertThat("content",trace,containsString("[Request] Content:: first line\\nsecond line\\nthird \\nand the rest of the body"));
+        assertThat("skipped",trace,containsString("[Request] Skipped 4 characters"));
+        assertThat("closed",trace,containsString("[Request] Closed :: Seen " + (text.length() - 4) + " characters"));
+        assertThat("eof",trace,containsString("EOF reached"));
+    }
+
+    @Test
+    public void testWriterMethods() throws IOException
+    {
+        TraceFile tracer = newTracer("writer.log");
+        CharArrayWriter delegate = new CharArrayWriter();
+        try (TraceServletWriter writer = new TraceServletWriter(new PrintWriter(delegate),tracer))
+        {
+            writer.write('a');
+            writer.write("bcdef".toCharArray(),1,3);
+            writer.write("xyz");
+            writer.print(42);
+            writer.printf("%s!",true);
+            writer.println("end");
+        }
+        tracer.close();
+
+        String expected = "acdexyz42true!end" + System.lineSeparator();
+        assertThat("written",delegate.toString(),is(expected));
+        String trace = readTrace(tracer);
+        assertThat("content",trace,containsString("[Response] Content:: acdexyz42true!end"));
+        assertThat("closed",trace,containsString("[Response] Closed :: Seen " + expected.length() + " characters"));
+    }
+
+    @Test
+    public void testLargeTextBody() throws IOException
+    {
+        String text = newText(1024 * 1024);
+        TraceFile tracer = newTracer("large-text.log");
+        tracer.setContentLimits(1000,100);
+        CharArrayWriter delegate = new CharArrayWriter();
+        try (TraceServletReader reader = new TraceServletReader(new BufferedReader(new StringReader(text)),tracer);
+                TraceServletWriter writer = new TraceServletWriter(new PrintWriter(delegate),tracer))
+        {
+            char[] buf = new char[BUFSIZE];
+            int len;
+            while ((len = reader.read(buf,0,buf.length)) != (-1))
+            {
+                writer.write(buf,0,len);
+            }
+        }
+        tracer.close();
+
+        assertThat("written",delegate.toString(),is(text));
+        String trace = readTrace(tracer);
+        assertThat("request",trace,containsString("[Request] Closed :: Seen 1,048,576 characters (1,047,476 elided)"));
+        assertThat("response",trace,containsString("[Response] Closed :: Seen 1,048,576 characters (1,047,476 elided)"));
+    }
+
+    @Test
+    public void testReadListener() throws Exception
+    {
+        byte[] content = newContent(1000);
+        TraceFile tracer = newTracer("read-listener.log");
+        NonBlockingInputStream delegate = new NonBlockingInputStream(content,300);
+        final TraceServletInputStream traced = new TraceServletInputStream(delegate,tracer);
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        traced.setReadListener(new ReadListener()
+        {
+            @Override
+            public void onDataAvailable() throws IOException
+            {
+                byte[] buf = new byte[128];
+                while (traced.isReady() && !traced.isFinished())
+                {
+                    int len = traced.read(buf,0,buf.length);
+                    received.write(buf,0,len);
+                }
+            }
+
+            @Override
+            public void onAllDataRead() throws IOException
+            {
+                received.write('!');
+            }
+
+            @Override
+            public void onError(Throwable t)
+            {
+            }
+        });
+        for (int i = 0; i < 5; i++)
+        {
+            Thread.sleep(2);
+            delegate.dataAvailable();
+        }
+        tracer.close();
+
+        byte[] expected = Arrays.copyOf(content,content.length + 1);
+        expected[content.length] = '!';
+        assertTrue("content",Arrays.equals(expected,received.toByteArray()));
+        String trace = readTrace(tracer);
+        assertThat("non blocking",trace,containsString("[Request] Non blocking, "));
+        assertThat("not ready",trace,containsString("[Request] Not ready"));
+        assertThat("waited",trace,containsString("[Request] onDataAvailable after "));
+        assertThat("chunk",trace,containsString("[Request] onDataAvailable returned, 300 bytes read in "));
+        assertThat("last chunk",trace,containsString("[Request] onDataAvailable returned, 100 bytes read in "));
+        assertThat("all data",trace,containsString("[Request] onAllDataRead, 1,000 bytes read"));
+        // the listener never reads the EOF itself
+        assertThat("eof",trace,containsString("  request EOF "));
+        assertThat("captured",trace,containsString("[Request] Byte Content"));
+    }
+
+    @Test
+    public void testWriteListener() throws Exception
+    {
+        final byte[] content = newContent(1000);
+        TraceFile tracer = newTracer("write-listener.log");
+        NonBlockingOutputStream delegate = new NonBlockingOutputStream();
+        final TraceServletOutputStream traced = new TraceServletOutputStream(delegate,tracer);
+        traced.setWriteListener(new WriteListener()
+        {
+            private int written;
+
+            @Override
+            public void onWritePossible() throws IOException
+            {
+                while (traced.isReady() && (written < content.length))
+                {
+                    int len = Math.min(400,content.length - written);
+                    traced.write(content,written,len);
+                    written += len;
+                }
+            }
+
+            @Override
+            public void onError(Throwable t)
+            {
+            }
+        });
+        for (int i = 0; i < 3; i++)
+        {
+            delegate.writePossible();
+            Thread.sleep(2);
+        }
+        tracer.close();
+
+        assertTrue("content",Arrays.equals(content,delegate.out.toByteArray()));
+        String trace = readTrace(tracer);
+        assertThat("non blocking",trace,containsString("[Response] Non blocking, "));
+        assertThat("not ready",trace,containsString("[Response] Not ready"));
+        assertThat("first",trace,containsString("[Response] onWritePossible returned, 400 bytes written in "));
+        assertThat("waited",trace,containsString("[Response] onWritePossible after "));
+        assertThat("last",trace,containsString("[Response] onWritePossible returned, 200 bytes written in "));
+    }
+
+    @Test
+    @Stress("Character throughput")
+    public void testCharThroughput() throws IOException
+    {
+        String text = newText(16 * 1024 * 1024);
+        char[] buf = new char[BUFSIZE];
+        // all content rendered, or only counted past the head
+        for (int round = 0; round < 10; round++)
+        {
+            boolean limited = (round % 2) == 1;
+            TraceFile tracer = newTracer("char-throughput.log");
+            if (limited)
+            {
+                tracer.setContentLimits(1000,100);
+            }
+            long start = System.nanoTime();
+            try (TraceServletReader reader = new TraceServletReader(new BufferedReader(new StringReader(text)),tracer))
+            {
+                int len;
+                while ((len = reader.read(buf,0,buf.length)) != (-1))
+                {
+                    // bulk read
+                }
+            }
+            long readNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            try (TraceServletWriter writer = new TraceServletWriter(new PrintWriter(new CharArrayWriter(text.length())),tracer))
+            {
+                for (int off = 0; off < text.length(); off += BUFSIZE)
+                {
+                    writer.write(text,off,Math.min(BUFSIZE,text.length() - off));
+                }
+            }
+            long writeNanos = System.nanoTime() - start;
+            tracer.close();
+            double mb = text.length() / (1024.0 * 1024.0);
+            System.out.printf("Round %d, %,d chars%s: read %.1f MB/s, write %.1f MB/s%n",round / 2,text.length(),limited?" (limited)":"",mb / (readNanos / 1_000_000_000.0),mb / (writeNanos / 1_000_000_000.0));
+        }
+    }
+
+    @Test
+    @Stress("Throughput comparison")
+    public void testBulkThroughput() throws IOException
+    {
+        byte[] content = newContent(16 * 1024 * 1024);
+
+        // warmup
+        for (int i = 0; i < 3; i++)
+        {
+            readFully(new CountingInputStream(content));
+            TraceFile tracer = newTracer("warmup.log");
+            readFully(new TraceServletInputStream(new CountingInputStream(content),tracer));
+            tracer.close();
+        }
+
+        long start = System.nanoTime();
+        readFully(new CountingInputStream(content));
+        long plainNanos = System.nanoTime() - start;
+
+        TraceFile tracer = newTracer("throughput.log");
+        start = System.nanoTime();
+        readFully(new TraceServletInputStream(new CountingInputStream(content),tracer));
+        tracer.close();
+        long tracedNanos = System.nanoTime() - start;
+
+        System.out.printf("Read %,d bytes: plain %,dms, traced %,dms (%.1f MB/s)%n",content.length,plainNanos / 1_000_000,tracedNanos / 1_000_000,
+                (content.length / (1024.0 * 1024.0)) / (tracedNanos / 1_000_000_000.0));
+    }
+}
@@ -39,6 +39,7 @@ import org.eclipse.jetty.server.ServerConnector;
 import org.eclipse.jetty.toolchain.test.FS;
 import org.eclipse.jetty.toolchain.test.MavenTestingUtils;
 import org.eclipse.jetty.util.IO;
+import org.eclipse.jetty.util.resource.Resource;
 import org.eclipse.jetty.webapp.Configuration;
 import org.eclipse.jetty.webapp.JettyWebXmlConfiguration;
 import org.eclipse.jetty.webapp.MetaInfConfiguration;
@@ -87,6 +88,9 @@ public class TraceTest
         webapp.setAttribute("org.eclipse.jetty.server.webapp.ContainerIncludeJarPattern",
         // List of places to scan for annotations
                 ".*/test-classes/$");
+        // the JDK 9+ system classloader is not a URLClassLoader, so the
+        // ContainerIncludeJarPattern finds nothing, add test-classes directly
+        webapp.getMetaData().addContainerResource(Resource.newResource(MavenTestingUtils.getTargetFile("test-classes")));
         webapp.setParentLoaderPriority(true);
         server.setHandler(webapp);
 
@@ -0,0 +1,124 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Helpers shared by the tests.
+ */
+public final class TraceTesting
+{
+    /**
+     * Writer that discards everything, so only the formatting cost is measured.
+     */
+    public static class NullWriter extends Writer
+    {
+        @Override
+        public void write(char[] cbuf, int off, int len)
+        {
+        }
+
+        @Override
+        public void write(String str, int off, int len)
+        {
+        }
+
+        @Override
+        public void flush()
+        {
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    }
+
+    /**
+     * A piece of work to measure.
+     */
+    public interface Workload
+    {
+        void run() throws IOException;
+    }
+
+    /**
+     * @return the bytes allocated so far by the current thread, or -1 if not supported by the JVM
+     */
+    public static long allocatedBytes()
+    {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean)
+        {
+            return ((com.sun.management.ThreadMXBean)threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * Run a workload once, after a warmup, and print its time, throughput and allocations.
+     *
+     * @param name
+     *            the name of the variant measured
+     * @param warmup
+     *            a smaller workload of the same kind, run a few times first
+     * @param workload
+     *            the workload to measure
+     * @param size
+     *            the amount of content of the workload
+     * @param unit
+     *            the unit of the content, such as "bytes"
+     * @param per
+     *            the amount of content to report the allocations for, such as the content of a line
+     */
+    public static void bench(String name, Workload warmup, Workload workload, long size, String unit, long per) throws IOException
+    {
+        for (int i = 0; i < 20; i++)
+        {
+            warmup.run();
+        }
+        long allocStart = allocatedBytes();
+        long start = System.nanoTime();
+        workload.run();
+        long nanos = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocStart;
+        System.out.printf("%-6s %,13d %s: %,9.1f ms  %,8.1f M%s/s  %,8.2f bytes allocated/%,d %s%n",name,size,unit,nanos / 1_000_000.0,
+                (size / 1_000_000.0) / (nanos / 1_000_000_000.0),unit,(allocated * (double)per) / size,per,unit);
+    }
+
+    /**
+     * @return content cycling through 251 byte values, a pattern that does not line up with buffer sizes
+     */
+    public static byte[] newContent(int size)
+    {
+        byte[] content = new byte[size];
+        for (int i = 0; i < size; i++)
+        {
+            content[i] = (byte)(i % 251);
+        }
+        return content;
+    }
+
+    private TraceTesting()
+    {
+    }
+}
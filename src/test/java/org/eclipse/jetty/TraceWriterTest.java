@@ -0,0 +1,208 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.toolchain.test.IO;
+import org.eclipse.jetty.toolchain.test.TestingDir;
+import org.eclipse.jetty.trace.TraceFile;
+import org.eclipse.jetty.trace.TraceWriter;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class TraceWriterTest
+{
+    @Rule
+    public TestingDir testdir = new TestingDir();
+
+    @Test
+    public void testStopDrainsQueue() throws IOException
+    {
+        File dir = testdir.getEmptyDir();
+        TraceWriter writer = new TraceWriter(1024 * 1024);
+        writer.start();
+
+        List<TraceFile> traces = new ArrayList<>();
+        byte[] content = new byte[10000];
+        for (int i = 0; i < 50; i++)
+        {
+            TraceFile tracer = new TraceFile(new File(dir,"trace-" + i + ".log"),writer);
+            tracer.log("Trace #%d",i);
+            tracer.logResponseContentBytes(content,0,content.length);
+            tracer.close();
+            traces.add(tracer);
+        }
+
+        writer.stop();
+        assertThat("queue depth",writer.getQueueDepth(),is(0));
+        assertThat("dropped events",writer.getDroppedEvents(),is(0L));
+
+        for (int i = 0; i < traces.size(); i++)
+        {
+            String trace = IO.readToString(traces.get(i).getOutputFile());
+            assertThat("trace",trace,containsString("Trace #" + i));
+            assertThat("trace",trace,containsString("[Response] Closed :: Seen 10,000 bytes"));
+            assertThat("trace",trace,containsString("Trace completed in"));
+        }
+    }
+
+    @Test
+    public void testEventsAfterStop() throws Exception
+    {
+        File dir = testdir.getEmptyDir();
+        final TraceWriter writer = new TraceWriter(2);
+        writer.start();
+
+        final int threads = 8;
+        final int traces = 50;
+        final File[][] files = new File[threads][traces];
+        final CountDownLatch started = new CountDownLatch(threads);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++)
+        {
+            final File[] outputs = files[t];
+            final File threadDir = new File(dir,"thread-" + t);
+            threadDir.mkdirs();
+            new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        for (int i = 0; i < traces; i++)
+                        {
+                            TraceFile tracer = new TraceFile(new File(threadDir,"trace-" + i + ".log"),writer);
+                            tracer.log("Trace #%d",i);
+                            tracer.close();
+                            outputs[i] = tracer.getOutputFile();
+                            started.countDown();
+                        }
+                    }
+                    catch (IOException e)
+                    {
+                        e.printStackTrace();
+                    }
+                    finally
+                    {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        // stopped while the request threads are still tracing
+        assertTrue(started.await(10,TimeUnit.SECONDS));
+        writer.stop();
+        assertTrue(done.await(10,TimeUnit.SECONDS));
+
+        assertThat("queue depth",writer.getQueueDepth(),is(0));
+        for (File[] outputs : files)
+        {
+            for (File output : outputs)
+            {
+                assertThat("trace",IO.readToString(output),containsString("Trace completed in"));
+            }
+        }
+    }
+
+    @Test
+    public void testErrorDoesNotStopWriter() throws Exception
+    {
+        TraceWriter writer = new TraceWriter(1024);
+        writer.start();
+        try
+        {
+            TraceFile failing = new TraceFile("failing",new Writer()
+            {
+                @Override
+                public void write(char[] cbuf, int off, int len)
+                {
+                    throw new AssertionError("Failing output");
+                }
+
+                @Override
+                public void flush()
+                {
+                }
+
+                @Override
+                public void close()
+                {
+                }
+            },writer);
+            failing.log("Lost");
+            failing.close();
+
+            StringWriter output = new StringWriter();
+            TraceFile tracer = new TraceFile("after",output,writer);
+            tracer.log("Written");
+            tracer.close();
+
+            // written by the writer thread, not by the stop
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (!output.toString().contains("Trace completed in") && (System.nanoTime() < deadline))
+            {
+                Thread.sleep(10);
+            }
+            assertThat("trace",output.toString(),containsString("Trace completed in"));
+            assertThat("running",writer.isRunning(),is(true));
+        }
+        finally
+        {
+            writer.stop();
+        }
+    }
+
+    @Test
+    public void testInterruptedStop() throws Exception
+    {
+        File dir = testdir.getEmptyDir();
+        TraceWriter writer = new TraceWriter(1024);
+        writer.start();
+        List<TraceFile> traces = new ArrayList<>();
+        for (int i = 0; i < 50; i++)
+        {
+            TraceFile tracer = new TraceFile(new File(dir,"trace-" + i + ".log"),writer);
+            tracer.log("Trace #%d",i);
+            tracer.close();
+            traces.add(tracer);
+        }
+
+        Thread.currentThread().interrupt();
+        writer.stop();
+        // the stop waited for the writer thread regardless, and kept the interrupt
+        assertThat("interrupted",Thread.interrupted(),is(true));
+        assertThat("queue depth",writer.getQueueDepth(),is(0));
+        for (TraceFile tracer : traces)
+        {
+            assertThat("trace",IO.readToString(tracer.getOutputFile()),containsString("Trace completed in"));
+        }
+    }
+}